@@ -95,8 +95,8 @@ import android.text.format.DateUtils;
 import android.text.format.Formatter;
 import android.text.format.Time;
 import android.util.Log;
-import android.util.SparseArray;
 import android.util.SparseBooleanArray;
+import android.util.SparseIntArray;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -131,7 +131,9 @@ import com.android.internal.telephony.PhoneConstants;
 import com.android.settings.drawable.InsetBoundsDrawable;
 import com.android.settings.net.ChartData;
 import com.android.settings.net.ChartDataLoader;
+import com.android.settings.net.DataUsageCache;
 import com.android.settings.net.DataUsageMeteredSettings;
+import com.android.settings.net.NetworkHistoryIndex;
 import com.android.settings.net.NetworkPolicyEditor;
 import com.android.settings.net.SummaryForAllUidLoader;
 import com.android.settings.net.UidDetail;
@@ -144,7 +146,7 @@ import com.google.android.collect.Lists;
 import libcore.util.Objects;
 
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
 
@@ -286,10 +288,14 @@ public class DataUsageSummary extends Fragment {
             getActivity().finish();
         }
 
-        try {
-            mStatsSession = mStatsService.openSession();
-        } catch (RemoteException e) {
-            throw new RuntimeException(e);
+        // adopt the session opened while the dashboard was showing, if any
+        mStatsSession = DataUsageWarmup.takeSession();
+        if (mStatsSession == null) {
+            try {
+                mStatsSession = mStatsService.openSession();
+            } catch (RemoteException e) {
+                throw new RuntimeException(e);
+            }
         }
 
         mShowWifi = mPrefs.getBoolean(PREF_SHOW_WIFI, false);
@@ -428,6 +434,8 @@ public class DataUsageSummary extends Fragment {
                     // wait a few seconds before kicking off
                     Thread.sleep(2 * DateUtils.SECOND_IN_MILLIS);
                     mStatsService.forceUpdate();
+                    // cached stats predate the poll we just forced
+                    DataUsageCache.invalidate();
                 } catch (InterruptedException e) {
                 } catch (RemoteException e) {
                 }
@@ -742,16 +750,26 @@ public class DataUsageSummary extends Fragment {
             throw new IllegalStateException("unknown tab: " + currentTab);
         }
 
-        // kick off loader for network history
-        // TODO: consider chaining two loaders together instead of reloading
-        // network history when showing app detail.
-        getLoaderManager().restartLoader(LOADER_CHART_DATA,
-                ChartDataLoader.buildArgs(mTemplate, mCurrentApp), mChartDataCallbacks);
+        // kick off loader for network history, unless we read it recently
+        final ChartData cached = DataUsageCache.getChartData(mTemplate, mCurrentApp);
+        if (cached != null) {
+            getLoaderManager().destroyLoader(LOADER_CHART_DATA);
+        } else {
+            // TODO: consider chaining two loaders together instead of reloading
+            // network history when showing app detail.
+            getLoaderManager().restartLoader(LOADER_CHART_DATA,
+                    ChartDataLoader.buildArgs(mTemplate, mCurrentApp), mChartDataCallbacks);
+        }
 
         // detail mode can change visible menus, invalidate
         getActivity().invalidateOptionsMenu();
 
         mBinding = false;
+
+        // bind as if the loader had just finished
+        if (cached != null) {
+            bindChartData(cached);
+        }
     }
 
     private boolean isAppDetailMode() {
@@ -977,6 +995,13 @@ public class DataUsageSummary extends Fragment {
         if (historyStart == Long.MAX_VALUE) historyStart = now;
         if (historyEnd == Long.MIN_VALUE) historyEnd = now + 1;
 
+        // show usage of each cycle inline, for the app when showing one
+        NetworkHistoryIndex index = null;
+        if (mChartData != null) {
+            index = mChartData.detailIndex != null ? mChartData.detailIndex
+                    : mChartData.networkIndex;
+        }
+
         boolean hasCycles = false;
         if (policy != null) {
             // find the next cycle boundary
@@ -987,7 +1012,8 @@ public class DataUsageSummary extends Fragment {
                 final long cycleStart = computeLastCycleBoundary(cycleEnd, policy);
                 Log.d(TAG, "generating cs=" + cycleStart + " to ce=" + cycleEnd + " waiting for hs="
                         + historyStart);
-                mCycleAdapter.add(new CycleItem(context, cycleStart, cycleEnd));
+                mCycleAdapter.add(new CycleItem(context, cycleStart, cycleEnd,
+                        getTotalBytes(index, cycleStart, cycleEnd, now)));
                 cycleEnd = cycleStart;
                 hasCycles = true;
             }
@@ -1001,7 +1027,8 @@ public class DataUsageSummary extends Fragment {
             long cycleEnd = historyEnd;
             while (cycleEnd > historyStart) {
                 final long cycleStart = cycleEnd - (DateUtils.WEEK_IN_MILLIS * 4);
-                mCycleAdapter.add(new CycleItem(context, cycleStart, cycleEnd));
+                mCycleAdapter.add(new CycleItem(context, cycleStart, cycleEnd,
+                        getTotalBytes(index, cycleStart, cycleEnd, now)));
                 cycleEnd = cycleStart;
             }
 
@@ -1027,6 +1054,10 @@ public class DataUsageSummary extends Fragment {
         }
     }
 
+    private static long getTotalBytes(NetworkHistoryIndex index, long start, long end, long now) {
+        return index != null ? index.getTotalBytes(start, end, now) : CycleItem.TOTAL_UNKNOWN;
+    }
+
     private OnCheckedChangeListener mDataEnabledListener = new OnCheckedChangeListener() {
         @Override
         public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
@@ -1149,13 +1180,13 @@ public class DataUsageSummary extends Fragment {
 
         final Context context = getActivity();
 
-        NetworkStatsHistory.Entry entry = null;
+        long totalBytes = 0;
         if (isAppDetailMode() && mChartData != null && mChartData.detail != null) {
             // bind foreground/background to piechart and labels
-            entry = mChartData.detailDefault.getValues(start, end, now, entry);
-            final long defaultBytes = entry.rxBytes + entry.txBytes;
-            entry = mChartData.detailForeground.getValues(start, end, now, entry);
-            final long foregroundBytes = entry.rxBytes + entry.txBytes;
+            final long defaultBytes = mChartData.detailDefaultIndex.getTotalBytes(
+                    start, end, now);
+            final long foregroundBytes = mChartData.detailForegroundIndex.getTotalBytes(
+                    start, end, now);
 
             mAppPieChart.setOriginAngle(175);
 
@@ -1169,21 +1200,27 @@ public class DataUsageSummary extends Fragment {
             mAppForeground.setText(Formatter.formatFileSize(context, foregroundBytes));
 
             // and finally leave with summary data for label below
-            entry = mChartData.detail.getValues(start, end, now, null);
+            totalBytes = mChartData.detailIndex.getTotalBytes(start, end, now);
 
             getLoaderManager().destroyLoader(LOADER_SUMMARY);
 
         } else {
             if (mChartData != null) {
-                entry = mChartData.network.getValues(start, end, now, null);
+                totalBytes = mChartData.networkIndex.getTotalBytes(start, end, now);
             }
 
-            // kick off loader for detailed stats
-            getLoaderManager().restartLoader(LOADER_SUMMARY,
-                    SummaryForAllUidLoader.buildArgs(mTemplate, start, end), mSummaryCallbacks);
+            // kick off loader for detailed stats, unless we read them recently
+            final NetworkStats cached = DataUsageCache.getSummary(mTemplate, start, end);
+            if (cached != null) {
+                getLoaderManager().destroyLoader(LOADER_SUMMARY);
+                bindSummary(cached);
+            } else {
+                getLoaderManager().restartLoader(LOADER_SUMMARY,
+                        SummaryForAllUidLoader.buildArgs(mTemplate, start, end),
+                        mSummaryCallbacks);
+            }
         }
 
-        final long totalBytes = entry != null ? entry.rxBytes + entry.txBytes : 0;
         final String totalPhrase = Formatter.formatFileSize(context, totalBytes);
         final String rangePhrase = formatDateRange(context, start, end);
 
@@ -1210,18 +1247,7 @@ public class DataUsageSummary extends Fragment {
 
         @Override
         public void onLoadFinished(Loader<ChartData> loader, ChartData data) {
-            mChartData = data;
-            mChart.bindNetworkStats(mChartData.network);
-            mChart.bindDetailNetworkStats(mChartData.detail);
-
-            // calcuate policy cycles based on available data
-            updatePolicy(true);
-            updateAppDetail();
-
-            // force scroll to top of body when showing detail
-            if (mChartData.detail != null) {
-                mListView.smoothScrollToPosition(0);
-            }
+            bindChartData(data);
         }
 
         @Override
@@ -1241,10 +1267,7 @@ public class DataUsageSummary extends Fragment {
 
         @Override
         public void onLoadFinished(Loader<NetworkStats> loader, NetworkStats data) {
-            final int[] restrictedUids = mPolicyManager.getUidsWithPolicy(
-                    POLICY_REJECT_METERED_BACKGROUND);
-            mAdapter.bindStats(data, restrictedUids);
-            updateEmptyVisible();
+            bindSummary(data);
         }
 
         @Override
@@ -1252,12 +1275,34 @@ public class DataUsageSummary extends Fragment {
             mAdapter.bindStats(null, new int[0]);
             updateEmptyVisible();
         }
+    };
+
+    private void bindChartData(ChartData data) {
+        mChartData = data;
+        mChart.bindNetworkStats(mChartData.network);
+        mChart.bindDetailNetworkStats(mChartData.detail);
 
-        private void updateEmptyVisible() {
-            final boolean isEmpty = mAdapter.isEmpty() && !isAppDetailMode();
-            mEmpty.setVisibility(isEmpty ? View.VISIBLE : View.GONE);
+        // calcuate policy cycles based on available data
+        updatePolicy(true);
+        updateAppDetail();
+
+        // force scroll to top of body when showing detail
+        if (mChartData.detail != null) {
+            mListView.smoothScrollToPosition(0);
         }
-    };
+    }
+
+    private void bindSummary(NetworkStats data) {
+        final int[] restrictedUids = mPolicyManager.getUidsWithPolicy(
+                POLICY_REJECT_METERED_BACKGROUND);
+        mAdapter.bindStats(data, restrictedUids);
+        updateEmptyVisible();
+    }
+
+    private void updateEmptyVisible() {
+        final boolean isEmpty = mAdapter.isEmpty() && !isAppDetailMode();
+        mEmpty.setVisibility(isEmpty ? View.VISIBLE : View.GONE);
+    }
 
     @Deprecated
     private boolean isMobilePolicySplit() {
@@ -1279,7 +1324,7 @@ public class DataUsageSummary extends Fragment {
         }
     }
 
-    private static String getActiveSubscriberId(Context context) {
+    static String getActiveSubscriberId(Context context) {
         final TelephonyManager tele = TelephonyManager.from(context);
         final String actualSubscriberId = tele.getSubscriberId();
         return SystemProperties.get(TEST_SUBSCRIBER_PROP, actualSubscriberId);
@@ -1317,18 +1362,30 @@ public class DataUsageSummary extends Fragment {
      * List item that reflects a specific data usage cycle.
      */
     public static class CycleItem implements Comparable<CycleItem> {
+        public static final long TOTAL_UNKNOWN = -1;
+
         public CharSequence label;
         public long start;
         public long end;
+        public long totalBytes = TOTAL_UNKNOWN;
 
         CycleItem(CharSequence label) {
             this.label = label;
         }
 
         public CycleItem(Context context, long start, long end) {
-            this.label = formatDateRange(context, start, end);
+            this(context, start, end, TOTAL_UNKNOWN);
+        }
+
+        public CycleItem(Context context, long start, long end, long totalBytes) {
+            final String range = formatDateRange(context, start, end);
+            this.label = totalBytes != TOTAL_UNKNOWN
+                    ? context.getString(R.string.data_usage_cycle_with_total, range,
+                            Formatter.formatFileSize(context, totalBytes))
+                    : range;
             this.start = start;
             this.end = end;
+            this.totalBytes = totalBytes;
         }
 
         @Override
@@ -1481,9 +1538,37 @@ public class DataUsageSummary extends Fragment {
         private final UidDetailProvider mProvider;
         private final int mInsetSide;
 
-        private ArrayList<AppItem> mItems = Lists.newArrayList();
+        /**
+         * Number of rows that are sorted when stats are bound; enough to
+         * fill a screen.  The rest are sorted once the list scrolls past.
+         */
+        private static final int TOP_K = 32;
+
+        // Aggregated rows ("slots") in order of first appearance, kept in
+        // primitive arrays reused between binds.
+        private final SparseIntArray mSlotForKey = new SparseIntArray();
+        private int mSlotCount;
+        private int[] mSlotKeys = new int[0];
+        private long[] mSlotTotals = new long[0];
+        private boolean[] mSlotRestricted = new boolean[0];
+        // First stats entry of each slot, chained through mEntryNext.
+        private int[] mSlotFirstEntry = new int[0];
+
+        private int[] mEntryUids = new int[0];
+        private int[] mEntryNext = new int[0];
+
+        // Slots by descending total; only the first mSortedCount are final.
+        private int[] mOrder = new int[0];
+        private int mSortedCount;
+
+        // Rows materialized so far, by position.
+        private AppItem[] mItems = new AppItem[0];
         private long mLargest;
 
+        // Keys of the top rows whose details are being resolved in one batch.
+        private final SparseBooleanArray mPrefetching = new SparseBooleanArray();
+        private AsyncTask<Void, Void, Void> mPrefetchTask;
+
         public DataUsageAdapter(UidDetailProvider provider, int insetSide) {
             mProvider = checkNotNull(provider);
             mInsetSide = insetSide;
@@ -1493,13 +1578,18 @@ public class DataUsageSummary extends Fragment {
          * Bind the given {@link NetworkStats}, or {@code null} to clear list.
          */
         public void bindStats(NetworkStats stats, int[] restrictedUids) {
-            mItems.clear();
-
             final int currentUserId = ActivityManager.getCurrentUser();
-            final SparseArray<AppItem> knownItems = new SparseArray<AppItem>();
+            final int size = stats != null ? stats.size() : 0;
+
+            mSlotForKey.clear();
+            mSlotCount = 0;
+            ensureSlotCapacity(size + restrictedUids.length);
+            if (mEntryUids.length < size) {
+                mEntryUids = new int[size];
+                mEntryNext = new int[size];
+            }
 
             NetworkStats.Entry entry = null;
-            final int size = stats != null ? stats.size() : 0;
             for (int i = 0; i < size; i++) {
                 entry = stats.getValues(i, entry);
 
@@ -1518,48 +1608,206 @@ public class DataUsageSummary extends Fragment {
                     collapseKey = android.os.Process.SYSTEM_UID;
                 }
 
-                AppItem item = knownItems.get(collapseKey);
-                if (item == null) {
-                    item = new AppItem(collapseKey);
-                    mItems.add(item);
-                    knownItems.put(item.key, item);
-                }
-                item.addUid(uid);
-                item.total += entry.rxBytes + entry.txBytes;
+                final int slot = obtainSlot(collapseKey, 0);
+                mEntryUids[i] = uid;
+                mEntryNext[i] = mSlotFirstEntry[slot];
+                mSlotFirstEntry[slot] = i;
+                mSlotTotals[slot] += entry.rxBytes + entry.txBytes;
             }
 
             for (int uid : restrictedUids) {
                 // Only splice in restricted state for current user
                 if (UserHandle.getUserId(uid) != currentUserId) continue;
 
-                AppItem item = knownItems.get(uid);
-                if (item == null) {
-                    item = new AppItem(uid);
-                    item.total = -1;
-                    mItems.add(item);
-                    knownItems.put(item.key, item);
-                }
-                item.restricted = true;
+                mSlotRestricted[obtainSlot(uid, -1)] = true;
+            }
+
+            final int count = mSlotCount;
+            for (int i = 0; i < count; i++) {
+                mOrder[i] = i;
+            }
+            Arrays.fill(mItems, 0, count, null);
+
+            // Only the rows on screen need to be in order right away
+            mSortedCount = Math.min(TOP_K, count);
+            if (mSortedCount < count) {
+                selectTop(0, count - 1, mSortedCount);
             }
+            sortRange(0, mSortedCount - 1);
 
-            Collections.sort(mItems);
-            mLargest = (mItems.size() > 0) ? mItems.get(0).total : 0;
+            mLargest = (count > 0) ? mSlotTotals[mOrder[0]] : 0;
+            prefetchDetails(mSortedCount);
             notifyDataSetChanged();
         }
 
+        /**
+         * Resolve details of the first rows in one background pass, so they
+         * don't each start their own {@link UidDetailTask}.
+         */
+        private void prefetchDetails(int count) {
+            if (mPrefetchTask != null) {
+                mPrefetchTask.cancel(false);
+                mPrefetchTask = null;
+            }
+            mPrefetching.clear();
+
+            final int[] keys = new int[count];
+            int missing = 0;
+            for (int i = 0; i < count; i++) {
+                final int key = mSlotKeys[mOrder[i]];
+                if (mProvider.getUidDetail(key, false) == null) {
+                    keys[missing++] = key;
+                    mPrefetching.put(key, true);
+                }
+            }
+            if (missing == 0) return;
+
+            final int[] batch = Arrays.copyOf(keys, missing);
+            mPrefetchTask = new AsyncTask<Void, Void, Void>() {
+                @Override
+                protected Void doInBackground(Void... params) {
+                    mProvider.prefetch(batch);
+                    return null;
+                }
+
+                @Override
+                protected void onPostExecute(Void result) {
+                    mPrefetching.clear();
+                    mPrefetchTask = null;
+                    notifyDataSetChanged();
+                }
+            }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        }
+
+        private void ensureSlotCapacity(int capacity) {
+            if (mSlotKeys.length >= capacity) return;
+            mSlotKeys = new int[capacity];
+            mSlotTotals = new long[capacity];
+            mSlotRestricted = new boolean[capacity];
+            mSlotFirstEntry = new int[capacity];
+            mOrder = new int[capacity];
+            mItems = new AppItem[capacity];
+        }
+
+        private int obtainSlot(int key, long initialTotal) {
+            int slot = mSlotForKey.get(key, -1);
+            if (slot < 0) {
+                slot = mSlotCount++;
+                mSlotKeys[slot] = key;
+                mSlotTotals[slot] = initialTotal;
+                mSlotRestricted[slot] = false;
+                mSlotFirstEntry[slot] = -1;
+                mSlotForKey.put(key, slot);
+            }
+            return slot;
+        }
+
+        /**
+         * Orders slots as {@link AppItem#compareTo} does, breaking ties by
+         * order of appearance like the stable sort this replaces.
+         */
+        private int compareSlots(int a, int b) {
+            final int result = Long.compare(mSlotTotals[b], mSlotTotals[a]);
+            return result != 0 ? result : Integer.compare(a, b);
+        }
+
+        private void swap(int i, int j) {
+            final int tmp = mOrder[i];
+            mOrder[i] = mOrder[j];
+            mOrder[j] = tmp;
+        }
+
+        private int partition(int lo, int hi) {
+            swap((lo + hi) >>> 1, hi);
+            final int pivot = mOrder[hi];
+            int store = lo;
+            for (int i = lo; i < hi; i++) {
+                if (compareSlots(mOrder[i], pivot) < 0) {
+                    swap(i, store++);
+                }
+            }
+            swap(store, hi);
+            return store;
+        }
+
+        /**
+         * Moves the first {@code k} slots of mOrder[lo..hi] into
+         * mOrder[lo..lo+k-1], in no particular order.
+         */
+        private void selectTop(int lo, int hi, int k) {
+            final int target = lo + k - 1;
+            while (lo < hi) {
+                final int p = partition(lo, hi);
+                if (p == target) {
+                    return;
+                } else if (p < target) {
+                    lo = p + 1;
+                } else {
+                    hi = p - 1;
+                }
+            }
+        }
+
+        private void sortRange(int lo, int hi) {
+            while (hi - lo > 8) {
+                final int p = partition(lo, hi);
+                // recurse into the smaller half to bound the stack
+                if (p - lo < hi - p) {
+                    sortRange(lo, p - 1);
+                    lo = p + 1;
+                } else {
+                    sortRange(p + 1, hi);
+                    hi = p - 1;
+                }
+            }
+            for (int i = lo + 1; i <= hi; i++) {
+                final int slot = mOrder[i];
+                int j = i - 1;
+                while (j >= lo && compareSlots(mOrder[j], slot) > 0) {
+                    mOrder[j + 1] = mOrder[j];
+                    j--;
+                }
+                mOrder[j + 1] = slot;
+            }
+        }
+
+        private int slotAt(int position) {
+            if (position >= mSortedCount) {
+                // scrolled past the top rows; order everything else
+                sortRange(mSortedCount, mSlotCount - 1);
+                mSortedCount = mSlotCount;
+            }
+            return mOrder[position];
+        }
+
+        private AppItem getAppItem(int position) {
+            AppItem item = mItems[position];
+            if (item == null) {
+                final int slot = slotAt(position);
+                item = new AppItem(mSlotKeys[slot]);
+                item.total = mSlotTotals[slot];
+                item.restricted = mSlotRestricted[slot];
+                for (int i = mSlotFirstEntry[slot]; i >= 0; i = mEntryNext[i]) {
+                    item.addUid(mEntryUids[i]);
+                }
+                mItems[position] = item;
+            }
+            return item;
+        }
+
         @Override
         public int getCount() {
-            return mItems.size();
+            return mSlotCount;
         }
 
         @Override
         public Object getItem(int position) {
-            return mItems.get(position);
+            return getAppItem(position);
         }
 
         @Override
         public long getItemId(int position) {
-            return mItems.get(position).key;
+            return mSlotKeys[slotAt(position)];
         }
 
         @Override
@@ -1580,8 +1828,8 @@ public class DataUsageSummary extends Fragment {
                     android.R.id.progress);
 
             // kick off async load of app details
-            final AppItem item = mItems.get(position);
-            UidDetailTask.bindView(mProvider, item, convertView);
+            final AppItem item = getAppItem(position);
+            UidDetailTask.bindView(mProvider, item, convertView, mPrefetching.get(item.key));
 
             if (item.restricted && item.total <= 0) {
                 text1.setText(R.string.data_usage_app_restricted);
@@ -2154,16 +2402,24 @@ public class DataUsageSummary extends Fragment {
             mTarget = checkNotNull(target);
         }
 
-        public static void bindView(
-                UidDetailProvider provider, AppItem item, View target) {
+        /**
+         * Bind details of the given item, loading them if needed.  When
+         * {@code prefetching}, the details are already being loaded in bulk
+         * and the view is rebound once they arrive.
+         */
+        public static void bindView(UidDetailProvider provider, AppItem item, View target,
+                boolean prefetching) {
             final UidDetailTask existing = (UidDetailTask) target.getTag();
             if (existing != null) {
                 existing.cancel(false);
+                target.setTag(null);
             }
 
             final UidDetail cachedDetail = provider.getUidDetail(item.key, false);
             if (cachedDetail != null) {
                 bindView(cachedDetail, target);
+            } else if (prefetching) {
+                bindView(null, target);
             } else {
                 target.setTag(new UidDetailTask(provider, item, target).executeOnExecutor(
                         AsyncTask.THREAD_POOL_EXECUTOR));
@@ -2176,9 +2432,11 @@ public class DataUsageSummary extends Fragment {
 
             if (detail != null) {
                 icon.setImageDrawable(detail.icon);
+                icon.setContentDescription(detail.contentDescription);
                 title.setText(detail.label);
             } else {
                 icon.setImageDrawable(null);
+                icon.setContentDescription(null);
                 title.setText(null);
             }
         }
@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import static android.net.NetworkPolicyManager.computeLastCycleBoundary;
+import static android.net.NetworkPolicyManager.computeNextCycleBoundary;
+import static android.net.NetworkStatsHistory.FIELD_RX_BYTES;
+import static android.net.NetworkStatsHistory.FIELD_TX_BYTES;
+import static android.net.NetworkTemplate.buildTemplateMobile3gLower;
+import static android.net.NetworkTemplate.buildTemplateMobileAll;
+import static android.net.NetworkTemplate.buildTemplateWifiWildcard;
+
+import android.content.Context;
+import android.net.INetworkStatsService;
+import android.net.INetworkStatsSession;
+import android.net.NetworkPolicy;
+import android.net.NetworkPolicyManager;
+import android.net.NetworkStatsHistory;
+import android.net.NetworkTemplate;
+import android.net.TrafficStats;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.os.ServiceManager;
+import android.os.SystemClock;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import com.android.settings.net.ChartData;
+import com.android.settings.net.ChartDataLoader;
+import com.android.settings.net.DataUsageCache;
+import com.android.settings.net.NetworkPolicyEditor;
+import com.android.settings.net.SummaryForAllUidLoader;
+
+/**
+ * Does the slow part of opening {@link DataUsageSummary} while the dashboard
+ * showing its header is on screen: opens a stats session and reads the chart
+ * data of the default tab and the summary of its current cycle into
+ * {@link DataUsageCache}, where {@link DataUsageSummary} finds them on its
+ * first bind.  It never forces the stats service to poll, since that writes
+ * stats to disk whether or not the screen is ever opened; the screen still
+ * forces its own poll shortly after it is shown.
+ *
+ * <p>The session is parked for {@link DataUsageSummary} to adopt, and closed
+ * if nobody takes it within {@link #SESSION_TIMEOUT}.
+ */
+class DataUsageWarmup {
+    private static final String TAG = "DataUsageWarmup";
+    private static final boolean LOGD = false;
+
+    // Dashboard resumes closer together than this share one warm-up.
+    private static final long WARMUP_INTERVAL = 30 * DateUtils.SECOND_IN_MILLIS;
+    private static final long SESSION_TIMEOUT = 30 * DateUtils.SECOND_IN_MILLIS;
+
+    private static final Object sLock = new Object();
+
+    // All guarded by sLock.
+    private static boolean sRunning;
+    private static long sLastWarmup;
+    private static INetworkStatsSession sSession;
+
+    private static final Handler sHandler = new Handler(Looper.getMainLooper());
+
+    private static final Runnable sExpireSession = new Runnable() {
+        @Override
+        public void run() {
+            final INetworkStatsSession session;
+            synchronized (sLock) {
+                session = sSession;
+                sSession = null;
+            }
+            if (LOGD) Log.d(TAG, "closing unclaimed session " + session);
+            TrafficStats.closeQuietly(session);
+        }
+    };
+
+    /**
+     * Start warming up in the background, unless that is already running or
+     * happened a moment ago.
+     */
+    static void warmUp(Context context) {
+        final Context appContext = context.getApplicationContext();
+        synchronized (sLock) {
+            final long now = SystemClock.elapsedRealtime();
+            if (sRunning || (sLastWarmup != 0 && now - sLastWarmup < WARMUP_INTERVAL)) {
+                return;
+            }
+            sRunning = true;
+            sLastWarmup = now;
+        }
+
+        new AsyncTask<Void, Void, Void>() {
+            @Override
+            protected Void doInBackground(Void... params) {
+                try {
+                    warmUpInBackground(appContext);
+                } catch (RemoteException e) {
+                    Log.w(TAG, "Unable to warm up data usage", e);
+                } catch (RuntimeException e) {
+                    // only ever a head start; DataUsageSummary reads it all again
+                    Log.w(TAG, "Unable to warm up data usage", e);
+                } finally {
+                    synchronized (sLock) {
+                        sRunning = false;
+                    }
+                }
+                return null;
+            }
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    /**
+     * Returns the session opened while warming up, or null if there is none
+     * ready; the caller owns it and must close it.
+     */
+    static INetworkStatsSession takeSession() {
+        sHandler.removeCallbacks(sExpireSession);
+        synchronized (sLock) {
+            final INetworkStatsSession session = sSession;
+            sSession = null;
+            return session;
+        }
+    }
+
+    private static void warmUpInBackground(Context context) throws RemoteException {
+        final INetworkStatsService statsService = INetworkStatsService.Stub.asInterface(
+                ServiceManager.getService(Context.NETWORK_STATS_SERVICE));
+
+        INetworkStatsSession session = takeSession();
+        if (session == null) {
+            session = statsService.openSession();
+        }
+
+        try {
+            final NetworkPolicyEditor policyEditor = new NetworkPolicyEditor(
+                    NetworkPolicyManager.from(context));
+            policyEditor.read();
+
+            final NetworkTemplate template = buildDefaultTemplate(context, policyEditor);
+            if (template != null) {
+                final ChartData data = ChartDataLoader.load(
+                        session, template, null, FIELD_RX_BYTES | FIELD_TX_BYTES);
+                final NetworkStatsHistory history = data.network;
+                if (history != null && history.size() > 0) {
+                    final long[] range = computeDefaultInspectRange(
+                            policyEditor.getPolicy(template), history);
+                    SummaryForAllUidLoader.load(session, template, range[0], range[1]);
+                }
+            }
+        } finally {
+            parkSession(session);
+        }
+    }
+
+    private static void parkSession(INetworkStatsSession session) {
+        final INetworkStatsSession previous;
+        synchronized (sLock) {
+            previous = sSession;
+            sSession = session;
+        }
+        if (previous != null && previous != session) {
+            TrafficStats.closeQuietly(previous);
+        }
+        sHandler.removeCallbacks(sExpireSession);
+        sHandler.postDelayed(sExpireSession, SESSION_TIMEOUT);
+    }
+
+    /**
+     * Template of the tab {@link DataUsageSummary#updateTabs()} selects first
+     * when opened without an explicit tab, or null when it would be ethernet
+     * or nothing.
+     */
+    private static NetworkTemplate buildDefaultTemplate(
+            Context context, NetworkPolicyEditor policyEditor) {
+        if (DataUsageSummary.hasReadyMobileRadio(context)) {
+            final String subscriberId = DataUsageSummary.getActiveSubscriberId(context);
+            if (policyEditor.isMobilePolicySplit(subscriberId)
+                    && DataUsageSummary.hasReadyMobile4gRadio(context)) {
+                return buildTemplateMobile3gLower(subscriberId);
+            }
+            return buildTemplateMobileAll(subscriberId);
+        } else if (DataUsageSummary.hasWifiRadio(context)) {
+            // wifi tab is always shown without a mobile radio
+            return buildTemplateWifiWildcard();
+        }
+        return null;
+    }
+
+    /**
+     * Inspection range {@link DataUsageSummary} starts with: the newest cycle
+     * picked by {@link DataUsageSummary#updateCycleList(NetworkPolicy)}, with
+     * sweeps over its last week of data as placed by
+     * {@link com.android.settings.widget.ChartDataUsageView#setVisibleRange(long, long)}.
+     * Getting this wrong only costs a cache miss.
+     */
+    private static long[] computeDefaultInspectRange(
+            NetworkPolicy policy, NetworkStatsHistory history) {
+        final long historyEnd = history.getEnd();
+
+        final long cycleStart;
+        final long cycleEnd;
+        if (policy != null) {
+            cycleEnd = computeNextCycleBoundary(historyEnd, policy);
+            cycleStart = computeLastCycleBoundary(cycleEnd, policy);
+        } else {
+            cycleEnd = historyEnd;
+            cycleStart = cycleEnd - (DateUtils.WEEK_IN_MILLIS * 4);
+        }
+
+        final long end = Math.min(cycleEnd, historyEnd);
+        final long start = Math.max(cycleStart, end - DateUtils.WEEK_IN_MILLIS);
+        return new long[] { start, end };
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.AsyncTask;
+import android.os.UserHandle;
+import android.util.LruCache;
+
+import java.io.File;
+import java.util.ArrayList;
+
+/**
+ * Process-wide cache of application icons, shared by the screens that show
+ * lists of apps.  Icons are kept as bitmaps scaled down to list row size
+ * and evicted least-recently-used once they exceed a byte budget derived
+ * from the process memory class.
+ *
+ * <p>Entries are keyed by package, user and the modification time of the
+ * package's apk, so an updated package gets a fresh icon.  Holders that keep
+ * icons around beyond binding a view should drop them when they are evicted
+ * (see {@link OnIconEvictedListener}), or the budget frees nothing.
+ */
+public class IconCache {
+    // Fraction of the memory class the cache may use.
+    private static final int MEMORY_CLASS_FRACTION = 16;
+
+    private static IconCache sInstance;
+
+    public interface OnIconLoadedListener {
+        public void onIconLoaded(Drawable icon);
+    }
+
+    /**
+     * Told when an icon is evicted to make room for others.  Called on the
+     * thread that loaded the newer icon, with no locks held.
+     */
+    public interface OnIconEvictedListener {
+        public void onIconEvicted(String packageName, Bitmap icon);
+    }
+
+    private final Context mContext;
+    private final PackageManager mPm;
+    private final int mIconSize;
+    private final LruCache<String, Bitmap> mCache;
+    private final ArrayList<OnIconEvictedListener> mEvictedListeners =
+            new ArrayList<OnIconEvictedListener>();
+
+    public static synchronized IconCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new IconCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Creates a cache of its own rather than the shared one; only for tests
+     * that run against a context with a fake package manager.
+     */
+    public IconCache(Context context) {
+        mContext = context;
+        mPm = context.getPackageManager();
+        mIconSize = context.getResources().getDimensionPixelSize(
+                android.R.dimen.app_icon_size);
+        final ActivityManager am = (ActivityManager) context.getSystemService(
+                Context.ACTIVITY_SERVICE);
+        final int maxBytes = am.getMemoryClass() * 1024 * 1024 / MEMORY_CLASS_FRACTION;
+        mCache = new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Bitmap oldValue,
+                    Bitmap newValue) {
+                if (evicted) {
+                    notifyEvicted(key.substring(0, key.indexOf(':')), oldValue);
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns the icon of the given application, loading and caching it if
+     * needed.  May block on the package manager, so callers that care about
+     * jank should call this off the main thread.
+     */
+    public Drawable getIcon(ApplicationInfo info) {
+        final Resources res = mContext.getResources();
+        final String key = keyFor(info);
+        Bitmap bm = mCache.get(key);
+        if (bm == null) {
+            bm = scale(info.loadIcon(mPm));
+            mCache.put(key, bm);
+        }
+        return new BitmapDrawable(res, bm);
+    }
+
+    /**
+     * Caches an icon of the given application that was loaded elsewhere,
+     * e.g. decoded from a snapshot, and returns it as a drawable.
+     */
+    public Drawable putIcon(ApplicationInfo info, Bitmap icon) {
+        final Bitmap bm = scale(new BitmapDrawable(mContext.getResources(), icon));
+        mCache.put(keyFor(info), bm);
+        return new BitmapDrawable(mContext.getResources(), bm);
+    }
+
+    /**
+     * Hands the icon of the given application to the listener on the main
+     * thread: right away if it is cached, otherwise once it has been loaded
+     * in the background.  Must be called on the main thread.
+     */
+    public void loadIcon(final ApplicationInfo info, final OnIconLoadedListener listener) {
+        Drawable icon = peekIcon(info);
+        if (icon != null) {
+            listener.onIconLoaded(icon);
+            return;
+        }
+        new AsyncTask<Void, Void, Drawable>() {
+            @Override
+            protected Drawable doInBackground(Void... params) {
+                return getIcon(info);
+            }
+
+            @Override
+            protected void onPostExecute(Drawable result) {
+                listener.onIconLoaded(result);
+            }
+        }.execute();
+    }
+
+    /**
+     * Returns the cached icon of the given application, or null if it has
+     * not been loaded.
+     */
+    public Drawable peekIcon(ApplicationInfo info) {
+        Bitmap bm = mCache.get(keyFor(info));
+        return bm != null ? new BitmapDrawable(mContext.getResources(), bm) : null;
+    }
+
+    public void clear() {
+        mCache.evictAll();
+    }
+
+    /**
+     * Whether caching one more icon would evict another.  Callers loading
+     * icons ahead of time should stop there.
+     */
+    public boolean isFull() {
+        return mCache.size() + mIconSize * mIconSize * 4 > mCache.maxSize();
+    }
+
+    public void addOnIconEvictedListener(OnIconEvictedListener listener) {
+        synchronized (mEvictedListeners) {
+            mEvictedListeners.add(listener);
+        }
+    }
+
+    public void removeOnIconEvictedListener(OnIconEvictedListener listener) {
+        synchronized (mEvictedListeners) {
+            mEvictedListeners.remove(listener);
+        }
+    }
+
+    public int getHitCount() {
+        return mCache.hitCount();
+    }
+
+    public int getMissCount() {
+        return mCache.missCount();
+    }
+
+    public int getEvictionCount() {
+        return mCache.evictionCount();
+    }
+
+    /**
+     * Number of bytes currently held by cached bitmaps.
+     */
+    public int getSize() {
+        return mCache.size();
+    }
+
+    public int getMaxSize() {
+        return mCache.maxSize();
+    }
+
+    @Override
+    public String toString() {
+        return "IconCache{" + getSize() + "/" + getMaxSize() + " bytes, hits="
+                + getHitCount() + ", misses=" + getMissCount()
+                + ", evictions=" + getEvictionCount() + "}";
+    }
+
+    private static String keyFor(ApplicationInfo info) {
+        final long stamp = info.sourceDir != null ? new File(info.sourceDir).lastModified() : 0;
+        return info.packageName + ":" + UserHandle.getUserId(info.uid) + ":" + stamp;
+    }
+
+    private void notifyEvicted(String packageName, Bitmap icon) {
+        final OnIconEvictedListener[] listeners;
+        synchronized (mEvictedListeners) {
+            listeners = mEvictedListeners.toArray(
+                    new OnIconEvictedListener[mEvictedListeners.size()]);
+        }
+        for (int i=0; i<listeners.length; i++) {
+            listeners[i].onIconEvicted(packageName, icon);
+        }
+    }
+
+    /**
+     * Fits the icon into a square of the list icon size, keeping its aspect
+     * ratio.  Bitmaps that already fit are returned as they are.
+     */
+    private Bitmap scale(Drawable icon) {
+        if (icon instanceof BitmapDrawable) {
+            Bitmap src = ((BitmapDrawable) icon).getBitmap();
+            final int width = src.getWidth();
+            final int height = src.getHeight();
+            if (width <= mIconSize && height <= mIconSize) {
+                return src;
+            }
+            final float scale = Math.min((float) mIconSize / width, (float) mIconSize / height);
+            return Bitmap.createScaledBitmap(src, Math.max(1, Math.round(width * scale)),
+                    Math.max(1, Math.round(height * scale)), true);
+        }
+        Bitmap bm = Bitmap.createBitmap(mIconSize, mIconSize, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bm);
+        final int width = icon.getIntrinsicWidth();
+        final int height = icon.getIntrinsicHeight();
+        if (width > 0 && height > 0) {
+            // centered, as large as fits
+            final float scale = Math.min((float) mIconSize / width, (float) mIconSize / height);
+            final int w = Math.round(width * scale);
+            final int h = Math.round(height * scale);
+            final int left = (mIconSize - w) / 2;
+            final int top = (mIconSize - h) / 2;
+            icon.setBounds(left, top, left + w, top + h);
+        } else {
+            // no intrinsic size, e.g. a color; it fills whatever it's given
+            icon.setBounds(0, 0, mIconSize, mIconSize);
+        }
+        icon.draw(canvas);
+        return bm;
+    }
+}
@@ -597,6 +597,9 @@ public class Settings extends PreferenceActivity
                 try {
                     if (!netManager.isBandwidthControlEnabled()) {
                         target.remove(i);
+                    } else {
+                        // get stats ready before the header is tapped
+                        DataUsageWarmup.warmUp(this);
                     }
                 } catch (RemoteException e) {
                     // ignored
@@ -0,0 +1,581 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.app.ActivityManager;
+import android.app.INotificationManager;
+import android.app.admin.DevicePolicyManager;
+import android.appwidget.AppWidgetManager;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.IntentFilter;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.hardware.usb.IUsbManager;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.RemoteException;
+import android.os.ServiceManager;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.os.UserManager;
+import android.util.Log;
+
+import com.android.internal.telephony.ISms;
+import com.android.internal.telephony.SmsUsageMonitor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the queries behind {@link InstalledAppDetails} in parallel on a small
+ * worker pool, so that the screen waits for the slowest of them instead of
+ * all of them in a row.  The list of apps starts a prefetch once a row is
+ * pressed; the details screen then claims the result with {@link #load},
+ * which starts the queries itself if nothing was prefetched and delivers
+ * the details to a callback on the main thread without ever blocking it.
+ */
+final class AppDetailsPrefetcher {
+    static final String TAG = "AppDetailsPrefetcher";
+    static final boolean DEBUG = false;
+
+    // How long a prefetch that nobody claimed, or details that were already
+    // shown, stay usable.
+    static final long PREFETCH_TIMEOUT = 5000;
+    // Prefetches kept at once; each one is a dozen queries.
+    static final int MAX_PENDING = 2;
+
+    static final int POOL_SIZE = 4;
+    static final int KEEP_ALIVE_SECONDS = 10;
+
+    static final int QUERY_PACKAGE_INFO = 0;
+    static final int QUERY_SYSTEM_SIGNED = 1;
+    static final int QUERY_HOME = 2;
+    static final int QUERY_PREFERRED_ACTIVITIES = 3;
+    static final int QUERY_USB_DEFAULTS = 4;
+    static final int QUERY_BIND_APPWIDGET = 5;
+    static final int QUERY_PREMIUM_SMS = 6;
+    static final int QUERY_NOTIFICATIONS = 7;
+    static final int QUERY_ACTIVE_ADMINS = 8;
+    static final int QUERY_USER_COUNT = 9;
+    static final int QUERY_SCREEN_COMPAT = 10;
+    static final int QUERY_SHARED_USER = 11;
+    static final int QUERY_COUNT = 12;
+
+    static final String[] QUERY_NAMES = new String[] {
+        "package_info", "system_signed", "home", "preferred_activities", "usb_defaults",
+        "bind_appwidget", "premium_sms", "notifications", "active_admins", "user_count",
+        "screen_compat", "shared_user"
+    };
+
+    static Object sGlobalLock = new Object();
+    static AppDetailsPrefetcher sInstance;
+
+    /**
+     * Everything the details screen shows about a package apart from its
+     * sizes and permissions, as of when the queries ran.
+     */
+    static final class AppDetails {
+        final String mPackageName;
+        // Null if the package could not be found.
+        final PackageInfo mPackageInfo;
+        final boolean mSystemSigned;
+        final Set<String> mHomePackages;
+        final ComponentName mCurrentDefaultHome;
+        final int mPreferredActivityCount;
+        final boolean mHasUsbDefaults;
+        final boolean mHasBindAppWidgetPermission;
+        final int mPremiumSmsPermission;
+        final boolean mNotificationsEnabled;
+        final boolean mHasActiveAdmins;
+        final int mUserCount;
+        final int mScreenCompatMode;
+        // Labels of the other packages sharing the app's user id.
+        final List<CharSequence> mSharedUserLabels;
+
+        private final long[] mQueryNanos;
+        // Uptime when the queries were started.
+        private final long mTime;
+        private final long mWaitNanos;
+
+        AppDetails(String packageName, Object[] results, long[] queryNanos, long time,
+                long waitNanos) {
+            mPackageName = packageName;
+            mPackageInfo = (PackageInfo) results[QUERY_PACKAGE_INFO];
+            final PackageInfo sys = (PackageInfo) results[QUERY_SYSTEM_SIGNED];
+            mSystemSigned = sys != null && mPackageInfo != null
+                    && mPackageInfo.signatures != null
+                    && sys.signatures[0].equals(mPackageInfo.signatures[0]);
+            final HomeInfo home = (HomeInfo) results[QUERY_HOME];
+            mHomePackages = home != null ? home.mPackages : Collections.<String>emptySet();
+            mCurrentDefaultHome = home != null ? home.mCurrentDefault : null;
+            mPreferredActivityCount = toInt(results[QUERY_PREFERRED_ACTIVITIES], 0);
+            mHasUsbDefaults = toBoolean(results[QUERY_USB_DEFAULTS]);
+            mHasBindAppWidgetPermission = toBoolean(results[QUERY_BIND_APPWIDGET]);
+            mPremiumSmsPermission = toInt(results[QUERY_PREMIUM_SMS],
+                    SmsUsageMonitor.PREMIUM_SMS_PERMISSION_UNKNOWN);
+            // Notifications are on unless we learn otherwise.
+            mNotificationsEnabled = results[QUERY_NOTIFICATIONS] == null
+                    || toBoolean(results[QUERY_NOTIFICATIONS]);
+            mHasActiveAdmins = toBoolean(results[QUERY_ACTIVE_ADMINS]);
+            mUserCount = toInt(results[QUERY_USER_COUNT], 1);
+            mScreenCompatMode = toInt(results[QUERY_SCREEN_COMPAT],
+                    ActivityManager.COMPAT_MODE_UNKNOWN);
+            @SuppressWarnings("unchecked")
+            final List<CharSequence> labels = (List<CharSequence>) results[QUERY_SHARED_USER];
+            mSharedUserLabels = labels != null ? labels : Collections.<CharSequence>emptyList();
+            mQueryNanos = queryNanos;
+            mTime = time;
+            mWaitNanos = waitNanos;
+        }
+
+        /**
+         * Whether these details are too old to show again without fetching
+         * them anew.
+         */
+        boolean isStale() {
+            return SystemClock.uptimeMillis() - mTime > PREFETCH_TIMEOUT;
+        }
+
+        /**
+         * Time the given query took on its worker thread.
+         */
+        long getQueryNanos(int query) {
+            return mQueryNanos[query];
+        }
+
+        /**
+         * Time from {@link AppDetailsPrefetcher#load} until the queries were
+         * done and the details delivered.
+         */
+        long getWaitNanos() {
+            return mWaitNanos;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(256);
+            sb.append("AppDetails{");
+            sb.append(mPackageName);
+            sb.append(" waited=");
+            sb.append(mWaitNanos/1000);
+            sb.append("us");
+            for (int i=0; i<QUERY_COUNT; i++) {
+                sb.append(' ');
+                sb.append(QUERY_NAMES[i]);
+                sb.append('=');
+                sb.append(mQueryNanos[i]/1000);
+                sb.append("us");
+            }
+            sb.append('}');
+            return sb.toString();
+        }
+
+        private static boolean toBoolean(Object value) {
+            return value != null && (Boolean) value;
+        }
+
+        private static int toInt(Object value, int def) {
+            return value != null ? (Integer) value : def;
+        }
+    }
+
+    static final class HomeInfo {
+        final Set<String> mPackages;
+        final ComponentName mCurrentDefault;
+
+        HomeInfo(Set<String> packages, ComponentName currentDefault) {
+            mPackages = packages;
+            mCurrentDefault = currentDefault;
+        }
+    }
+
+    /**
+     * One set of queries for a package, in flight or done.  The queries run
+     * on the worker pool; everything else is only touched on the main thread.
+     */
+    final class Request {
+        final String mPackageName;
+        final long mStartTime;
+        final Future<?>[] mFutures = new Future<?>[QUERY_COUNT];
+        final Object[] mResults = new Object[QUERY_COUNT];
+        final long[] mQueryNanos = new long[QUERY_COUNT];
+        final AtomicInteger mRemaining = new AtomicInteger(QUERY_COUNT);
+
+        final Runnable mFinished = new Runnable() {
+            @Override
+            public void run() {
+                mDone = true;
+                if (mCallback != null) {
+                    deliver();
+                }
+            }
+        };
+
+        boolean mDone;
+        boolean mCancelled;
+        // Set once the request is claimed.
+        Callback mCallback;
+        long mClaimTime;
+
+        Request(String packageName) {
+            mPackageName = packageName;
+            mStartTime = SystemClock.uptimeMillis();
+            for (int i=0; i<QUERY_COUNT; i++) {
+                final int query = i;
+                mFutures[i] = mExecutor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        final long start = SystemClock.elapsedRealtimeNanos();
+                        try {
+                            mResults[query] = runQuery(query, mPackageName);
+                        } catch (Exception e) {
+                            Log.w(TAG, "Query " + QUERY_NAMES[query] + " of " + mPackageName
+                                    + " failed", e);
+                        } finally {
+                            mQueryNanos[query] = SystemClock.elapsedRealtimeNanos() - start;
+                        }
+                        if (mRemaining.decrementAndGet() == 0) {
+                            mHandler.post(mFinished);
+                        }
+                    }
+                });
+            }
+        }
+
+        boolean isStale() {
+            return SystemClock.uptimeMillis() - mStartTime > PREFETCH_TIMEOUT;
+        }
+
+        void claim(Callback callback) {
+            mCallback = callback;
+            mClaimTime = SystemClock.elapsedRealtimeNanos();
+            mClaimed.put(callback, this);
+            if (mDone) {
+                deliver();
+            }
+        }
+
+        void cancel() {
+            mCancelled = true;
+            mCallback = null;
+            mHandler.removeCallbacks(mFinished);
+            for (int i=0; i<QUERY_COUNT; i++) {
+                // Binder calls can't be interrupted; this only drops the
+                // queries that haven't started yet.
+                mFutures[i].cancel(false);
+            }
+        }
+
+        private void deliver() {
+            final Callback callback = mCallback;
+            mCallback = null;
+            mClaimed.remove(callback);
+            if (mCancelled) {
+                return;
+            }
+            final AppDetails details = new AppDetails(mPackageName, mResults, mQueryNanos,
+                    mStartTime, SystemClock.elapsedRealtimeNanos() - mClaimTime);
+            if (DEBUG) Log.d(TAG, details.toString());
+            callback.onDetailsLoaded(details);
+        }
+    }
+
+    static interface Callback {
+        public void onDetailsLoaded(AppDetails details);
+    }
+
+    final Context mContext;
+    final PackageManager mPm;
+    final ActivityManager mAm;
+    final UserManager mUm;
+    final DevicePolicyManager mDpm;
+    final AppWidgetManager mAppWidgetManager;
+    final ThreadPoolExecutor mExecutor;
+    final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // Only touched on the main thread.
+    // Prefetched requests nobody has claimed yet, by package name, oldest first.
+    final LinkedHashMap<String, Request> mPending = new LinkedHashMap<String, Request>();
+    // Claimed requests still running, by the callback waiting for them.
+    final HashMap<Callback, Request> mClaimed = new HashMap<Callback, Request>();
+
+    static AppDetailsPrefetcher getInstance(Context context) {
+        synchronized (sGlobalLock) {
+            if (sInstance == null) {
+                sInstance = new AppDetailsPrefetcher(context.getApplicationContext());
+            }
+            return sInstance;
+        }
+    }
+
+    private AppDetailsPrefetcher(Context context) {
+        mContext = context;
+        mPm = context.getPackageManager();
+        mAm = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        mUm = (UserManager) context.getSystemService(Context.USER_SERVICE);
+        mDpm = (DevicePolicyManager) context.getSystemService(Context.DEVICE_POLICY_SERVICE);
+        mAppWidgetManager = AppWidgetManager.getInstance(context);
+        mExecutor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            int mCount;
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "AppDetailsPrefetcher #" + (++mCount));
+            }
+        });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Starts fetching the details of the given package, unless that is
+     * already under way.  At most {@link #MAX_PENDING} prefetches are kept,
+     * dropping the oldest.  Must be called on the main thread.
+     */
+    void prefetch(String packageName) {
+        if (packageName == null) {
+            return;
+        }
+        evictStale();
+        if (mPending.containsKey(packageName)) {
+            return;
+        }
+        while (mPending.size() >= MAX_PENDING) {
+            final Iterator<Request> it = mPending.values().iterator();
+            final Request oldest = it.next();
+            it.remove();
+            if (DEBUG) Log.d(TAG, "Dropping prefetch of " + oldest.mPackageName);
+            oldest.cancel();
+        }
+        if (DEBUG) Log.d(TAG, "Prefetching " + packageName);
+        mPending.put(packageName, new Request(packageName));
+    }
+
+    /**
+     * Drops an unclaimed prefetch of the given package, e.g. because the
+     * touch that started it turned out to be a scroll.  Must be called on
+     * the main thread.
+     */
+    void cancelPrefetch(String packageName) {
+        final Request request = mPending.remove(packageName);
+        if (request != null) {
+            if (DEBUG) Log.d(TAG, "Cancelling prefetch of " + packageName);
+            request.cancel();
+        }
+    }
+
+    /**
+     * Delivers the details of the given package to the callback on the main
+     * thread, claiming a prefetch of them if there is a recent enough one
+     * and fetching them otherwise.  If they are already there the callback
+     * runs before this returns.  Replaces any load the callback was still
+     * waiting for.  Must be called on the main thread.
+     */
+    void load(String packageName, Callback callback) {
+        cancel(callback);
+        evictStale();
+        Request request = mPending.remove(packageName);
+        if (request == null) {
+            request = new Request(packageName);
+        }
+        request.claim(callback);
+    }
+
+    /**
+     * Stops the load the callback is waiting for, if any.  Must be called on
+     * the main thread.
+     */
+    void cancel(Callback callback) {
+        final Request request = mClaimed.remove(callback);
+        if (request != null) {
+            request.cancel();
+        }
+    }
+
+    private void evictStale() {
+        final Iterator<Request> it = mPending.values().iterator();
+        while (it.hasNext()) {
+            final Request request = it.next();
+            if (request.isStale()) {
+                it.remove();
+                request.cancel();
+            }
+        }
+    }
+
+    Object runQuery(int query, String packageName) throws Exception {
+        switch (query) {
+            case QUERY_PACKAGE_INFO:
+                try {
+                    return mPm.getPackageInfo(packageName,
+                            PackageManager.GET_DISABLED_COMPONENTS |
+                            PackageManager.GET_UNINSTALLED_PACKAGES |
+                            PackageManager.GET_SIGNATURES);
+                } catch (PackageManager.NameNotFoundException e) {
+                    Log.e(TAG, "Exception when retrieving package:" + packageName, e);
+                    return null;
+                }
+            case QUERY_SYSTEM_SIGNED:
+                try {
+                    return mPm.getPackageInfo("android", PackageManager.GET_SIGNATURES);
+                } catch (PackageManager.NameNotFoundException e) {
+                    return null;
+                }
+            case QUERY_HOME:
+                return queryHome();
+            case QUERY_PREFERRED_ACTIVITIES: {
+                // Intent list cannot be null. so pass empty list
+                List<ComponentName> prefActList = new ArrayList<ComponentName>();
+                List<IntentFilter> intentList = new ArrayList<IntentFilter>();
+                mPm.getPreferredActivities(intentList, prefActList, packageName);
+                return prefActList.size();
+            }
+            case QUERY_USB_DEFAULTS:
+                try {
+                    IUsbManager usb = IUsbManager.Stub.asInterface(
+                            ServiceManager.getService(Context.USB_SERVICE));
+                    return usb.hasDefaults(packageName, UserHandle.myUserId());
+                } catch (RemoteException e) {
+                    Log.e(TAG, "mUsbManager.hasDefaults", e);
+                    return false;
+                }
+            case QUERY_BIND_APPWIDGET:
+                return mAppWidgetManager.hasBindAppWidgetPermission(packageName);
+            case QUERY_PREMIUM_SMS:
+                try {
+                    ISms sms = ISms.Stub.asInterface(ServiceManager.getService("isms"));
+                    if (sms != null) {
+                        return sms.getPremiumSmsPermission(packageName);
+                    }
+                } catch (RemoteException ex) {
+                    // ignored
+                }
+                return SmsUsageMonitor.PREMIUM_SMS_PERMISSION_UNKNOWN;
+            case QUERY_NOTIFICATIONS:
+                try {
+                    INotificationManager nm = INotificationManager.Stub.asInterface(
+                            ServiceManager.getService(Context.NOTIFICATION_SERVICE));
+                    final ApplicationInfo info = mPm.getApplicationInfo(packageName,
+                            PackageManager.GET_UNINSTALLED_PACKAGES
+                            | PackageManager.GET_DISABLED_COMPONENTS);
+                    return nm.areNotificationsEnabledForPackage(packageName, info.uid);
+                } catch (PackageManager.NameNotFoundException e) {
+                    return true;
+                } catch (RemoteException ex) {
+                    // this does not bode well
+                    return true;
+                }
+            case QUERY_ACTIVE_ADMINS:
+                return mDpm.packageHasActiveAdmins(packageName);
+            case QUERY_USER_COUNT:
+                return mUm.getUsers().size();
+            case QUERY_SCREEN_COMPAT:
+                return mAm.getPackageScreenCompatMode(packageName);
+            case QUERY_SHARED_USER:
+                return querySharedUserLabels(packageName);
+        }
+        return null;
+    }
+
+    private HomeInfo queryHome() {
+        // Get list of "home" apps and trace through any meta-data references
+        List<ResolveInfo> homeActivities = new ArrayList<ResolveInfo>();
+        ComponentName currentDefaultHome = mPm.getHomeActivities(homeActivities);
+        HashSet<String> homePackages = new HashSet<String>();
+        for (int i = 0; i< homeActivities.size(); i++) {
+            ResolveInfo ri = homeActivities.get(i);
+            final String activityPkg = ri.activityInfo.packageName;
+            homePackages.add(activityPkg);
+
+            // Also make sure to include anything proxying for the home app
+            final Bundle metadata = ri.activityInfo.metaData;
+            if (metadata != null) {
+                final String metaPkg = metadata.getString(ActivityManager.META_HOME_ALTERNATE);
+                if (signaturesMatch(metaPkg, activityPkg)) {
+                    homePackages.add(metaPkg);
+                }
+            }
+        }
+        return new HomeInfo(Collections.unmodifiableSet(homePackages), currentDefaultHome);
+    }
+
+    private boolean signaturesMatch(String pkg1, String pkg2) {
+        if (pkg1 != null && pkg2 != null) {
+            try {
+                final int match = mPm.checkSignatures(pkg1, pkg2);
+                if (match >= PackageManager.SIGNATURE_MATCH) {
+                    return true;
+                }
+            } catch (Exception e) {
+                // e.g. named alternate package not found during lookup;
+                // this is an expected case sometimes
+            }
+        }
+        return false;
+    }
+
+    private List<CharSequence> querySharedUserLabels(String packageName) {
+        final ApplicationInfo info;
+        try {
+            info = mPm.getApplicationInfo(packageName,
+                    PackageManager.GET_UNINSTALLED_PACKAGES
+                    | PackageManager.GET_DISABLED_COMPONENTS);
+        } catch (PackageManager.NameNotFoundException e) {
+            return null;
+        }
+        String[] packages = mPm.getPackagesForUid(info.uid);
+        if (packages == null || packages.length <= 1) {
+            return null;
+        }
+        ArrayList<CharSequence> pnames = new ArrayList<CharSequence>();
+        for (int i=0; i<packages.length; i++) {
+            String pkg = packages[i];
+            if (packageName.equals(pkg)) {
+                continue;
+            }
+            try {
+                ApplicationInfo ainfo = mPm.getApplicationInfo(pkg, 0);
+                pnames.add(ainfo.loadLabel(mPm));
+            } catch (PackageManager.NameNotFoundException e) {
+            }
+        }
+        return Collections.unmodifiableList(pnames);
+    }
+}
@@ -0,0 +1,349 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Compact on-disk snapshot of {@link ApplicationsState.AppEntry} data, so
+ * that a cold start of the applications list can show labels, sizes and
+ * icons without going back to the package manager for every package.
+ *
+ * <p>Records are keyed by package name plus the modification time of the
+ * package's apk, and the whole file is discarded if the configuration it
+ * was written for (locale, density) no longer matches.  Icons are stored as
+ * PNGs already scaled to the list row size and are only decoded when a row
+ * actually needs them.
+ */
+class AppEntryCache {
+    static final String TAG = "AppEntryCache";
+    static final boolean DEBUG = false;
+
+    static final String FILE_NAME = "app_entries.snapshot";
+
+    private static final int MAGIC = 0x41505053; // 'APPS'
+    private static final int VERSION = 1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    static final class Record {
+        final String packageName;
+        final long stamp;
+        final String label;
+        final String normalizedLabel;
+        final long size;
+        final long internalSize;
+        final long externalSize;
+        final long cacheSize;
+        final long codeSize;
+        final long dataSize;
+        final long externalCodeSize;
+        final long externalDataSize;
+        final long externalCacheSize;
+
+        // Window into the mapped file holding the encoded icon, or null.
+        final ByteBuffer iconData;
+
+        Record(String packageName, long stamp, String label, String normalizedLabel,
+                long size, long internalSize, long externalSize, long cacheSize,
+                long codeSize, long dataSize, long externalCodeSize,
+                long externalDataSize, long externalCacheSize, ByteBuffer iconData) {
+            this.packageName = packageName;
+            this.stamp = stamp;
+            this.label = label;
+            this.normalizedLabel = normalizedLabel;
+            this.size = size;
+            this.internalSize = internalSize;
+            this.externalSize = externalSize;
+            this.cacheSize = cacheSize;
+            this.codeSize = codeSize;
+            this.dataSize = dataSize;
+            this.externalCodeSize = externalCodeSize;
+            this.externalDataSize = externalDataSize;
+            this.externalCacheSize = externalCacheSize;
+            this.iconData = iconData;
+        }
+
+        Bitmap decodeIcon() {
+            if (iconData == null) {
+                return null;
+            }
+            byte[] bytes = new byte[iconData.remaining()];
+            iconData.duplicate().get(bytes);
+            return BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
+        }
+    }
+
+    private final Context mContext;
+    private final AtomicFile mFile;
+    private final int mIconSize;
+
+    // Only touched while holding the ApplicationsState entries lock.
+    private HashMap<String, Record> mRecords = new HashMap<String, Record>();
+
+    AppEntryCache(Context context) {
+        mContext = context;
+        mFile = new AtomicFile(new File(context.getCacheDir(), FILE_NAME));
+        mIconSize = context.getResources().getDimensionPixelSize(
+                android.R.dimen.app_icon_size);
+    }
+
+    static long stampFor(File apkFile) {
+        return apkFile.lastModified();
+    }
+
+    /**
+     * Returns a key describing the parts of the configuration that affect
+     * labels and icons; a snapshot written under a different key is ignored.
+     */
+    String configKey() {
+        Resources res = mContext.getResources();
+        return res.getConfiguration().locale + "/" + res.getDisplayMetrics().densityDpi;
+    }
+
+    /**
+     * Maps the snapshot file and indexes its records, if it was written
+     * under the given configuration key.  Doesn't touch the records in use,
+     * so it can run without the entries lock; see {@link #setRecords}.
+     */
+    HashMap<String, Record> read(String configKey) {
+        HashMap<String, Record> records = new HashMap<String, Record>();
+        File file = mFile.getBaseFile();
+        if (!file.exists()) {
+            return records;
+        }
+        FileInputStream in = null;
+        try {
+            in = mFile.openRead();
+            FileChannel channel = in.getChannel();
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+            if (buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+                Log.i(TAG, "Discarding snapshot with unknown format");
+                return records;
+            }
+            if (!configKey.equals(readString(buf))) {
+                if (DEBUG) Log.i(TAG, "Discarding snapshot for old configuration");
+                return records;
+            }
+            final int N = buf.getInt();
+            for (int i=0; i<N; i++) {
+                String pkg = readString(buf);
+                long stamp = buf.getLong();
+                String label = readString(buf);
+                String normalizedLabel = readString(buf);
+                long size = buf.getLong();
+                long internalSize = buf.getLong();
+                long externalSize = buf.getLong();
+                long cacheSize = buf.getLong();
+                long codeSize = buf.getLong();
+                long dataSize = buf.getLong();
+                long externalCodeSize = buf.getLong();
+                long externalDataSize = buf.getLong();
+                long externalCacheSize = buf.getLong();
+                int iconLen = buf.getInt();
+                ByteBuffer icon = null;
+                if (iconLen > 0) {
+                    icon = buf.slice();
+                    icon.limit(iconLen);
+                    buf.position(buf.position() + iconLen);
+                }
+                records.put(pkg, new Record(pkg, stamp, label, normalizedLabel, size,
+                        internalSize, externalSize, cacheSize, codeSize, dataSize,
+                        externalCodeSize, externalDataSize, externalCacheSize, icon));
+            }
+            if (DEBUG) Log.i(TAG, "Loaded " + N + " snapshot records");
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read snapshot", e);
+            records.clear();
+        } catch (BufferUnderflowException e) {
+            Log.w(TAG, "Truncated snapshot", e);
+            records.clear();
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Corrupt snapshot", e);
+            records.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Makes the given records, as returned by {@link #read}, the ones
+     * {@link #take} answers from.
+     */
+    void setRecords(HashMap<String, Record> records) {
+        mRecords = records;
+    }
+
+    /**
+     * Returns the snapshot record for the given entry if it is still valid
+     * for the package's current apk, removing it from the index either way.
+     */
+    Record take(ApplicationInfo info) {
+        Record r = mRecords.remove(info.packageName);
+        if (r != null && r.stamp == stampFor(new File(info.sourceDir))) {
+            return r;
+        }
+        return null;
+    }
+
+    void clear() {
+        mRecords.clear();
+    }
+
+    /**
+     * Writes a new snapshot of the given entries.  Must be called off the
+     * main thread; the entries are read under their own lock.
+     */
+    void write(ArrayList<ApplicationsState.AppEntry> entries) {
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeString(out, configKey());
+            // Entries on unmounted storage only have placeholder data.
+            ArrayList<ApplicationsState.AppEntry> mounted
+                    = new ArrayList<ApplicationsState.AppEntry>(entries.size());
+            for (int i=0; i<entries.size(); i++) {
+                if (entries.get(i).mounted) {
+                    mounted.add(entries.get(i));
+                }
+            }
+            out.writeInt(mounted.size());
+            ByteArrayOutputStream iconBytes = new ByteArrayOutputStream();
+            for (int i=0; i<mounted.size(); i++) {
+                ApplicationsState.AppEntry entry = mounted.get(i);
+                synchronized (entry) {
+                    writeString(out, entry.info.packageName);
+                    out.writeLong(stampFor(entry.apkFile));
+                    writeString(out, entry.label);
+                    writeString(out, entry.getNormalizedLabel());
+                    out.writeLong(entry.size);
+                    out.writeLong(entry.internalSize);
+                    out.writeLong(entry.externalSize);
+                    out.writeLong(entry.cacheSize);
+                    out.writeLong(entry.codeSize);
+                    out.writeLong(entry.dataSize);
+                    out.writeLong(entry.externalCodeSize);
+                    out.writeLong(entry.externalDataSize);
+                    out.writeLong(entry.externalCacheSize);
+                    iconBytes.reset();
+                    if (entry.cachedIcon != null) {
+                        ByteBuffer data = entry.cachedIcon.iconData.duplicate();
+                        while (data.hasRemaining()) {
+                            iconBytes.write(data.get());
+                        }
+                    } else if (entry.icon != null) {
+                        encodeIcon(entry.icon, iconBytes);
+                    }
+                    out.writeInt(iconBytes.size());
+                    iconBytes.writeTo(out);
+                }
+            }
+            out.flush();
+            mFile.finishWrite(fos);
+            if (DEBUG) Log.i(TAG, "Wrote snapshot of " + mounted.size() + " entries");
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write snapshot", e);
+            if (fos != null) {
+                mFile.failWrite(fos);
+            }
+        }
+    }
+
+    private void encodeIcon(Drawable icon, ByteArrayOutputStream out) {
+        if (icon instanceof BitmapDrawable) {
+            // already fitted into the icon size by IconCache
+            ((BitmapDrawable) icon).getBitmap().compress(Bitmap.CompressFormat.PNG, 100, out);
+            return;
+        }
+        Bitmap bm = Bitmap.createBitmap(mIconSize, mIconSize, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bm);
+        // Draw a private copy so we don't disturb the bounds of the drawable
+        // the list may be drawing at the same time.
+        Drawable.ConstantState state = icon.getConstantState();
+        Drawable d = state != null ? state.newDrawable(mContext.getResources()) : icon;
+        final int width = d.getIntrinsicWidth();
+        final int height = d.getIntrinsicHeight();
+        if (width > 0 && height > 0) {
+            // centered, as large as fits, like IconCache does
+            final float scale = Math.min((float) mIconSize / width, (float) mIconSize / height);
+            final int w = Math.round(width * scale);
+            final int h = Math.round(height * scale);
+            final int left = (mIconSize - w) / 2;
+            final int top = (mIconSize - h) / 2;
+            d.setBounds(left, top, left + w, top + h);
+        } else {
+            d.setBounds(0, 0, mIconSize, mIconSize);
+        }
+        d.draw(canvas);
+        bm.compress(Bitmap.CompressFormat.PNG, 100, out);
+        bm.recycle();
+    }
+
+    private static String readString(ByteBuffer buf) {
+        int len = buf.getInt();
+        if (len < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[len];
+        buf.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static void writeString(DataOutputStream out, String str) throws IOException {
+        if (str == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = str.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
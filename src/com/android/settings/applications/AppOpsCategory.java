@@ -43,7 +43,7 @@ import com.android.settings.R;
 import com.android.settings.applications.AppOpsState.AppOpEntry;
 
 public class AppOpsCategory extends ListFragment implements
-        LoaderManager.LoaderCallbacks<List<AppOpEntry>> {
+        LoaderManager.LoaderCallbacks<List<AppOpEntry>>, AppOpsState.OnEntryChangedListener {
 
     private static final int RESULT_APP_DETAILS = 1;
 
@@ -105,8 +105,9 @@ public class AppOpsCategory extends ListFragment implements
         }
 
         @Override public void onReceive(Context context, Intent intent) {
-            // Tell the loader about the change.
-            mLoader.onContentChanged();
+            // Listening fragments reload their loader when told the
+            // entries were invalidated.
+            AppOpsState.invalidateCache();
         }
     }
 
@@ -128,7 +129,7 @@ public class AppOpsCategory extends ListFragment implements
         }
 
         @Override public List<AppOpEntry> loadInBackground() {
-            return mState.buildState(mTemplate);
+            return mState.getCachedState(mTemplate);
         }
 
         /**
@@ -327,6 +328,46 @@ public class AppOpsCategory extends ListFragment implements
         getLoaderManager().initLoader(0, null, this);
     }
 
+    // Listens for as long as the loader is started, so that it never misses
+    // an invalidation.
+    @Override
+    public void onStart() {
+        super.onStart();
+        AppOpsState.registerEntryListener(this);
+    }
+
+    @Override
+    public void onStop() {
+        super.onStop();
+        AppOpsState.unregisterEntryListener(this);
+    }
+
+    @Override
+    public void onEntryChanged(AppOpEntry entry, boolean reordered) {
+        if (mAdapter.mList == null) {
+            return;
+        }
+        if (reordered) {
+            mAdapter.notifyDataSetChanged();
+            return;
+        }
+        // Only rebind the row of the entry, if it is on screen.
+        final int position = mAdapter.mList.indexOf(entry);
+        final ListView list = getListView();
+        final int first = list.getFirstVisiblePosition();
+        if (position >= first && position <= list.getLastVisiblePosition()) {
+            mAdapter.getView(position, list.getChildAt(position - first), list);
+        }
+    }
+
+    @Override
+    public void onEntriesInvalidated() {
+        Loader<List<AppOpEntry>> loader = getLoaderManager().getLoader(0);
+        if (loader != null) {
+            loader.onContentChanged();
+        }
+    }
+
     // utility method used to start sub activity
     private void startApplicationDetailsActivity() {
         // start new fragment to display extended information
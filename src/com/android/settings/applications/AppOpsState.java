@@ -24,17 +24,22 @@ import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.res.Resources;
 import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.Parcel;
 import android.os.Parcelable;
+import android.os.SystemClock;
 import android.text.format.DateUtils;
 
 import android.util.Log;
 import android.util.SparseArray;
+import com.android.settings.IconCache;
 import com.android.settings.R;
 
 import java.io.File;
 import java.text.Collator;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -52,6 +57,54 @@ public class AppOpsState {
 
     List<AppOpEntry> mApps;
 
+    // Entries of ALL_TEMPLATES shared by every caller of getCachedState().
+    // Op usage times change without any notification, so the cache also
+    // expires after a while.
+    static final long CACHE_MAX_AGE = 60*1000;
+    static final Object sCacheLock = new Object();
+    static final Object sBuildLock = new Object();
+    static ArrayList<List<AppOpEntry>> sCachedStates;
+    static long sCacheTime;
+    static int sCacheGeneration;
+    static final AppOpsCategory.InterestingConfigChanges sCacheConfig
+            = new AppOpsCategory.InterestingConfigChanges();
+
+    // Live index of the shared entries by (uid, package, op), and the state
+    // watching their modes while they are cached.
+    static HashMap<String, AppOpEntry> sEntryIndex;
+    static AppOpsState sWatchingState;
+
+    // Only touched on the main thread.
+    static final ArrayList<OnEntryChangedListener> sEntryListeners
+            = new ArrayList<OnEntryChangedListener>();
+    static Handler sMainHandler;
+
+    static final AppOpsManager.OnOpChangedInternalListener sOpWatcher
+            = new AppOpsManager.OnOpChangedInternalListener() {
+        @Override
+        public void onOpChanged(int op, String packageName) {
+            if (DEBUG) Log.d(TAG, "Op " + op + " changed for " + packageName);
+            onCachedOpChanged(op, packageName);
+        }
+    };
+
+    /**
+     * Told on the main thread about changes to the entries shared through
+     * {@link #getCachedState}.
+     */
+    public interface OnEntryChangedListener {
+        /**
+         * The ops of the given entry were updated in place.  If
+         * {@code reordered} is set, the list holding it was sorted again.
+         */
+        public void onEntryChanged(AppOpEntry entry, boolean reordered);
+
+        /**
+         * The shared entries were dropped and must be fetched again.
+         */
+        public void onEntriesInvalidated();
+    }
+
     public AppOpsState(Context context) {
         mContext = context;
         mAppOps = (AppOpsManager)context.getSystemService(Context.APP_OPS_SERVICE);
@@ -236,6 +289,11 @@ public class AppOpsState {
             return mOpSwitches.get(AppOpsManager.opToSwitch(op));
         }
 
+        void clearOps() {
+            mOps.clear();
+            mOpSwitches.clear();
+        }
+
         public ApplicationInfo getApplicationInfo() {
             return mInfo;
         }
@@ -247,7 +305,7 @@ public class AppOpsState {
         public Drawable getIcon() {
             if (mIcon == null) {
                 if (mApkFile.exists()) {
-                    mIcon = mInfo.loadIcon(mState.mPm);
+                    mIcon = IconCache.getInstance(mState.mContext).getIcon(mInfo);
                     return mIcon;
                 } else {
                     mMounted = false;
@@ -257,7 +315,7 @@ public class AppOpsState {
                 // its icon.
                 if (mApkFile.exists()) {
                     mMounted = true;
-                    mIcon = mInfo.loadIcon(mState.mPm);
+                    mIcon = IconCache.getInstance(mState.mContext).getIcon(mInfo);
                     return mIcon;
                 }
             } else {
@@ -326,6 +384,32 @@ public class AppOpsState {
             list.add(op);
         }
 
+        private static boolean replaceOp(ArrayList<AppOpsManager.OpEntry> list,
+                AppOpsManager.OpEntry op) {
+            for (int i=0; i<list.size(); i++) {
+                if (list.get(i).getOp() == op.getOp()) {
+                    list.remove(i);
+                    addOp(list, op);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Replaces the op with the same code by the given, fresher copy.
+         * Returns whether the entry's sort key changed.
+         */
+        boolean updateOp(AppOpsManager.OpEntry op) {
+            final boolean wasRunning = isRunning();
+            final long oldTime = getTime();
+            if (!replaceOp(mOps, op)) {
+                return false;
+            }
+            replaceOp(mSwitchOps, op);
+            return wasRunning != isRunning() || oldTime != getTime();
+        }
+
         public void addOp(AppOpsManager.OpEntry op) {
             mApp.addOp(this, op);
             addOp(mOps, op);
@@ -483,45 +567,55 @@ public class AppOpsState {
     }
 
     public List<AppOpEntry> buildState(OpsTemplate tpl, int uid, String packageName) {
+        return buildStates(new OpsTemplate[] { tpl }, uid, packageName).get(0);
+    }
+
+    /**
+     * Builds the entries of several templates at once.  The ops of all of
+     * the templates are fetched with a single call, the packages holding
+     * their permissions with another, and every app gets one
+     * {@link AppEntry} shared by all of the returned lists.  The result
+     * holds one sorted list per template, in the order given.
+     */
+    public ArrayList<List<AppOpEntry>> buildStates(OpsTemplate[] tpls, int uid,
+            String packageName) {
         final Context context = mContext;
 
         final HashMap<String, AppEntry> appEntries = new HashMap<String, AppEntry>();
-        final List<AppOpEntry> entries = new ArrayList<AppOpEntry>();
-
-        final ArrayList<String> perms = new ArrayList<String>();
-        final ArrayList<Integer> permOps = new ArrayList<Integer>();
-        final int[] opToOrder = new int[AppOpsManager._NUM_OP];
-        for (int i=0; i<tpl.ops.length; i++) {
-            if (tpl.showPerms[i]) {
-                String perm = AppOpsManager.opToPermission(tpl.ops[i]);
-                if (perm != null && !perms.contains(perm)) {
-                    perms.add(perm);
-                    permOps.add(tpl.ops[i]);
-                    opToOrder[tpl.ops[i]] = i;
+        final ArrayList<List<AppOpEntry>> states = new ArrayList<List<AppOpEntry>>(tpls.length);
+
+        // Collect the ops and permissions of all templates, so that they
+        // can be fetched in one go.
+        final boolean[] haveOp = new boolean[AppOpsManager._NUM_OP];
+        int numOps = 0;
+        final ArrayList<String> allPerms = new ArrayList<String>();
+        for (int t=0; t<tpls.length; t++) {
+            final OpsTemplate tpl = tpls[t];
+            for (int i=0; i<tpl.ops.length; i++) {
+                if (!haveOp[tpl.ops[i]]) {
+                    haveOp[tpl.ops[i]] = true;
+                    numOps++;
+                }
+                if (tpl.showPerms[i]) {
+                    String perm = AppOpsManager.opToPermission(tpl.ops[i]);
+                    if (perm != null && !allPerms.contains(perm)) {
+                        allPerms.add(perm);
+                    }
                 }
             }
         }
+        final int[] allOps = new int[numOps];
+        for (int op=0, i=0; op<AppOpsManager._NUM_OP; op++) {
+            if (haveOp[op]) {
+                allOps[i++] = op;
+            }
+        }
 
         List<AppOpsManager.PackageOps> pkgs;
         if (packageName != null) {
-            pkgs = mAppOps.getOpsForPackage(uid, packageName, tpl.ops);
+            pkgs = mAppOps.getOpsForPackage(uid, packageName, allOps);
         } else {
-            pkgs = mAppOps.getPackagesForOps(tpl.ops);
-        }
-
-        if (pkgs != null) {
-            for (int i=0; i<pkgs.size(); i++) {
-                AppOpsManager.PackageOps pkgOps = pkgs.get(i);
-                AppEntry appEntry = getAppEntry(context, appEntries, pkgOps.getPackageName(), null);
-                if (appEntry == null) {
-                    continue;
-                }
-                for (int j=0; j<pkgOps.getOps().size(); j++) {
-                    AppOpsManager.OpEntry opEntry = pkgOps.getOps().get(j);
-                    addOp(entries, pkgOps, appEntry, opEntry, packageName == null,
-                            packageName == null ? 0 : opToOrder[opEntry.getOp()]);
-                }
-            }
+            pkgs = mAppOps.getPackagesForOps(allOps);
         }
 
         List<PackageInfo> apps;
@@ -533,20 +627,70 @@ public class AppOpsState {
             } catch (NameNotFoundException e) {
             }
         } else {
-            String[] permsArray = new String[perms.size()];
-            perms.toArray(permsArray);
+            String[] permsArray = new String[allPerms.size()];
+            allPerms.toArray(permsArray);
             apps = mPm.getPackagesHoldingPermissions(permsArray, 0);
         }
-        for (int i=0; i<apps.size(); i++) {
-            PackageInfo appInfo = apps.get(i);
-            AppEntry appEntry = getAppEntry(context, appEntries, appInfo.packageName,
-                    appInfo.applicationInfo);
-            if (appEntry == null) {
-                continue;
+
+        final ArrayList<String> perms = new ArrayList<String>();
+        final ArrayList<Integer> permOps = new ArrayList<Integer>();
+        final int[] opToOrder = new int[AppOpsManager._NUM_OP];
+        final boolean[] inTemplate = new boolean[AppOpsManager._NUM_OP];
+        for (int t=0; t<tpls.length; t++) {
+            final OpsTemplate tpl = tpls[t];
+            final List<AppOpEntry> entries = new ArrayList<AppOpEntry>();
+
+            // The app entries are shared, but the ops they track are
+            // those of the template being built.
+            for (AppEntry appEntry : appEntries.values()) {
+                appEntry.clearOps();
+            }
+
+            perms.clear();
+            permOps.clear();
+            Arrays.fill(inTemplate, false);
+            for (int i=0; i<tpl.ops.length; i++) {
+                inTemplate[tpl.ops[i]] = true;
+                if (tpl.showPerms[i]) {
+                    String perm = AppOpsManager.opToPermission(tpl.ops[i]);
+                    if (perm != null && !perms.contains(perm)) {
+                        perms.add(perm);
+                        permOps.add(tpl.ops[i]);
+                        opToOrder[tpl.ops[i]] = i;
+                    }
+                }
             }
-            List<AppOpsManager.OpEntry> dummyOps = null;
-            AppOpsManager.PackageOps pkgOps = null;
-            if (appInfo.requestedPermissions != null) {
+
+            if (pkgs != null) {
+                for (int i=0; i<pkgs.size(); i++) {
+                    AppOpsManager.PackageOps pkgOps = pkgs.get(i);
+                    AppEntry appEntry = null;
+                    for (int j=0; j<pkgOps.getOps().size(); j++) {
+                        AppOpsManager.OpEntry opEntry = pkgOps.getOps().get(j);
+                        if (!inTemplate[opEntry.getOp()]) {
+                            continue;
+                        }
+                        if (appEntry == null) {
+                            appEntry = getAppEntry(context, appEntries,
+                                    pkgOps.getPackageName(), null);
+                            if (appEntry == null) {
+                                break;
+                            }
+                        }
+                        addOp(entries, pkgOps, appEntry, opEntry, packageName == null,
+                                packageName == null ? 0 : opToOrder[opEntry.getOp()]);
+                    }
+                }
+            }
+
+            for (int i=0; i<apps.size(); i++) {
+                PackageInfo appInfo = apps.get(i);
+                if (appInfo.requestedPermissions == null) {
+                    continue;
+                }
+                AppEntry appEntry = null;
+                List<AppOpsManager.OpEntry> dummyOps = null;
+                AppOpsManager.PackageOps pkgOps = null;
                 for (int j=0; j<appInfo.requestedPermissions.length; j++) {
                     if (appInfo.requestedPermissionsFlags != null) {
                         if ((appInfo.requestedPermissionsFlags[j]
@@ -562,6 +706,13 @@ public class AppOpsState {
                         if (!perms.get(k).equals(appInfo.requestedPermissions[j])) {
                             continue;
                         }
+                        if (appEntry == null) {
+                            appEntry = getAppEntry(context, appEntries, appInfo.packageName,
+                                    appInfo.applicationInfo);
+                            if (appEntry == null) {
+                                break;
+                            }
+                        }
                         if (DEBUG) Log.d(TAG, "Pkg " + appInfo.packageName + " perm " + perms.get(k)
                                 + " has op " + permOps.get(k) + ": " + appEntry.hasOp(permOps.get(k)));
                         if (appEntry.hasOp(permOps.get(k))) {
@@ -581,12 +732,252 @@ public class AppOpsState {
                     }
                 }
             }
-        }
 
-        // Sort the list.
-        Collections.sort(entries, APP_OP_COMPARATOR);
+            // Sort the list.
+            Collections.sort(entries, APP_OP_COMPARATOR);
+            states.add(entries);
+        }
 
         // Done!
-        return entries;
+        return states;
+    }
+
+    /**
+     * Returns the entries of the given template from a build of all of
+     * {@link #ALL_TEMPLATES} that is shared by every caller, so that moving
+     * between categories does not rebuild anything.  The build is dropped
+     * when the mode of one of its ops changes, when {@link #invalidateCache}
+     * is called, when the locale or density changes, or once it is
+     * {@link #CACHE_MAX_AGE} old.  The returned
+     * list must not be modified.
+     */
+    public List<AppOpEntry> getCachedState(OpsTemplate tpl) {
+        int index = -1;
+        for (int i=0; i<ALL_TEMPLATES.length; i++) {
+            if (Arrays.equals(ALL_TEMPLATES[i].ops, tpl.ops)
+                    && Arrays.equals(ALL_TEMPLATES[i].showPerms, tpl.showPerms)) {
+                index = i;
+                break;
+            }
+        }
+        if (index < 0) {
+            return buildState(tpl);
+        }
+
+        // Only one build at a time; whoever waits gets the fresh result.
+        synchronized (sBuildLock) {
+            final int generation;
+            synchronized (sCacheLock) {
+                // Labels depend on the locale.
+                final boolean configChange = sCacheConfig.applyNewConfig(mContext.getResources());
+                if (sCachedStates != null && !configChange
+                        && (SystemClock.uptimeMillis()-sCacheTime) < CACHE_MAX_AGE) {
+                    return sCachedStates.get(index);
+                }
+                generation = sCacheGeneration;
+            }
+
+            // The cached entries outlive any one screen, so don't let them
+            // hold on to its context.
+            final AppOpsState state = new AppOpsState(mContext.getApplicationContext());
+            final ArrayList<List<AppOpEntry>> states = state.buildStates(ALL_TEMPLATES, 0, null);
+
+            final HashMap<String, AppOpEntry> entryIndex = new HashMap<String, AppOpEntry>();
+            for (int t=0; t<states.size(); t++) {
+                final List<AppOpEntry> entries = states.get(t);
+                for (int i=0; i<entries.size(); i++) {
+                    final AppOpEntry entry = entries.get(i);
+                    final AppOpsManager.PackageOps pkgOps = entry.getPackageOps();
+                    for (int j=0; j<entry.getNumOpEntry(); j++) {
+                        entryIndex.put(indexKey(pkgOps.getUid(), pkgOps.getPackageName(),
+                                entry.getOpEntry(j).getOp()), entry);
+                    }
+                }
+            }
+
+            synchronized (sCacheLock) {
+                if (generation == sCacheGeneration) {
+                    sCachedStates = states;
+                    sEntryIndex = entryIndex;
+                    sCacheTime = SystemClock.uptimeMillis();
+                    if (sWatchingState == null) {
+                        sWatchingState = state;
+                        for (int i=0; i<ALL_TEMPLATES.length; i++) {
+                            final int[] ops = ALL_TEMPLATES[i].ops;
+                            for (int j=0; j<ops.length; j++) {
+                                state.mAppOps.startWatchingMode(ops[j], null, sOpWatcher);
+                            }
+                        }
+                    }
+                }
+            }
+            return states.get(index);
+        }
+    }
+
+    /**
+     * Drops the entries shared through {@link #getCachedState}.  Listeners
+     * are told even if there were none, since a load may be under way that
+     * no longer reflects the change.
+     */
+    public static void invalidateCache() {
+        synchronized (sCacheLock) {
+            sCacheGeneration++;
+            sCachedStates = null;
+            sEntryIndex = null;
+            if (sWatchingState != null) {
+                sWatchingState.mAppOps.stopWatchingMode(sOpWatcher);
+                sWatchingState = null;
+            }
+        }
+        getMainHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                for (int i=sEntryListeners.size()-1; i>=0; i--) {
+                    sEntryListeners.get(i).onEntriesInvalidated();
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts telling the given listener about changes to the shared
+     * entries.  Must be called on the main thread.
+     */
+    public static void registerEntryListener(OnEntryChangedListener listener) {
+        if (!sEntryListeners.contains(listener)) {
+            sEntryListeners.add(listener);
+        }
+    }
+
+    public static void unregisterEntryListener(OnEntryChangedListener listener) {
+        sEntryListeners.remove(listener);
+    }
+
+    private static Handler getMainHandler() {
+        synchronized (sCacheLock) {
+            if (sMainHandler == null) {
+                sMainHandler = new Handler(Looper.getMainLooper());
+            }
+            return sMainHandler;
+        }
+    }
+
+    private static String indexKey(int uid, String packageName, int op) {
+        return uid + "/" + packageName + "/" + op;
+    }
+
+    /**
+     * Called on a binder thread when the mode of an op of the shared
+     * entries changed.  Fetches the ops behind that switch for the package
+     * and updates the entries holding them in place; only an op the index
+     * does not know about drops the whole cache.
+     */
+    static void onCachedOpChanged(int switchOp, String packageName) {
+        final AppOpsState state;
+        final HashMap<String, AppOpEntry> entryIndex;
+        final int generation;
+        synchronized (sCacheLock) {
+            if (sCachedStates == null) {
+                return;
+            }
+            state = sWatchingState;
+            entryIndex = sEntryIndex;
+            generation = sCacheGeneration;
+        }
+
+        final int uid;
+        try {
+            uid = state.mPm.getApplicationInfo(packageName,
+                    PackageManager.GET_DISABLED_COMPONENTS
+                    | PackageManager.GET_UNINSTALLED_PACKAGES).uid;
+        } catch (NameNotFoundException e) {
+            invalidateCache();
+            return;
+        }
+
+        int numOps = 0;
+        final int[] switchedOps = new int[AppOpsManager._NUM_OP];
+        for (int t=0; t<ALL_TEMPLATES.length; t++) {
+            final int[] ops = ALL_TEMPLATES[t].ops;
+            for (int i=0; i<ops.length; i++) {
+                if (AppOpsManager.opToSwitch(ops[i]) == switchOp) {
+                    switchedOps[numOps++] = ops[i];
+                }
+            }
+        }
+        if (numOps == 0) {
+            return;
+        }
+        final List<AppOpsManager.PackageOps> pkgs = state.mAppOps.getOpsForPackage(uid,
+                packageName, Arrays.copyOf(switchedOps, numOps));
+        if (pkgs == null) {
+            return;
+        }
+
+        final ArrayList<AppOpEntry> entries = new ArrayList<AppOpEntry>();
+        final ArrayList<AppOpsManager.OpEntry> ops = new ArrayList<AppOpsManager.OpEntry>();
+        for (int i=0; i<pkgs.size(); i++) {
+            final List<AppOpsManager.OpEntry> pkgOps = pkgs.get(i).getOps();
+            for (int j=0; j<pkgOps.size(); j++) {
+                final AppOpsManager.OpEntry op = pkgOps.get(j);
+                final AppOpEntry entry = entryIndex.get(indexKey(uid, packageName, op.getOp()));
+                if (entry == null) {
+                    // A new row; rebuild.
+                    if (DEBUG) Log.d(TAG, "No entry for op " + op.getOp() + " of "
+                            + packageName);
+                    invalidateCache();
+                    return;
+                }
+                entries.add(entry);
+                ops.add(op);
+            }
+        }
+
+        getMainHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                applyOpChanges(generation, entries, ops);
+            }
+        });
+    }
+
+    /**
+     * Applies fresh copies of ops to the shared entries holding them and
+     * re-sorts a list only if the sort key of one of its entries changed.
+     * Runs on the main thread, which is where the lists are read.
+     */
+    static void applyOpChanges(int generation, ArrayList<AppOpEntry> entries,
+            ArrayList<AppOpsManager.OpEntry> ops) {
+        final ArrayList<List<AppOpEntry>> states;
+        synchronized (sCacheLock) {
+            if (generation != sCacheGeneration) {
+                // Rebuilt in the meantime.
+                return;
+            }
+            states = sCachedStates;
+        }
+
+        final boolean[] reordered = new boolean[entries.size()];
+        for (int i=0; i<entries.size(); i++) {
+            if (entries.get(i).updateOp(ops.get(i))) {
+                final int op = ops.get(i).getOp();
+                for (int t=0; t<ALL_TEMPLATES.length; t++) {
+                    final int[] tplOps = ALL_TEMPLATES[t].ops;
+                    for (int j=0; j<tplOps.length; j++) {
+                        if (tplOps[j] == op) {
+                            Collections.sort(states.get(t), APP_OP_COMPARATOR);
+                            break;
+                        }
+                    }
+                }
+                reordered[i] = true;
+            }
+        }
+        for (int i=0; i<entries.size(); i++) {
+            for (int l=sEntryListeners.size()-1; l>=0; l--) {
+                sEntryListeners.get(l).onEntryChanged(entries.get(i), reordered[i]);
+            }
+        }
     }
 }
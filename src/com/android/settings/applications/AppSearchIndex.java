@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import com.android.settings.applications.ApplicationsState.AppEntry;
+import com.android.settings.applications.ApplicationsState.Change;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Word-prefix index over a list of app entries, used for search-as-you-type
+ * in the applications list.
+ *
+ * <p>Every entry contributes one token for each place a word starts in its
+ * normalized label (the start of the label and after each space) and in its
+ * package name (the start and after each dot); a token is the rest of the
+ * string from that point.  An entry matches a prefix when one of its tokens
+ * starts with it, which is the same rule the list has always used for
+ * labels.  Tokens are kept in one sorted array, so a query is a binary
+ * search plus a scan over just the matches.
+ */
+class AppSearchIndex {
+    private static final class Token {
+        final String text;
+        final AppEntry entry;
+
+        Token(String text, AppEntry entry) {
+            this.text = text;
+            this.entry = entry;
+        }
+    }
+
+    private static final Comparator<Token> TOKEN_COMPARATOR = new Comparator<Token>() {
+        @Override
+        public int compare(Token object1, Token object2) {
+            return object1.text.compareTo(object2.text);
+        }
+    };
+
+    private ArrayList<Token> mTokens = new ArrayList<Token>();
+
+    // The list being indexed, each entry's position in it (null until the
+    // next query after applyChanges()), and the label each entry was
+    // indexed under.
+    private ArrayList<AppEntry> mEntries;
+    private IdentityHashMap<AppEntry, Integer> mPositions
+            = new IdentityHashMap<AppEntry, Integer>();
+    private final IdentityHashMap<AppEntry, String> mIndexedLabels
+            = new IdentityHashMap<AppEntry, String>();
+
+    // Last query, so that typing more characters only narrows its result.
+    private String mLastPrefix;
+    private ArrayList<AppEntry> mLastResult;
+
+    /**
+     * Points the index at a new list.  Only entries that were not in the
+     * previous list, or whose label changed, are tokenized; tokens of
+     * entries that went away are dropped.
+     */
+    synchronized void setEntries(ArrayList<AppEntry> entries) {
+        if (entries == mEntries) {
+            return;
+        }
+        mEntries = entries;
+        mLastPrefix = null;
+        mLastResult = null;
+
+        IdentityHashMap<AppEntry, Integer> positions
+                = new IdentityHashMap<AppEntry, Integer>(entries.size());
+        IdentityHashMap<AppEntry, Boolean> reindexed = new IdentityHashMap<AppEntry, Boolean>();
+        ArrayList<Token> added = new ArrayList<Token>();
+        for (int i=0; i<entries.size(); i++) {
+            AppEntry entry = entries.get(i);
+            positions.put(entry, i);
+            String label = entry.getNormalizedLabel();
+            String indexed = mIndexedLabels.get(entry);
+            if (indexed == null || !indexed.equals(label)) {
+                if (indexed != null) {
+                    reindexed.put(entry, Boolean.TRUE);
+                }
+                mIndexedLabels.put(entry, label);
+                addTokens(label, ' ', entry, added);
+                addTokens(entry.info.packageName, '.', entry, added);
+            }
+        }
+
+        // Drop tokens of entries that are gone or were just re-tokenized.
+        int out = 0;
+        for (int i=0; i<mTokens.size(); i++) {
+            Token token = mTokens.get(i);
+            if (!positions.containsKey(token.entry)) {
+                mIndexedLabels.remove(token.entry);
+            } else if (!reindexed.containsKey(token.entry)) {
+                mTokens.set(out++, token);
+            }
+        }
+        while (mTokens.size() > out) {
+            mTokens.remove(mTokens.size()-1);
+        }
+        mPositions = positions;
+
+        if (!added.isEmpty()) {
+            Collections.sort(added, TOKEN_COMPARATOR);
+            mergeTokens(added);
+        }
+    }
+
+    /**
+     * Points the index at a list derived from the given indexed one by the
+     * given changes, re-tokenizing only the entries they touch.  Does
+     * nothing if the index is on some other list; {@link #setEntries} will
+     * catch up when it is next queried.
+     */
+    synchronized void applyChanges(ArrayList<AppEntry> previous, ArrayList<AppEntry> entries,
+            ArrayList<Change> changes) {
+        if (mEntries != previous) {
+            return;
+        }
+
+        // An entry is still listed if its last change didn't remove it.
+        IdentityHashMap<AppEntry, Boolean> touched = new IdentityHashMap<AppEntry, Boolean>();
+        for (int i=0; i<changes.size(); i++) {
+            Change change = changes.get(i);
+            touched.put(change.entry, change.type != Change.REMOVED);
+        }
+
+        int out = 0;
+        for (int i=0; i<mTokens.size(); i++) {
+            Token token = mTokens.get(i);
+            if (!touched.containsKey(token.entry)) {
+                mTokens.set(out++, token);
+            }
+        }
+        while (mTokens.size() > out) {
+            mTokens.remove(mTokens.size()-1);
+        }
+
+        ArrayList<Token> added = new ArrayList<Token>();
+        for (Map.Entry<AppEntry, Boolean> e : touched.entrySet()) {
+            AppEntry entry = e.getKey();
+            if (e.getValue()) {
+                String label = entry.getNormalizedLabel();
+                mIndexedLabels.put(entry, label);
+                addTokens(label, ' ', entry, added);
+                addTokens(entry.info.packageName, '.', entry, added);
+            } else {
+                mIndexedLabels.remove(entry);
+            }
+        }
+        if (!added.isEmpty()) {
+            Collections.sort(added, TOKEN_COMPARATOR);
+            mergeTokens(added);
+        }
+
+        mEntries = entries;
+        mPositions = null;
+        mLastPrefix = null;
+        mLastResult = null;
+    }
+
+    /**
+     * Whether the given indexed entry matches the given normalized prefix.
+     */
+    synchronized boolean matches(AppEntry entry, String prefix) {
+        return matches(mIndexedLabels.get(entry), ' ', prefix)
+                || matches(entry.info.packageName, '.', prefix);
+    }
+
+    /**
+     * Returns the entries matching the given normalized prefix, in the order
+     * of the indexed list.
+     */
+    synchronized ArrayList<AppEntry> query(String prefix) {
+        if (mPositions == null) {
+            mPositions = new IdentityHashMap<AppEntry, Integer>(mEntries.size());
+            for (int i=0; i<mEntries.size(); i++) {
+                mPositions.put(mEntries.get(i), i);
+            }
+        }
+        ArrayList<AppEntry> result;
+        if (mLastResult != null && prefix.startsWith(mLastPrefix)) {
+            result = new ArrayList<AppEntry>();
+            for (int i=0; i<mLastResult.size(); i++) {
+                AppEntry entry = mLastResult.get(i);
+                if (matches(mIndexedLabels.get(entry), ' ', prefix)
+                        || matches(entry.info.packageName, '.', prefix)) {
+                    result.add(entry);
+                }
+            }
+        } else {
+            IdentityHashMap<AppEntry, Boolean> found = new IdentityHashMap<AppEntry, Boolean>();
+            result = new ArrayList<AppEntry>();
+            for (int i=lowerBound(prefix); i<mTokens.size(); i++) {
+                Token token = mTokens.get(i);
+                if (!token.text.startsWith(prefix)) {
+                    break;
+                }
+                if (found.put(token.entry, Boolean.TRUE) == null) {
+                    result.add(token.entry);
+                }
+            }
+            final IdentityHashMap<AppEntry, Integer> positions = mPositions;
+            Collections.sort(result, new Comparator<AppEntry>() {
+                @Override
+                public int compare(AppEntry object1, AppEntry object2) {
+                    return positions.get(object1) - positions.get(object2);
+                }
+            });
+        }
+        mLastPrefix = prefix;
+        mLastResult = result;
+        return result;
+    }
+
+    private void mergeTokens(ArrayList<Token> added) {
+        ArrayList<Token> merged = new ArrayList<Token>(mTokens.size() + added.size());
+        int i = 0, j = 0;
+        while (i < mTokens.size() && j < added.size()) {
+            if (TOKEN_COMPARATOR.compare(mTokens.get(i), added.get(j)) <= 0) {
+                merged.add(mTokens.get(i++));
+            } else {
+                merged.add(added.get(j++));
+            }
+        }
+        while (i < mTokens.size()) {
+            merged.add(mTokens.get(i++));
+        }
+        while (j < added.size()) {
+            merged.add(added.get(j++));
+        }
+        mTokens = merged;
+    }
+
+    private int lowerBound(String prefix) {
+        int lo = 0, hi = mTokens.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (mTokens.get(mid).text.compareTo(prefix) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private static void addTokens(String text, char separator, AppEntry entry,
+            ArrayList<Token> out) {
+        if (text == null) {
+            return;
+        }
+        out.add(new Token(text, entry));
+        int idx = text.indexOf(separator);
+        while (idx >= 0 && idx+1 < text.length()) {
+            out.add(new Token(text.substring(idx+1), entry));
+            idx = text.indexOf(separator, idx+1);
+        }
+    }
+
+    private static boolean matches(String text, char separator, String prefix) {
+        if (text == null) {
+            return false;
+        }
+        return text.startsWith(prefix) || text.indexOf(separator + prefix) != -1;
+    }
+}
@@ -10,6 +10,8 @@ import android.content.pm.IPackageStatsObserver;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageStats;
 import android.content.pm.PackageManager.NameNotFoundException;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.Handler;
@@ -21,8 +23,12 @@ import android.os.SystemClock;
 import android.os.UserHandle;
 import android.text.format.Formatter;
 import android.util.Log;
+import android.util.Pair;
+
+import com.android.settings.IconCache;
 
 import java.io.File;
+import java.text.CollationKey;
 import java.text.Collator;
 import java.text.Normalizer;
 import java.text.Normalizer.Form;
@@ -30,7 +36,10 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 
 /**
@@ -41,16 +50,49 @@ public class ApplicationsState {
     static final String TAG = "ApplicationsState";
     static final boolean DEBUG = false;
     static final boolean DEBUG_LOCKING = false;
+    static final boolean DEBUG_TIMING = false;
 
     public static interface Callbacks {
         public void onRunningStateChanged(boolean running);
         public void onPackageListChanged();
         public void onRebuildComplete(ArrayList<AppEntry> apps);
+        /**
+         * Called instead of onRebuildComplete() when the new list was
+         * derived from the previously delivered one.  The changes are in
+         * the order they were applied; each position refers to the list
+         * as it was after the previous change.  Also called with no changes
+         * when a requested rebuild found nothing to do.
+         */
+        public void onRebuildDelta(ArrayList<AppEntry> apps, ArrayList<Change> changes);
         public void onPackageIconChanged();
         public void onPackageSizeChanged(String packageName);
         public void onAllSizesComputed();
     }
 
+    /**
+     * One step of an incremental rebuild of a session's list.
+     */
+    public static final class Change {
+        public static final int INSERTED = 0;
+        public static final int REMOVED = 1;
+        public static final int MOVED = 2;
+        public static final int CHANGED = 3;
+
+        public final int type;
+        public final int position;
+        // Only meaningful for MOVED.
+        public final int toPosition;
+        // The entry removed for REMOVED, else the entry now at the new position.
+        public final AppEntry entry;
+
+        Change(int type, int position, int toPosition, AppEntry entry) {
+            this.type = type;
+            this.position = position;
+            this.toPosition = toPosition;
+            this.entry = entry;
+        }
+    }
+
     public static interface AppFilter {
         public void init();
         public boolean filterApp(ApplicationInfo info);
@@ -59,6 +101,115 @@ public class ApplicationsState {
     static final int SIZE_UNKNOWN = -1;
     static final int SIZE_INVALID = -2;
 
+    // Number of getPackageSizeInfo() calls we keep outstanding at once.
+    static final int DEFAULT_MAX_SIZE_REQUESTS = 4;
+
+    // A size request that has not completed after this long is retried.
+    static final long SIZE_REQUEST_TIMEOUT = 20*1000;
+
+    // A session patches its previous list instead of rebuilding it only
+    // while fewer than 1/MAX_DELTA_FRACTION of its entries have changed.
+    static final int MAX_DELTA_FRACTION = 4;
+
+    // Each batch of labels or icons the loader does between messages is
+    // sized to take about this long, so rebuild requests and lock waiters
+    // never queue behind it for more than a frame.
+    static final long LOADER_BATCH_BUDGET_NS = 16*1000*1000;
+
+    // Batch size bounds (and initial size, before anything was measured).
+    static final int MIN_LABEL_BATCH = 2;
+    static final int MAX_LABEL_BATCH = 64;
+    static final int INITIAL_LABEL_BATCH = 6;
+    static final int MIN_ICON_BATCH = 1;
+    static final int MAX_ICON_BATCH = 16;
+    static final int INITIAL_ICON_BATCH = 2;
+
+    // Icons asked for by rows being bound, beyond which the oldest requests
+    // are dropped; those rows have long scrolled off.
+    static final int MAX_ICON_REQUESTS = 32;
+
+    /**
+     * Running cost of one phase of the background loader: how many items
+     * it has processed, in how many batches, and a moving average of the
+     * time per item that the next batch is sized from.
+     */
+    public static final class PhaseTiming {
+        final String mName;
+        private long mItems;
+        private long mBatches;
+        private long mTotalNs;
+        private long mMaxBatchNs;
+        private long mAvgItemNs;
+
+        PhaseTiming(String name) {
+            mName = name;
+        }
+
+        synchronized void record(int items, long elapsedNs) {
+            if (items <= 0) {
+                return;
+            }
+            mItems += items;
+            mBatches++;
+            mTotalNs += elapsedNs;
+            if (elapsedNs > mMaxBatchNs) {
+                mMaxBatchNs = elapsedNs;
+            }
+            final long perItem = elapsedNs / items;
+            // Weight the newest batch by 1/4 so one slow package doesn't
+            // collapse the batch size, but a slow device is picked up fast.
+            mAvgItemNs = mAvgItemNs == 0 ? perItem : (mAvgItemNs*3 + perItem) / 4;
+        }
+
+        /**
+         * Returns how many items fit in the given time budget at the
+         * current average cost, or initial if nothing was measured yet.
+         */
+        synchronized int batchSize(long budgetNs, int min, int max, int initial) {
+            if (mAvgItemNs <= 0) {
+                return initial;
+            }
+            long n = budgetNs / mAvgItemNs;
+            return (int) Math.max(min, Math.min(max, n));
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public synchronized long getItemCount() {
+            return mItems;
+        }
+
+        public synchronized long getBatchCount() {
+            return mBatches;
+        }
+
+        public synchronized long getTotalNanos() {
+            return mTotalNs;
+        }
+
+        public synchronized long getMaxBatchNanos() {
+            return mMaxBatchNs;
+        }
+
+        public synchronized long getAverageItemNanos() {
+            return mAvgItemNs;
+        }
+
+        synchronized void reset() {
+            mItems = mBatches = mTotalNs = mMaxBatchNs = mAvgItemNs = 0;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return mName + ": items=" + mItems + " batches=" + mBatches
+                    + " totalMs=" + (mTotalNs/1000000)
+                    + " maxBatchMs=" + (mMaxBatchNs/1000000)
+                    + " avgItemUs=" + (mAvgItemNs/1000);
+        }
+    }
+
     static final Pattern REMOVE_DIACRITICALS_PATTERN
             = Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
 
@@ -68,6 +219,37 @@ public class ApplicationsState {
                 .replaceAll("").toLowerCase();
     }
 
+    // Collator shared by all entries' collation keys.  Replaced when the
+    // default locale changes; sCollatorGeneration tells entries that the
+    // keys they have cached are no longer valid.
+    static final Object sCollatorLock = new Object();
+    static Collator sCollator = Collator.getInstance();
+    static Locale sCollatorLocale = Locale.getDefault();
+    static volatile int sCollatorGeneration;
+
+    /**
+     * Switches to a collator for the current default locale if it has
+     * changed.  Returns true if it did.
+     */
+    static boolean updateCollator() {
+        synchronized (sCollatorLock) {
+            Locale locale = Locale.getDefault();
+            if (locale.equals(sCollatorLocale)) {
+                return false;
+            }
+            sCollator = Collator.getInstance(locale);
+            sCollatorLocale = locale;
+            sCollatorGeneration++;
+            return true;
+        }
+    }
+
+    static CollationKey makeCollationKey(String str) {
+        synchronized (sCollatorLock) {
+            return sCollator.getCollationKey(str != null ? str : "");
+        }
+    }
+
     public static class SizeInfo {
         long cacheSize;
         long codeSize;
@@ -104,6 +286,17 @@ public class ApplicationsState {
             return normalizedLabel;
         }
 
+        CollationKey getCollationKey() {
+            final int gen = sCollatorGeneration;
+            CollationKey key = collationKey;
+            if (key == null || collationGeneration != gen) {
+                key = makeCollationKey(label);
+                collationKey = key;
+                collationGeneration = gen;
+            }
+            return key;
+        }
+
         // Need to synchronize on 'this' for the following.
         ApplicationInfo info;
         Drawable icon;
@@ -115,32 +308,91 @@ public class ApplicationsState {
 
         String normalizedLabel;
 
-        AppEntry(Context context, ApplicationInfo info, long id) {
+        // Lazily built from label; rebuilt if the locale changes.
+        CollationKey collationKey;
+        int collationGeneration;
+
+        // Position of this entry in the state's label sort index, valid
+        // only while sortRankGeneration matches the index.  Only touched by
+        // the background thread.
+        int sortRank;
+        int sortRankGeneration;
+
+        // Snapshot record holding the encoded icon.  Kept after decoding,
+        // so that the icon can be decoded again after the IconCache evicts
+        // it and later snapshots still carry it.
+        AppEntryCache.Record cachedIcon;
+
+        // The label is loaded later by ensureLabel(), outside of any
+        // global lock.
+        AppEntry(ApplicationInfo info, long id) {
             apkFile = new File(info.sourceDir);
             this.id = id;
             this.info = info;
             this.size = SIZE_UNKNOWN;
             this.sizeStale = true;
-            ensureLabel(context);
+        }
+
+        AppEntry(ApplicationInfo info, long id, AppEntryCache.Record record) {
+            apkFile = new File(info.sourceDir);
+            this.id = id;
+            this.info = info;
+            this.mounted = true;
+            this.label = record.label;
+            this.normalizedLabel = record.normalizedLabel;
+            this.size = record.size;
+            this.internalSize = record.internalSize;
+            this.externalSize = record.externalSize;
+            this.cacheSize = record.cacheSize;
+            this.codeSize = record.codeSize;
+            this.dataSize = record.dataSize;
+            this.externalCodeSize = record.externalCodeSize;
+            this.externalDataSize = record.externalDataSize;
+            this.externalCacheSize = record.externalCacheSize;
+            if (record.iconData != null) {
+                this.cachedIcon = record;
+            }
+            // Sizes from the snapshot are shown right away, but still get
+            // refreshed by the background size pass.
+            this.sizeStale = true;
         }
         
         void ensureLabel(Context context) {
-            if (this.label == null || !this.mounted) {
-                if (!this.apkFile.exists()) {
-                    this.mounted = false;
-                    this.label = info.packageName;
-                } else {
-                    this.mounted = true;
-                    CharSequence label = info.loadLabel(context.getPackageManager());
-                    this.label = label != null ? label.toString() : info.packageName;
+            synchronized (this) {
+                if (this.label == null || !this.mounted) {
+                    String oldLabel = this.label;
+                    if (!this.apkFile.exists()) {
+                        this.mounted = false;
+                        this.label = info.packageName;
+                    } else {
+                        this.mounted = true;
+                        CharSequence label = info.loadLabel(context.getPackageManager());
+                        this.label = label != null ? label.toString() : info.packageName;
+                    }
+                    if (oldLabel != null && !oldLabel.equals(this.label)) {
+                        this.normalizedLabel = null;
+                        this.collationKey = null;
+                        this.sortRankGeneration = 0;
+                    }
                 }
             }
         }
         
-        boolean ensureIconLocked(Context context, PackageManager pm) {
+        // Icons come from, and are accounted in, the state's IconCache; the
+        // state drops them again when the cache evicts them.
+        boolean ensureIconLocked(Context context, IconCache iconCache) {
+            if (this.icon == null && this.cachedIcon != null) {
+                final Bitmap bm = this.cachedIcon.decodeIcon();
+                if (bm != null) {
+                    this.icon = iconCache.putIcon(this.info, bm);
+                    return true;
+                }
+                // corrupt; load it from the package below
+                this.cachedIcon = null;
+            }
             if (this.icon == null) {
                 if (this.apkFile.exists()) {
-                    this.icon = this.info.loadIcon(pm);
+                    this.icon = iconCache.getIcon(this.info);
                     return true;
                 } else {
                     this.mounted = false;
@@ -152,7 +404,7 @@ public class ApplicationsState {
                 // its icon.
                 if (this.apkFile.exists()) {
                     this.mounted = true;
-                    this.icon = this.info.loadIcon(pm);
+                    this.icon = iconCache.getIcon(this.info);
                     return true;
                 }
             }
@@ -160,8 +412,22 @@ public class ApplicationsState {
         }
     }
 
+    /**
+     * Orders entries by label.  Uses the entries' ranks in the label sort
+     * index when both have one, which is just an int compare, and falls
+     * back to their collation keys otherwise; the ranks are assigned in
+     * collation key order, so the two agree.
+     */
+    static int compareLabels(AppEntry object1, AppEntry object2) {
+        final int gen = sSortIndexGeneration;
+        if (object1.sortRankGeneration == gen && object2.sortRankGeneration == gen) {
+            return object1.sortRank < object2.sortRank ? -1
+                    : (object1.sortRank > object2.sortRank ? 1 : 0);
+        }
+        return object1.getCollationKey().compareTo(object2.getCollationKey());
+    }
+
     public static final Comparator<AppEntry> ALPHA_COMPARATOR = new Comparator<AppEntry>() {
-        private final Collator sCollator = Collator.getInstance();
         @Override
         public int compare(AppEntry object1, AppEntry object2) {
             final boolean normal1 = object1.info.enabled
@@ -171,40 +437,44 @@ public class ApplicationsState {
             if (normal1 != normal2) {
                 return normal1 ? -1 : 1;
             }
-            return sCollator.compare(object1.label, object2.label);
+            return compareLabels(object1, object2);
         }
     };
 
     public static final Comparator<AppEntry> SIZE_COMPARATOR
             = new Comparator<AppEntry>() {
-        private final Collator sCollator = Collator.getInstance();
         @Override
         public int compare(AppEntry object1, AppEntry object2) {
             if (object1.size < object2.size) return 1;
             if (object1.size > object2.size) return -1;
-            return sCollator.compare(object1.label, object2.label);
+            return compareLabels(object1, object2);
         }
     };
 
     public static final Comparator<AppEntry> INTERNAL_SIZE_COMPARATOR
             = new Comparator<AppEntry>() {
-        private final Collator sCollator = Collator.getInstance();
         @Override
         public int compare(AppEntry object1, AppEntry object2) {
             if (object1.internalSize < object2.internalSize) return 1;
             if (object1.internalSize > object2.internalSize) return -1;
-            return sCollator.compare(object1.label, object2.label);
+            return compareLabels(object1, object2);
         }
     };
 
     public static final Comparator<AppEntry> EXTERNAL_SIZE_COMPARATOR
             = new Comparator<AppEntry>() {
-        private final Collator sCollator = Collator.getInstance();
         @Override
         public int compare(AppEntry object1, AppEntry object2) {
             if (object1.externalSize < object2.externalSize) return 1;
             if (object1.externalSize > object2.externalSize) return -1;
-            return sCollator.compare(object1.label, object2.label);
+            return compareLabels(object1, object2);
+        }
+    };
+
+    static final Comparator<AppEntry> COLLATION_KEY_COMPARATOR = new Comparator<AppEntry>() {
+        @Override
+        public int compare(AppEntry object1, AppEntry object2) {
+            return object1.getCollationKey().compareTo(object2.getCollationKey());
         }
     };
 
@@ -265,6 +535,7 @@ public class ApplicationsState {
 
     final Context mContext;
     final PackageManager mPm;
+    final IconCache mIconCache;
     final int mRetrieveFlags;
     PackageIntentReceiver mPackageIntentReceiver;
 
@@ -272,20 +543,53 @@ public class ApplicationsState {
     boolean mHaveDisabledApps;
 
     // Information about all applications.  Synchronize on mEntriesMap
-    // to protect access to these.
+    // to protect access to these.  Lookups in mEntriesMap itself may be
+    // done without the lock; creating an entry is cheap (labels and icons
+    // are loaded afterwards under the entry's own lock), so the lock is
+    // never held across a PackageManager call.
     final ArrayList<Session> mSessions = new ArrayList<Session>();
     final ArrayList<Session> mRebuildingSessions = new ArrayList<Session>();
     final InterestingConfigChanges mInterestingConfigChanges = new InterestingConfigChanges();
-    final HashMap<String, AppEntry> mEntriesMap = new HashMap<String, AppEntry>();
+    final ConcurrentHashMap<String, AppEntry> mEntriesMap
+            = new ConcurrentHashMap<String, AppEntry>();
     final ArrayList<AppEntry> mAppEntries = new ArrayList<AppEntry>();
     List<ApplicationInfo> mApplications = new ArrayList<ApplicationInfo>();
     long mCurId = 1;
-    String mCurComputingSizePkg;
+    final ArrayList<String> mComputingSizePkgs = new ArrayList<String>();
+    int mMaxSizeRequests = DEFAULT_MAX_SIZE_REQUESTS;
     boolean mSessionsChanged;
 
+    // Packages whose size changed since the main thread last dispatched
+    // onPackageSizeChanged(); lets one message cover a burst of results.
+    final ArrayList<String> mChangedSizePkgs = new ArrayList<String>();
+
+    // On-disk snapshot of entries from a previous run.  Loaded by the
+    // background thread before it handles its first message, which is the
+    // only thread that touches mEntryCacheLoaded.
+    final AppEntryCache mEntryCache;
+    boolean mEntryCacheLoaded;
+    boolean mEntryCacheDirty;
+
+    // Label sort index: every entry gets a rank from one collation sort of
+    // all entries, shared by every session's comparators.  Rebuilt by the
+    // background thread when mSortIndexDirty is set (synchronized on
+    // mEntriesMap).  Generation 0 is never valid.
+    boolean mSortIndexDirty = true;
+    static volatile int sSortIndexGeneration = 1;
+
+    // Cost of each phase of the background loader.
+    final PhaseTiming mRebuildTiming = new PhaseTiming("rebuild");
+    final PhaseTiming mLabelTiming = new PhaseTiming("labels");
+    final PhaseTiming mIconTiming = new PhaseTiming("icons");
+    final PhaseTiming mSizeTiming = new PhaseTiming("sizes");
+
     // Temporary for dispatching session callbacks.  Only touched by main thread.
     final ArrayList<Session> mActiveSessions = new ArrayList<Session>();
 
+    // Entries bound to rows without an icon, newest last; their icons are
+    // loaded ahead of other background work.  Synchronized on itself.
+    final ArrayList<AppEntry> mIconRequests = new ArrayList<AppEntry>();
+
     /**
      * Receives notifications when applications are added/removed.
      */
@@ -372,8 +676,24 @@ public class ApplicationsState {
             switch (msg.what) {
                 case MSG_REBUILD_COMPLETE: {
                     Session s = (Session)msg.obj;
+                    ArrayList<AppEntry> apps;
+                    ArrayList<Change> changes = null;
+                    synchronized (s.mRebuildSync) {
+                        apps = s.mLastAppList;
+                        if (!s.mPendingFullRebuild) {
+                            changes = new ArrayList<Change>(s.mPendingChanges);
+                        }
+                        s.mPendingFullRebuild = false;
+                        s.mPendingChanges.clear();
+                    }
                     if (mActiveSessions.contains(s)) {
-                        s.mCallbacks.onRebuildComplete(s.mLastAppList);
+                        if (changes == null) {
+                            s.mCallbacks.onRebuildComplete(apps);
+                        } else {
+                            // even when empty, so a caller waiting on the
+                            // rebuild it asked for always hears back
+                            s.mCallbacks.onRebuildDelta(apps, changes);
+                        }
                     }
                 } break;
                 case MSG_PACKAGE_LIST_CHANGED: {
@@ -387,9 +707,16 @@ public class ApplicationsState {
                     }
                 } break;
                 case MSG_PACKAGE_SIZE_CHANGED: {
+                    ArrayList<String> changed;
+                    synchronized (mEntriesMap) {
+                        changed = new ArrayList<String>(mChangedSizePkgs);
+                        mChangedSizePkgs.clear();
+                    }
                     for (int i=0; i<mActiveSessions.size(); i++) {
-                        mActiveSessions.get(i).mCallbacks.onPackageSizeChanged(
-                                (String)msg.obj);
+                        for (int j=0; j<changed.size(); j++) {
+                            mActiveSessions.get(i).mCallbacks.onPackageSizeChanged(
+                                    changed.get(j));
+                        }
                     }
                 } break;
                 case MSG_ALL_SIZES_COMPUTED: {
@@ -423,13 +750,31 @@ public class ApplicationsState {
         }
     }
 
-    private ApplicationsState(Application app) {
-        mContext = app;
+    // Not private so that tests can run an instance against a context
+    // with a fake package manager.
+    ApplicationsState(Context context) {
+        this(context, IconCache.getInstance(context));
+    }
+
+    // Tests pass an icon cache built on the same context, so that icons come
+    // from the fake package manager too.
+    ApplicationsState(Context context, IconCache iconCache) {
+        mContext = context;
         mPm = mContext.getPackageManager();
+        mIconCache = iconCache;
+        mEntryCache = new AppEntryCache(mContext);
         mThread = new HandlerThread("ApplicationsState.Loader",
                 Process.THREAD_PRIORITY_BACKGROUND);
         mThread.start();
         mBackgroundHandler = new BackgroundHandler(mThread.getLooper());
+        mIconCache.addOnIconEvictedListener(new IconCache.OnIconEvictedListener() {
+            @Override
+            public void onIconEvicted(String packageName, Bitmap icon) {
+                // The evicting thread may hold another entry's lock.
+                mBackgroundHandler.obtainMessage(BackgroundHandler.MSG_ICON_EVICTED,
+                        Pair.create(packageName, icon)).sendToTarget();
+            }
+        });
 
         // Only the owner can see all apps.
         if (UserHandle.myUserId() == 0) {
@@ -476,10 +821,41 @@ public class ApplicationsState {
         ArrayList<AppEntry> mRebuildResult;
         ArrayList<AppEntry> mLastAppList;
 
+        // What mLastAppList was built with, so a later rebuild with the
+        // same parameters can just patch it.  Only touched by the
+        // background thread.
+        AppFilter mLastFilter;
+        Comparator<AppEntry> mLastComparator;
+
+        // Packages that changed since mLastAppList was built, and whether
+        // something happened that needs a full rebuild.  Synchronized on
+        // mEntriesMap.
+        final ArrayList<String> mDirtyPackages = new ArrayList<String>();
+        boolean mNeedsFullRebuild = true;
+
+        // Results not yet delivered to the callbacks.  Synchronized on
+        // mRebuildSync.
+        final ArrayList<Change> mPendingChanges = new ArrayList<Change>();
+        boolean mPendingFullRebuild;
+
+        // Entries currently on screen; their sizes are computed first.
+        // Synchronized on mEntriesMap.
+        ArrayList<AppEntry> mVisibleEntries;
+
         Session(Callbacks callbacks) {
             mCallbacks = callbacks;
         }
 
+        /**
+         * Tells the loader which entries are currently visible, so that
+         * their sizes can be fetched ahead of the rest of the list.
+         */
+        public void setVisibleEntries(ArrayList<AppEntry> entries) {
+            synchronized (mEntriesMap) {
+                mVisibleEntries = entries;
+            }
+        }
+
         public void resume() {
             if (DEBUG_LOCKING) Log.v(TAG, "resume about to acquire lock...");
             synchronized (mEntriesMap) {
@@ -542,9 +918,30 @@ public class ApplicationsState {
             }
         }
 
+        // Starts building a new list of app entries without waiting for it.
+        // It is delivered through onRebuildDelta() when it could be patched
+        // from the last list, and through onRebuildComplete() otherwise.
+        void requestRebuild(AppFilter filter, Comparator<AppEntry> comparator) {
+            synchronized (mRebuildSync) {
+                synchronized (mEntriesMap) {
+                    mRebuildingSessions.add(this);
+                    mRebuildRequested = true;
+                    mRebuildAsync = true;
+                    mRebuildFilter = filter;
+                    mRebuildComparator = comparator;
+                    if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_REBUILD_LIST)) {
+                        Message msg = mBackgroundHandler.obtainMessage(
+                                BackgroundHandler.MSG_REBUILD_LIST);
+                        mBackgroundHandler.sendMessage(msg);
+                    }
+                }
+            }
+        }
+
         void handleRebuildList() {
             AppFilter filter;
             Comparator<AppEntry> comparator;
+            boolean waiting;
             synchronized (mRebuildSync) {
                 if (!mRebuildRequested) {
                     return;
@@ -552,57 +949,179 @@ public class ApplicationsState {
 
                 filter = mRebuildFilter;
                 comparator = mRebuildComparator;
+                waiting = !mRebuildAsync;
                 mRebuildRequested = false;
                 mRebuildFilter = null;
                 mRebuildComparator = null;
             }
 
-            Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND);
+            // Only compete with the UI thread when it is blocked in
+            // rebuild() waiting for us; async rebuilds stay in the background.
+            if (waiting) {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND);
+            }
+            final long start = System.nanoTime();
 
             if (filter != null) {
                 filter.init();
             }
-            
-            List<ApplicationInfo> apps;
+
+            ensureSortIndex();
+
+            ArrayList<String> dirty = null;
+            List<ApplicationInfo> apps = null;
             synchronized (mEntriesMap) {
-                apps = new ArrayList<ApplicationInfo>(mApplications);
+                if (!mNeedsFullRebuild && mLastAppList != null && filter == mLastFilter
+                        && comparator == mLastComparator
+                        && mDirtyPackages.size() <= mLastAppList.size()/MAX_DELTA_FRACTION) {
+                    dirty = new ArrayList<String>(mDirtyPackages);
+                } else {
+                    apps = new ArrayList<ApplicationInfo>(mApplications);
+                }
+                mDirtyPackages.clear();
+                mNeedsFullRebuild = false;
             }
 
-            ArrayList<AppEntry> filteredApps = new ArrayList<AppEntry>();
-            if (DEBUG) Log.i(TAG, "Rebuilding...");
-            for (int i=0; i<apps.size(); i++) {
-                ApplicationInfo info = apps.get(i);
-                if (filter == null || filter.filterApp(info)) {
-                    synchronized (mEntriesMap) {
-                        if (DEBUG_LOCKING) Log.v(TAG, "rebuild acquired lock");
-                        AppEntry entry = getEntryLocked(info);
-                        entry.ensureLabel(mContext);
-                        if (DEBUG) Log.i(TAG, "Using " + info.packageName + ": " + entry);
-                        filteredApps.add(entry);
-                        if (DEBUG_LOCKING) Log.v(TAG, "rebuild releasing lock");
+            ArrayList<AppEntry> filteredApps;
+            ArrayList<Change> changes = null;
+            if (dirty != null) {
+                if (DEBUG) Log.i(TAG, "Applying " + dirty.size() + " changes...");
+                filteredApps = new ArrayList<AppEntry>(mLastAppList);
+                changes = new ArrayList<Change>();
+                applyDelta(dirty, filter, comparator, filteredApps, changes);
+            } else {
+                filteredApps = new ArrayList<AppEntry>();
+                if (DEBUG) Log.i(TAG, "Rebuilding...");
+                for (int i=apps.size()-1; i>=0; i--) {
+                    if (filter != null && !filter.filterApp(apps.get(i))) {
+                        apps.remove(i);
                     }
                 }
-            }
+                synchronized (mEntriesMap) {
+                    if (DEBUG_LOCKING) Log.v(TAG, "rebuild acquired lock");
+                    for (int i=0; i<apps.size(); i++) {
+                        filteredApps.add(getEntryLocked(apps.get(i)));
+                    }
+                    if (DEBUG_LOCKING) Log.v(TAG, "rebuild releasing lock");
+                }
+                for (int i=0; i<filteredApps.size(); i++) {
+                    AppEntry entry = filteredApps.get(i);
+                    entry.ensureLabel(mContext);
+                    if (DEBUG) Log.i(TAG, "Using " + entry.info.packageName + ": " + entry);
+                }
 
-            Collections.sort(filteredApps, comparator);
+                Collections.sort(filteredApps, comparator);
+            }
 
             synchronized (mRebuildSync) {
                 if (!mRebuildRequested) {
                     mLastAppList = filteredApps;
+                    mLastFilter = filter;
+                    mLastComparator = comparator;
                     if (!mRebuildAsync) {
                         mRebuildResult = filteredApps;
                         mRebuildSync.notifyAll();
                     } else {
+                        if (changes == null) {
+                            mPendingFullRebuild = true;
+                            mPendingChanges.clear();
+                        } else if (!mPendingFullRebuild) {
+                            mPendingChanges.addAll(changes);
+                        }
                         if (!mMainHandler.hasMessages(MainHandler.MSG_REBUILD_COMPLETE, this)) {
                             Message msg = mMainHandler.obtainMessage(
                                     MainHandler.MSG_REBUILD_COMPLETE, this);
                             mMainHandler.sendMessage(msg);
                         }
                     }
+                } else {
+                    // Superseded; the next rebuild has to start from scratch
+                    // since nobody will see this list.
+                    synchronized (mEntriesMap) {
+                        mNeedsFullRebuild = true;
+                    }
                 }
             }
 
-            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            final long elapsed = System.nanoTime() - start;
+            mRebuildTiming.record(1, elapsed);
+            if (DEBUG_TIMING) Log.i(TAG, "Rebuilt " + filteredApps.size() + " entries in "
+                    + (elapsed/1000) + "us"
+                    + (changes != null ? " (delta)" : ""));
+            if (waiting) {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            }
+        }
+
+        /**
+         * Patches the sorted list for the given packages.  The entries of all
+         * of them are removed first, since their labels or sizes may already
+         * have changed in place and left them out of order; then the current
+         * entry of each package that still passes the filter is inserted
+         * where the comparator places it among the untouched entries.  A
+         * single entry that stays in the list is reported as one MOVED or
+         * CHANGED step.
+         */
+        private void applyDelta(ArrayList<String> dirty, AppFilter filter,
+                Comparator<AppEntry> comparator, ArrayList<AppEntry> list,
+                ArrayList<Change> changes) {
+            HashSet<String> dirtySet = new HashSet<String>(dirty);
+
+            // Compact the list, reporting removals from the back so that
+            // each position is still valid after the ones before it.
+            ArrayList<Change> removals = new ArrayList<Change>();
+            int out = 0;
+            for (int i=0; i<list.size(); i++) {
+                AppEntry entry = list.get(i);
+                if (dirtySet.contains(entry.info.packageName)) {
+                    removals.add(new Change(Change.REMOVED, i, -1, entry));
+                } else {
+                    list.set(out++, entry);
+                }
+            }
+            while (list.size() > out) {
+                list.remove(list.size()-1);
+            }
+            for (int i=removals.size()-1; i>=0; i--) {
+                changes.add(removals.get(i));
+            }
+
+            ArrayList<AppEntry> inserted = new ArrayList<AppEntry>();
+            synchronized (mEntriesMap) {
+                for (int i=0; i<dirty.size(); i++) {
+                    int idx = indexOfApplicationInfoLocked(dirty.get(i));
+                    if (idx >= 0) {
+                        ApplicationInfo info = mApplications.get(idx);
+                        if (filter == null || filter.filterApp(info)) {
+                            inserted.add(getEntryLocked(info));
+                        }
+                    }
+                }
+            }
+            for (int i=0; i<inserted.size(); i++) {
+                inserted.get(i).ensureLabel(mContext);
+            }
+            Collections.sort(inserted, comparator);
+            for (int i=0; i<inserted.size(); i++) {
+                AppEntry entry = inserted.get(i);
+                int pos = Collections.binarySearch(list, entry, comparator);
+                if (pos < 0) {
+                    pos = -pos - 1;
+                }
+                list.add(pos, entry);
+                changes.add(new Change(Change.INSERTED, pos, -1, entry));
+            }
+
+            if (changes.size() == 2 && changes.get(0).type == Change.REMOVED
+                    && changes.get(1).type == Change.INSERTED
+                    && changes.get(0).entry == changes.get(1).entry) {
+                int oldPos = changes.get(0).position;
+                int newPos = changes.get(1).position;
+                AppEntry entry = changes.get(1).entry;
+                changes.clear();
+                changes.add(new Change(oldPos == newPos ? Change.CHANGED : Change.MOVED,
+                        oldPos, newPos, entry));
+            }
         }
 
         public void release() {
@@ -621,11 +1140,61 @@ public class ApplicationsState {
         return s;
     }
 
+    /**
+     * Re-ranks all entries by label if any were added since the index was
+     * last built.  Only called on the background thread, which is the only
+     * one that sorts, so ranks never change underneath a sort.
+     */
+    void ensureSortIndex() {
+        ArrayList<AppEntry> entries;
+        synchronized (mEntriesMap) {
+            if (!mSortIndexDirty) {
+                return;
+            }
+            mSortIndexDirty = false;
+            entries = new ArrayList<AppEntry>(mAppEntries.size());
+            for (int i=0; i<mAppEntries.size(); i++) {
+                // Entries whose label is still loading are ranked next time.
+                AppEntry entry = mAppEntries.get(i);
+                if (entry.label != null) {
+                    entries.add(entry);
+                } else {
+                    mSortIndexDirty = true;
+                }
+            }
+        }
+        Collections.sort(entries, COLLATION_KEY_COMPARATOR);
+        final int gen = sSortIndexGeneration + 1;
+        sSortIndexGeneration = gen;
+        for (int i=0; i<entries.size(); i++) {
+            AppEntry entry = entries.get(i);
+            if (i > 0 && COLLATION_KEY_COMPARATOR.compare(entries.get(i-1), entry) == 0) {
+                entry.sortRank = entries.get(i-1).sortRank;
+            } else {
+                entry.sortRank = i;
+            }
+            entry.sortRankGeneration = gen;
+        }
+    }
+
+    void markPackageDirtyLocked(String pkgName) {
+        for (int i=0; i<mSessions.size(); i++) {
+            ArrayList<String> dirty = mSessions.get(i).mDirtyPackages;
+            if (!dirty.contains(pkgName)) {
+                dirty.add(pkgName);
+            }
+        }
+    }
+
     void doResumeIfNeededLocked() {
         if (mResumed) {
             return;
         }
         mResumed = true;
+        // Everything is queried again, so sessions can't patch old lists.
+        for (int i=0; i<mSessions.size(); i++) {
+            mSessions.get(i).mNeedsFullRebuild = true;
+        }
         if (mPackageIntentReceiver == null) {
             mPackageIntentReceiver = new PackageIntentReceiver();
             mPackageIntentReceiver.registerReceiver();
@@ -640,6 +1209,8 @@ public class ApplicationsState {
             // should completely reload the app entries.
             mEntriesMap.clear();
             mAppEntries.clear();
+            mEntryCache.clear();
+            mEntryCacheDirty = true;
         } else {
             for (int i=0; i<mAppEntries.size(); i++) {
                 mAppEntries.get(i).sizeStale = true;
@@ -664,7 +1235,7 @@ public class ApplicationsState {
                 entry.info = info;
             }
         }
-        mCurComputingSizePkg = null;
+        mComputingSizePkgs.clear();
         if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_LOAD_ENTRIES)) {
             mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_ENTRIES);
         }
@@ -674,6 +1245,31 @@ public class ApplicationsState {
         return mHaveDisabledApps;
     }
 
+    /**
+     * Sets how many package size requests may be outstanding at once.
+     */
+    void setMaxSizeRequests(int max) {
+        synchronized (mEntriesMap) {
+            mMaxSizeRequests = max > 0 ? max : 1;
+        }
+    }
+
+    /**
+     * Returns the timing of each loader phase: list rebuilds, label loads,
+     * icon loads and package size requests (measured from request to
+     * result).
+     */
+    public PhaseTiming[] getPhaseTimings() {
+        return new PhaseTiming[] { mRebuildTiming, mLabelTiming, mIconTiming, mSizeTiming };
+    }
+
+    public void resetPhaseTimings() {
+        PhaseTiming[] timings = getPhaseTimings();
+        for (int i=0; i<timings.length; i++) {
+            timings[i].reset();
+        }
+    }
+
     void doPauseIfNeededLocked() {
         if (!mResumed) {
             return;
@@ -691,10 +1287,10 @@ public class ApplicationsState {
     }
 
     AppEntry getEntry(String packageName) {
-        if (DEBUG_LOCKING) Log.v(TAG, "getEntry about to acquire lock...");
-        synchronized (mEntriesMap) {
-            AppEntry entry = mEntriesMap.get(packageName);
-            if (entry == null) {
+        AppEntry entry = mEntriesMap.get(packageName);
+        if (entry == null) {
+            if (DEBUG_LOCKING) Log.v(TAG, "getEntry about to acquire lock...");
+            synchronized (mEntriesMap) {
                 for (int i=0; i<mApplications.size(); i++) {
                     ApplicationInfo info = mApplications.get(i);
                     if (packageName.equals(info.packageName)) {
@@ -702,10 +1298,16 @@ public class ApplicationsState {
                         break;
                     }
                 }
+                if (DEBUG_LOCKING) Log.v(TAG, "...getEntry releasing lock");
             }
-            if (DEBUG_LOCKING) Log.v(TAG, "...getEntry releasing lock");
-            return entry;
         }
+        if (entry != null && entry.label == null) {
+            // Only fill in a missing label here; refreshing the labels of
+            // unmounted apps is left to the background thread, which is the
+            // one that sorts by them.
+            entry.ensureLabel(mContext);
+        }
+        return entry;
     }
     
     void ensureIcon(AppEntry entry) {
@@ -713,9 +1315,32 @@ public class ApplicationsState {
             return;
         }
         synchronized (entry) {
-            entry.ensureIconLocked(mContext, mPm);
+            entry.ensureIconLocked(mContext, mIconCache);
         }
     }
+
+    /**
+     * Returns whether the entry has its icon.  If not, the icon is loaded
+     * on the background thread ahead of anything else and reported through
+     * onPackageIconChanged(); for list rows, which can't wait for it.
+     */
+    boolean requestIcon(AppEntry entry) {
+        if (entry.icon != null) {
+            return true;
+        }
+        synchronized (mIconRequests) {
+            mIconRequests.remove(entry);
+            mIconRequests.add(entry);
+            if (mIconRequests.size() > MAX_ICON_REQUESTS) {
+                mIconRequests.remove(0);
+            }
+        }
+        if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_LOAD_REQUESTED_ICONS)) {
+            mBackgroundHandler.sendMessageAtFrontOfQueue(mBackgroundHandler.obtainMessage(
+                    BackgroundHandler.MSG_LOAD_REQUESTED_ICONS));
+        }
+        return false;
+    }
     
     void requestSize(String packageName) {
         if (DEBUG_LOCKING) Log.v(TAG, "requestSize about to acquire lock...");
@@ -776,6 +1401,7 @@ public class ApplicationsState {
                     mHaveDisabledApps = true;
                 }
                 mApplications.add(info);
+                markPackageDirtyLocked(pkgName);
                 if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_LOAD_ENTRIES)) {
                     mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_ENTRIES);
                 }
@@ -799,9 +1425,11 @@ public class ApplicationsState {
                 if (entry != null) {
                     mEntriesMap.remove(pkgName);
                     mAppEntries.remove(entry);
+                    mEntryCacheDirty = true;
                 }
                 ApplicationInfo info = mApplications.get(idx);
                 mApplications.remove(idx);
+                markPackageDirtyLocked(pkgName);
                 if (!info.enabled) {
                     mHaveDisabledApps = false;
                     for (int i=0; i<mApplications.size(); i++) {
@@ -829,7 +1457,14 @@ public class ApplicationsState {
         if (DEBUG) Log.i(TAG, "Looking up entry of pkg " + info.packageName + ": " + entry);
         if (entry == null) {
             if (DEBUG) Log.i(TAG, "Creating AppEntry for " + info.packageName);
-            entry = new AppEntry(mContext, info, mCurId++);
+            AppEntryCache.Record record = mEntryCache.take(info);
+            if (record != null) {
+                entry = new AppEntry(info, mCurId++, record);
+            } else {
+                entry = new AppEntry(info, mCurId++);
+                mEntryCacheDirty = true;
+            }
+            mSortIndexDirty = true;
             mEntriesMap.put(info.packageName, entry);
             mAppEntries.add(entry);
         } else if (entry.info != info) {
@@ -872,6 +1507,8 @@ public class ApplicationsState {
         static final int MSG_LOAD_ENTRIES = 2;
         static final int MSG_LOAD_ICONS = 3;
         static final int MSG_LOAD_SIZES = 4;
+        static final int MSG_ICON_EVICTED = 5;
+        static final int MSG_LOAD_REQUESTED_ICONS = 6;
 
         boolean mRunning;
 
@@ -883,6 +1520,10 @@ public class ApplicationsState {
                     AppEntry entry = mEntriesMap.get(stats.packageName);
                     if (entry != null) {
                         synchronized (entry) {
+                            if (entry.sizeLoadStart != 0) {
+                                mSizeTiming.record(1, (SystemClock.uptimeMillis()
+                                        - entry.sizeLoadStart) * 1000000);
+                            }
                             entry.sizeStale = false;
                             entry.sizeLoadStart = 0;
                             long externalCodeSize = stats.externalCodeSize
@@ -913,19 +1554,24 @@ public class ApplicationsState {
                                 if (DEBUG) Log.i(TAG, "Set size of " + entry.label + " " + entry
                                         + ": " + entry.sizeStr);
                                 sizeChanged = true;
+                                mEntryCacheDirty = true;
+                                markPackageDirtyLocked(stats.packageName);
                             }
                         }
                         if (sizeChanged) {
-                            Message msg = mMainHandler.obtainMessage(
-                                    MainHandler.MSG_PACKAGE_SIZE_CHANGED, stats.packageName);
-                            mMainHandler.sendMessage(msg);
+                            if (!mChangedSizePkgs.contains(stats.packageName)) {
+                                mChangedSizePkgs.add(stats.packageName);
+                            }
+                            if (!mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_SIZE_CHANGED)) {
+                                mMainHandler.sendEmptyMessage(
+                                        MainHandler.MSG_PACKAGE_SIZE_CHANGED);
+                            }
                         }
                     }
-                    if (mCurComputingSizePkg == null
-                            || mCurComputingSizePkg.equals(stats.packageName)) {
-                        mCurComputingSizePkg = null;
-                        sendEmptyMessage(MSG_LOAD_SIZES);
-                    }
+                    mComputingSizePkgs.remove(stats.packageName);
+                    // Replaces any pending timeout wakeup with an immediate pass.
+                    removeMessages(MSG_LOAD_SIZES);
+                    sendEmptyMessage(MSG_LOAD_SIZES);
                     if (DEBUG_LOCKING) Log.v(TAG, "onGetStatsCompleted releasing lock");
                 }
             }
@@ -935,11 +1581,57 @@ public class ApplicationsState {
             super(looper);
         }
 
+        /**
+         * Starts a size request for the entry if it needs one and there is
+         * room in the pipeline.  Returns true if the entry's size is still
+         * outstanding.
+         */
+        private boolean requestSizeIfNeededLocked(AppEntry entry, long now) {
+            if (entry.size != SIZE_UNKNOWN && !entry.sizeStale) {
+                return false;
+            }
+            final String pkg = entry.info.packageName;
+            if (mComputingSizePkgs.size() < mMaxSizeRequests
+                    && !mComputingSizePkgs.contains(pkg)
+                    && (entry.sizeLoadStart == 0
+                            || entry.sizeLoadStart < (now-SIZE_REQUEST_TIMEOUT))) {
+                if (!mRunning) {
+                    mRunning = true;
+                    Message m = mMainHandler.obtainMessage(
+                            MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
+                    mMainHandler.sendMessage(m);
+                }
+                entry.sizeLoadStart = now;
+                mComputingSizePkgs.add(pkg);
+                mPm.getPackageSizeInfo(pkg, mStatsObserver);
+            }
+            return true;
+        }
+
         @Override
         public void handleMessage(Message msg) {
+            if (!mEntryCacheLoaded) {
+                // Read outside the entries lock, which the main thread takes
+                // to resume sessions and look up entries.
+                final String configKey = mEntryCache.configKey();
+                HashMap<String, AppEntryCache.Record> records = mEntryCache.read(configKey);
+                synchronized (mEntriesMap) {
+                    mEntryCacheLoaded = true;
+                    // unless the configuration changed while reading it
+                    if (configKey.equals(mEntryCache.configKey())) {
+                        mEntryCache.setRecords(records);
+                    }
+                }
+            }
+
             // Always try rebuilding list first thing, if needed.
             ArrayList<Session> rebuildingSessions = null;
             synchronized (mEntriesMap) {
+                if (updateCollator()) {
+                    // Ranks were computed with the old collator.
+                    sSortIndexGeneration++;
+                    mSortIndexDirty = true;
+                }
                 if (mRebuildingSessions.size() > 0) {
                     rebuildingSessions = new ArrayList<Session>(mRebuildingSessions);
                     mRebuildingSessions.clear();
@@ -955,101 +1647,205 @@ public class ApplicationsState {
                 case MSG_REBUILD_LIST: {
                 } break;
                 case MSG_LOAD_ENTRIES: {
-                    int numDone = 0;
+                    final int batch = mLabelTiming.batchSize(LOADER_BATCH_BUDGET_NS,
+                            MIN_LABEL_BATCH, MAX_LABEL_BATCH, INITIAL_LABEL_BATCH);
+                    ArrayList<AppEntry> toLoad = new ArrayList<AppEntry>(batch);
                     synchronized (mEntriesMap) {
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ENTRIES acquired lock");
-                        for (int i=0; i<mApplications.size() && numDone<6; i++) {
+                        for (int i=0; i<mApplications.size() && toLoad.size()<batch; i++) {
                             if (!mRunning) {
                                 mRunning = true;
                                 Message m = mMainHandler.obtainMessage(
                                         MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
                                 mMainHandler.sendMessage(m);
                             }
-                            ApplicationInfo info = mApplications.get(i);
-                            if (mEntriesMap.get(info.packageName) == null) {
-                                numDone++;
-                                getEntryLocked(info);
+                            AppEntry entry = getEntryLocked(mApplications.get(i));
+                            if (entry.label == null) {
+                                toLoad.add(entry);
                             }
                         }
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ENTRIES releasing lock");
                     }
+                    // Labels are loaded without holding the entries lock.
+                    final long start = System.nanoTime();
+                    for (int i=0; i<toLoad.size(); i++) {
+                        toLoad.get(i).ensureLabel(mContext);
+                    }
+                    final int numDone = toLoad.size();
+                    mLabelTiming.record(numDone, System.nanoTime() - start);
+                    if (DEBUG_TIMING) Log.i(TAG, "Loaded " + numDone + "/" + batch
+                            + " labels: " + mLabelTiming);
 
-                    if (numDone >= 6) {
+                    if (numDone >= batch) {
                         sendEmptyMessage(MSG_LOAD_ENTRIES);
                     } else {
                         sendEmptyMessage(MSG_LOAD_ICONS);
                     }
                 } break;
                 case MSG_LOAD_ICONS: {
-                    int numDone = 0;
+                    final int batch = mIconTiming.batchSize(LOADER_BATCH_BUDGET_NS,
+                            MIN_ICON_BATCH, MAX_ICON_BATCH, INITIAL_ICON_BATCH);
+                    ArrayList<AppEntry> candidates = new ArrayList<AppEntry>();
+                    int numVisible;
                     synchronized (mEntriesMap) {
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ICONS acquired lock");
-                        for (int i=0; i<mAppEntries.size() && numDone<2; i++) {
-                            AppEntry entry = mAppEntries.get(i);
-                            if (entry.icon == null || !entry.mounted) {
-                                synchronized (entry) {
-                                    if (entry.ensureIconLocked(mContext, mPm)) {
-                                        if (!mRunning) {
-                                            mRunning = true;
-                                            Message m = mMainHandler.obtainMessage(
-                                                    MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
-                                            mMainHandler.sendMessage(m);
-                                        }
-                                        numDone++;
+                        // Rows on screen first.  An entry may end up in the
+                        // list twice; the second ensureIconLocked() is a no-op.
+                        for (int i=0; i<mSessions.size(); i++) {
+                            Session s = mSessions.get(i);
+                            if (s.mResumed && s.mVisibleEntries != null) {
+                                for (int j=0; j<s.mVisibleEntries.size(); j++) {
+                                    AppEntry entry = s.mVisibleEntries.get(j);
+                                    if (entry.icon == null || !entry.mounted) {
+                                        candidates.add(entry);
                                     }
                                 }
                             }
                         }
+                        numVisible = candidates.size();
+                        for (int i=0; i<mAppEntries.size(); i++) {
+                            AppEntry entry = mAppEntries.get(i);
+                            if (entry.icon == null || !entry.mounted) {
+                                candidates.add(entry);
+                            }
+                        }
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ICONS releasing lock");
                     }
+                    // Icons are loaded under each entry's own lock only.
+                    final long start = System.nanoTime();
+                    int numDone = 0;
+                    for (int i=0; i<candidates.size() && numDone<batch; i++) {
+                        if (i >= numVisible && mIconCache.isFull()) {
+                            // Loading icons nobody is looking at would only
+                            // evict others; they're loaded when shown.
+                            break;
+                        }
+                        AppEntry entry = candidates.get(i);
+                        synchronized (entry) {
+                            if (entry.ensureIconLocked(mContext, mIconCache)) {
+                                if (!mRunning) {
+                                    mRunning = true;
+                                    Message m = mMainHandler.obtainMessage(
+                                            MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
+                                    mMainHandler.sendMessage(m);
+                                }
+                                numDone++;
+                            }
+                        }
+                    }
+                    mIconTiming.record(numDone, System.nanoTime() - start);
+                    if (DEBUG_TIMING) Log.i(TAG, "Loaded " + numDone + "/" + batch
+                            + " icons: " + mIconTiming);
                     if (numDone > 0) {
                         if (!mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_ICON_CHANGED)) {
                             mMainHandler.sendEmptyMessage(MainHandler.MSG_PACKAGE_ICON_CHANGED);
                         }
                     }
-                    if (numDone >= 2) {
+                    if (numDone >= batch) {
                         sendEmptyMessage(MSG_LOAD_ICONS);
                     } else {
                         sendEmptyMessage(MSG_LOAD_SIZES);
                     }
                 } break;
+                case MSG_LOAD_REQUESTED_ICONS: {
+                    ArrayList<AppEntry> requested;
+                    synchronized (mIconRequests) {
+                        requested = new ArrayList<AppEntry>(mIconRequests);
+                        mIconRequests.clear();
+                    }
+                    // Newest first: those rows just scrolled into view.
+                    boolean loaded = false;
+                    for (int i=requested.size()-1; i>=0; i--) {
+                        AppEntry entry = requested.get(i);
+                        synchronized (entry) {
+                            entry.ensureIconLocked(mContext, mIconCache);
+                            loaded |= entry.icon != null;
+                        }
+                    }
+                    if (loaded) {
+                        if (!mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_ICON_CHANGED)) {
+                            mMainHandler.sendEmptyMessage(MainHandler.MSG_PACKAGE_ICON_CHANGED);
+                        }
+                    }
+                } break;
+                case MSG_ICON_EVICTED: {
+                    @SuppressWarnings("unchecked")
+                    Pair<String, Bitmap> evicted = (Pair<String, Bitmap>) msg.obj;
+                    AppEntry entry;
+                    synchronized (mEntriesMap) {
+                        entry = mEntriesMap.get(evicted.first);
+                    }
+                    if (entry != null) {
+                        synchronized (entry) {
+                            // Rows on screen keep drawing the icon they
+                            // have; it is loaded again when next bound.
+                            if (entry.icon instanceof BitmapDrawable
+                                    && ((BitmapDrawable) entry.icon).getBitmap()
+                                            == evicted.second) {
+                                entry.icon = null;
+                            }
+                        }
+                    }
+                } break;
                 case MSG_LOAD_SIZES: {
+                    ArrayList<AppEntry> snapshotEntries = null;
                     synchronized (mEntriesMap) {
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES acquired lock");
-                        if (mCurComputingSizePkg != null) {
-                            if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing: currently computing");
-                            return;
+                        long now = SystemClock.uptimeMillis();
+                        // Give up on requests that have been outstanding too
+                        // long, so that their packages get asked for again.
+                        for (int i=mComputingSizePkgs.size()-1; i>=0; i--) {
+                            AppEntry entry = mEntriesMap.get(mComputingSizePkgs.get(i));
+                            if (entry == null
+                                    || entry.sizeLoadStart < (now-SIZE_REQUEST_TIMEOUT)) {
+                                mComputingSizePkgs.remove(i);
+                            }
                         }
 
-                        long now = SystemClock.uptimeMillis();
-                        for (int i=0; i<mAppEntries.size(); i++) {
-                            AppEntry entry = mAppEntries.get(i);
-                            if (entry.size == SIZE_UNKNOWN || entry.sizeStale) {
-                                if (entry.sizeLoadStart == 0 ||
-                                        (entry.sizeLoadStart < (now-20*1000))) {
-                                    if (!mRunning) {
-                                        mRunning = true;
-                                        Message m = mMainHandler.obtainMessage(
-                                                MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
-                                        mMainHandler.sendMessage(m);
-                                    }
-                                    entry.sizeLoadStart = now;
-                                    mCurComputingSizePkg = entry.info.packageName;
-                                    mPm.getPackageSizeInfo(mCurComputingSizePkg, mStatsObserver);
+                        // Visible entries go first, then everything else.
+                        boolean pending = false;
+                        for (int i=0; i<mSessions.size(); i++) {
+                            Session s = mSessions.get(i);
+                            if (s.mResumed && s.mVisibleEntries != null) {
+                                for (int j=0; j<s.mVisibleEntries.size(); j++) {
+                                    pending |= requestSizeIfNeededLocked(
+                                            s.mVisibleEntries.get(j), now);
                                 }
-                                if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing: now computing");
-                                return;
                             }
                         }
+                        for (int i=0; i<mAppEntries.size(); i++) {
+                            pending |= requestSizeIfNeededLocked(mAppEntries.get(i), now);
+                        }
+                        if (pending) {
+                            // Wake up to retry if a result never arrives.
+                            removeMessages(MSG_LOAD_SIZES);
+                            sendEmptyMessageDelayed(MSG_LOAD_SIZES, SIZE_REQUEST_TIMEOUT);
+                            if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing: now computing");
+                            return;
+                        }
                         if (!mMainHandler.hasMessages(MainHandler.MSG_ALL_SIZES_COMPUTED)) {
+                            if (DEBUG_TIMING) {
+                                PhaseTiming[] timings = getPhaseTimings();
+                                for (int i=0; i<timings.length; i++) {
+                                    Log.i(TAG, "Loader " + timings[i]);
+                                }
+                            }
                             mMainHandler.sendEmptyMessage(MainHandler.MSG_ALL_SIZES_COMPUTED);
                             mRunning = false;
                             Message m = mMainHandler.obtainMessage(
                                     MainHandler.MSG_RUNNING_STATE_CHANGED, 0);
                             mMainHandler.sendMessage(m);
                         }
+                        if (mEntryCacheDirty) {
+                            mEntryCacheDirty = false;
+                            snapshotEntries = new ArrayList<AppEntry>(mAppEntries);
+                        }
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing lock");
                     }
+                    if (snapshotEntries != null) {
+                        // Everything is loaded; persist it for the next cold start.
+                        mEntryCache.write(snapshotEntries);
+                    }
                 } break;
             }
         }
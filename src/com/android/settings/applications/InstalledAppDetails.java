@@ -29,20 +29,17 @@ import android.app.Dialog;
 import android.app.DialogFragment;
 import android.app.Fragment;
 import android.app.INotificationManager;
-import android.app.admin.DevicePolicyManager;
 import android.appwidget.AppWidgetManager;
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.IPackageDataObserver;
 import android.content.pm.IPackageMoveObserver;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
-import android.content.pm.ResolveInfo;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.res.Resources;
 import android.hardware.usb.IUsbManager;
@@ -51,12 +48,10 @@ import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.Handler;
-import android.os.IBinder;
 import android.os.Message;
 import android.os.RemoteException;
 import android.os.ServiceManager;
 import android.os.UserHandle;
-import android.os.UserManager;
 import android.preference.PreferenceActivity;
 import android.text.SpannableString;
 import android.text.TextUtils;
@@ -66,7 +61,6 @@ import android.util.Log;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -103,10 +97,6 @@ public class InstalledAppDetails extends Fragment
     public static final String ARG_PACKAGE_NAME = "package";
 
     private PackageManager mPm;
-    private UserManager mUserManager;
-    private IUsbManager mUsbManager;
-    private AppWidgetManager mAppWidgetManager;
-    private DevicePolicyManager mDpm;
     private ISms mSmsManager;
     private ApplicationsState mState;
     private ApplicationsState.Session mSession;
@@ -114,6 +104,11 @@ public class InstalledAppDetails extends Fragment
     private boolean mInitialized;
     private boolean mShowUninstalled;
     private PackageInfo mPackageInfo;
+    private AppDetailsPrefetcher mPrefetcher;
+    // Latest details delivered by mPrefetcher; null until the first arrive.
+    private AppDetailsPrefetcher.AppDetails mDetails;
+    // Set when something changed that mDetails may not reflect.
+    private boolean mDetailsInvalid;
     private CanBeOnSdCardChecker mCanBeOnSdCardChecker;
     private View mRootView;
     private Button mUninstallButton;
@@ -144,7 +139,6 @@ public class InstalledAppDetails extends Fragment
 
     private PackageMoveObserver mPackageMoveObserver;
 
-    private final HashSet<String> mHomePackages = new HashSet<String>();
 
     private boolean mDisableAfterUninstall;
 
@@ -252,7 +246,7 @@ public class InstalledAppDetails extends Fragment
                 && ((mAppEntry.info.flags&(ApplicationInfo.FLAG_SYSTEM
                         | ApplicationInfo.FLAG_ALLOW_CLEAR_USER_DATA))
                         == ApplicationInfo.FLAG_SYSTEM
-                        || mDpm.packageHasActiveAdmins(mPackageInfo.packageName))) {
+                        || mDetails.mHasActiveAdmins)) {
             mClearDataButton.setText(R.string.clear_user_data_text);
             mClearDataButton.setEnabled(false);
             mCanClearData = false;
@@ -312,13 +306,7 @@ public class InstalledAppDetails extends Fragment
     }
 
     private boolean isThisASystemPackage() {
-        try {
-            PackageInfo sys = mPm.getPackageInfo("android", PackageManager.GET_SIGNATURES);
-            return (mPackageInfo != null && mPackageInfo.signatures != null &&
-                    sys.signatures[0].equals(mPackageInfo.signatures[0]));
-        } catch (PackageManager.NameNotFoundException e) {
-            return false;
-        }
+        return mDetails != null && mDetails.mSystemSigned;
     }
 
     private boolean handleDisableable(Button button) {
@@ -326,7 +314,8 @@ public class InstalledAppDetails extends Fragment
         // Try to prevent the user from bricking their phone
         // by not allowing disabling of apps signed with the
         // system cert and any launcher app in the system.
-        if (mHomePackages.contains(mAppEntry.info.packageName) || isThisASystemPackage()) {
+        if (mDetails.mHomePackages.contains(mAppEntry.info.packageName)
+                || isThisASystemPackage()) {
             // Disable button for core system applications.
             button.setText(R.string.disable_text);
         } else if (mAppEntry.info.enabled) {
@@ -357,7 +346,7 @@ public class InstalledAppDetails extends Fragment
                 enabled = handleDisableable(mUninstallButton);
             } else if ((mPackageInfo.applicationInfo.flags
                     & ApplicationInfo.FLAG_INSTALLED) == 0
-                    && mUserManager.getUsers().size() >= 2) {
+                    && mDetails.mUserCount >= 2) {
                 // When we have multiple users, there is a separate menu
                 // to uninstall for all users.
                 mUninstallButton.setText(R.string.uninstall_text);
@@ -368,19 +357,18 @@ public class InstalledAppDetails extends Fragment
         }
         // If this is a device admin, it can't be uninstalled or disabled.
         // We do this here so the text of the button is still set correctly.
-        if (mDpm.packageHasActiveAdmins(mPackageInfo.packageName)) {
+        if (mDetails.mHasActiveAdmins) {
             enabled = false;
         }
 
         // If this is the default (or only) home app, suppress uninstall (even if
         // we still think it should be allowed for other reasons)
-        if (enabled && mHomePackages.contains(mPackageInfo.packageName)) {
-            ArrayList<ResolveInfo> homeActivities = new ArrayList<ResolveInfo>();
-            ComponentName currentDefaultHome  = mPm.getHomeActivities(homeActivities);
+        if (enabled && mDetails.mHomePackages.contains(mPackageInfo.packageName)) {
+            ComponentName currentDefaultHome = mDetails.mCurrentDefaultHome;
             if (currentDefaultHome == null) {
                 // No preferred default, so permit uninstall only when
                 // there is more than one candidate
-                enabled = (mHomePackages.size() > 1);
+                enabled = (mDetails.mHomePackages.size() > 1);
             } else {
                 // There is an explicit default home app -- forbid uninstall of
                 // that one, but permit it for installed-but-inactive ones.
@@ -396,16 +384,7 @@ public class InstalledAppDetails extends Fragment
     }
 
     private void initNotificationButton() {
-        INotificationManager nm = INotificationManager.Stub.asInterface(
-                ServiceManager.getService(Context.NOTIFICATION_SERVICE));
-        boolean enabled = true; // default on
-        try {
-            enabled = nm.areNotificationsEnabledForPackage(mAppEntry.info.packageName,
-                    mAppEntry.info.uid);
-        } catch (android.os.RemoteException ex) {
-            // this does not bode well
-        }
-        mNotificationSwitch.setChecked(enabled);
+        mNotificationSwitch.setChecked(mDetails.mNotificationsEnabled);
         if (isThisASystemPackage()) {
             mNotificationSwitch.setEnabled(false);
         } else {
@@ -422,19 +401,21 @@ public class InstalledAppDetails extends Fragment
         mState = ApplicationsState.getInstance(getActivity().getApplication());
         mSession = mState.newSession(this);
         mPm = getActivity().getPackageManager();
-        mUserManager = (UserManager)getActivity().getSystemService(Context.USER_SERVICE);
-        IBinder b = ServiceManager.getService(Context.USB_SERVICE);
-        mUsbManager = IUsbManager.Stub.asInterface(b);
-        mAppWidgetManager = AppWidgetManager.getInstance(getActivity());
-        mDpm = (DevicePolicyManager)getActivity().getSystemService(Context.DEVICE_POLICY_SERVICE);
         mSmsManager = ISms.Stub.asInterface(ServiceManager.getService("isms"));
 
         mCanBeOnSdCardChecker = new CanBeOnSdCardChecker();
 
+        // Start the detail queries now so that they run while the views are
+        // inflated; onResume() claims them.  The list may already have
+        // started them when the row was pressed.
+        final String packageName = retrievePackageName();
+        mPrefetcher = AppDetailsPrefetcher.getInstance(getActivity());
+        mPrefetcher.prefetch(packageName);
+
         // Need to make sure we have loaded applications at this point.
         mSession.resume();
 
-        retrieveAppEntry();
+        mAppEntry = mState.getEntry(packageName);
 
         setHasOptionsMenu(true);
     }
@@ -509,11 +490,11 @@ public class InstalledAppDetails extends Fragment
             showIt = false;
         } else if ((mAppEntry.info.flags & ApplicationInfo.FLAG_SYSTEM) != 0) {
             showIt = false;
-        } else if (mPackageInfo == null || mDpm.packageHasActiveAdmins(mPackageInfo.packageName)) {
+        } else if (mPackageInfo == null || mDetails.mHasActiveAdmins) {
             showIt = false;
         } else if (UserHandle.myUserId() != 0) {
             showIt = false;
-        } else if (mUserManager.getUsers().size() < 2) {
+        } else if (mDetails.mUserCount < 2) {
             showIt = false;
         }
         menu.findItem(UNINSTALL_ALL_USERS_MENU).setVisible(showIt);
@@ -547,9 +528,9 @@ public class InstalledAppDetails extends Fragment
                 } catch (NameNotFoundException e) {
                 }
             }
-            if (!refreshUi()) {
-                setIntentAndFinish(true, true);
-            }
+            // Uninstalled, or back to the factory version; onResume() binds
+            // the details once they are fetched again.
+            invalidateDetails();
         }
     }
 
@@ -581,8 +562,14 @@ public class InstalledAppDetails extends Fragment
         super.onResume();
         
         mSession.resume();
+        // Show what we have right away, and fetch the details again only if
+        // they are missing or may have changed while we were away.
         if (!refreshUi()) {
             setIntentAndFinish(true, true);
+            return;
+        }
+        if (mDetails == null || mDetailsInvalid || mDetails.isStale()) {
+            loadDetails();
         }
     }
 
@@ -590,6 +577,7 @@ public class InstalledAppDetails extends Fragment
     public void onPause() {
         super.onPause();
         mSession.pause();
+        mPrefetcher.cancel(mDetailsCallback);
     }
 
     @Override
@@ -608,13 +596,18 @@ public class InstalledAppDetails extends Fragment
 
     @Override
     public void onPackageListChanged() {
-        refreshUi();
+        invalidateDetails();
     }
 
     @Override
     public void onRebuildComplete(ArrayList<AppEntry> apps) {
     }
 
+    @Override
+    public void onRebuildDelta(ArrayList<AppEntry> apps,
+            ArrayList<ApplicationsState.Change> changes) {
+    }
+
     @Override
     public void onPackageSizeChanged(String packageName) {
         if (mAppEntry == null) {
@@ -622,7 +615,8 @@ public class InstalledAppDetails extends Fragment
             return;
         }
 
-        if (packageName.equals(mAppEntry.info.packageName)) {
+        // refreshUi() refreshes the sizes too once the details arrive
+        if (packageName.equals(mAppEntry.info.packageName) && mDetails != null) {
             refreshSizeInfo();
         }
     }
@@ -631,7 +625,7 @@ public class InstalledAppDetails extends Fragment
     public void onRunningStateChanged(boolean running) {
     }
 
-    private String retrieveAppEntry() {
+    private String retrievePackageName() {
         final Bundle args = getArguments();
         String packageName = (args != null) ? args.getString(ARG_PACKAGE_NAME) : null;
         if (packageName == null) {
@@ -641,17 +635,47 @@ public class InstalledAppDetails extends Fragment
                 packageName = intent.getData().getSchemeSpecificPart();
             }
         }
+        return packageName;
+    }
+
+    private final AppDetailsPrefetcher.Callback mDetailsCallback =
+            new AppDetailsPrefetcher.Callback() {
+        @Override
+        public void onDetailsLoaded(AppDetailsPrefetcher.AppDetails details) {
+            mDetails = details;
+            mDetailsInvalid = false;
+            getActivity().invalidateOptionsMenu();
+            if (!refreshUi()) {
+                setIntentAndFinish(true, true);
+            }
+        }
+    };
+
+    /**
+     * Fetches the details again in the background; refreshUi() binds them
+     * when they arrive.  While paused, only notes that onResume() must.
+     */
+    private void invalidateDetails() {
+        mDetailsInvalid = true;
+        if (isResumed()) {
+            loadDetails();
+        }
+    }
+
+    private void loadDetails() {
+        final String packageName = retrievePackageName();
+        if (packageName != null) {
+            mPrefetcher.load(packageName, mDetailsCallback);
+        }
+    }
+
+    private String retrieveAppEntry() {
+        final String packageName = retrievePackageName();
         mAppEntry = mState.getEntry(packageName);
         if (mAppEntry != null) {
-            // Get application info again to refresh changed properties of application
-            try {
-                mPackageInfo = mPm.getPackageInfo(mAppEntry.info.packageName,
-                        PackageManager.GET_DISABLED_COMPONENTS |
-                        PackageManager.GET_UNINSTALLED_PACKAGES |
-                        PackageManager.GET_SIGNATURES);
-            } catch (NameNotFoundException e) {
-                Log.e(TAG, "Exception when retrieving package:" + mAppEntry.info.packageName, e);
-            }
+            // Application info as of the latest details; mDetailsCallback
+            // refreshes it when they change.
+            mPackageInfo = mDetails != null ? mDetails.mPackageInfo : null;
         } else {
             Log.w(TAG, "Missing AppEntry; maybe reinstalling?");
             mPackageInfo = null;
@@ -660,21 +684,10 @@ public class InstalledAppDetails extends Fragment
         return packageName;
     }
 
-    private boolean signaturesMatch(String pkg1, String pkg2) {
-        if (pkg1 != null && pkg2 != null) {
-            try {
-                final int match = mPm.checkSignatures(pkg1, pkg2);
-                if (match >= PackageManager.SIGNATURE_MATCH) {
-                    return true;
-                }
-            } catch (Exception e) {
-                // e.g. named alternate package not found during lookup;
-                // this is an expected case sometimes
-            }
-        }
-        return false;
-    }
-
+    /**
+     * Binds the latest details without fetching anything.  Returns false if
+     * the app is gone and the screen should close.
+     */
     private boolean refreshUi() {
         if (mMoveInProgress) {
             return true;
@@ -685,49 +698,24 @@ public class InstalledAppDetails extends Fragment
             return false; // onCreate must have failed, make sure to exit
         }
 
-        if (mPackageInfo == null) {
-            return false; // onCreate must have failed, make sure to exit
+        if (mDetails == null) {
+            return true; // still loading; mDetailsCallback binds them
         }
 
-        // Get list of "home" apps and trace through any meta-data references
-        List<ResolveInfo> homeActivities = new ArrayList<ResolveInfo>();
-        mPm.getHomeActivities(homeActivities);
-        mHomePackages.clear();
-        for (int i = 0; i< homeActivities.size(); i++) {
-            ResolveInfo ri = homeActivities.get(i);
-            final String activityPkg = ri.activityInfo.packageName;
-            mHomePackages.add(activityPkg);
-
-            // Also make sure to include anything proxying for the home app
-            final Bundle metadata = ri.activityInfo.metaData;
-            if (metadata != null) {
-                final String metaPkg = metadata.getString(ActivityManager.META_HOME_ALTERNATE);
-                if (signaturesMatch(metaPkg, activityPkg)) {
-                    mHomePackages.add(metaPkg);
-                }
-            }
+        if (mPackageInfo == null) {
+            return false; // onCreate must have failed, make sure to exit
         }
 
-        // Get list of preferred activities
-        List<ComponentName> prefActList = new ArrayList<ComponentName>();
-        
-        // Intent list cannot be null. so pass empty list
-        List<IntentFilter> intentList = new ArrayList<IntentFilter>();
-        mPm.getPreferredActivities(intentList, prefActList, packageName);
-        if (localLOGV)
-            Log.i(TAG, "Have " + prefActList.size() + " number of activities in preferred list");
-        boolean hasUsbDefaults = false;
-        try {
-            hasUsbDefaults = mUsbManager.hasDefaults(packageName, UserHandle.myUserId());
-        } catch (RemoteException e) {
-            Log.e(TAG, "mUsbManager.hasDefaults", e);
-        }
-        boolean hasBindAppWidgetPermission =
-                mAppWidgetManager.hasBindAppWidgetPermission(mAppEntry.info.packageName);
+        if (localLOGV) Log.i(TAG, "Have " + mDetails.mPreferredActivityCount
+                + " number of activities in preferred list");
+        if (localLOGV) Log.i(TAG, "Details took " + (mDetails.getWaitNanos()/1000)
+                + "us to arrive");
+        final boolean hasUsbDefaults = mDetails.mHasUsbDefaults;
+        final boolean hasBindAppWidgetPermission = mDetails.mHasBindAppWidgetPermission;
 
         TextView autoLaunchTitleView = (TextView) mRootView.findViewById(R.id.auto_launch_title);
         TextView autoLaunchView = (TextView) mRootView.findViewById(R.id.auto_launch);
-        boolean autoLaunchEnabled = prefActList.size() > 0 || hasUsbDefaults;
+        boolean autoLaunchEnabled = mDetails.mPreferredActivityCount > 0 || hasUsbDefaults;
         if (!autoLaunchEnabled && !hasBindAppWidgetPermission) {
             resetLaunchDefaultsUi(autoLaunchTitleView, autoLaunchView);
         } else {
@@ -768,13 +756,13 @@ public class InstalledAppDetails extends Fragment
         }
 
         // Screen compatibility section.
-        ActivityManager am = (ActivityManager)
-                getActivity().getSystemService(Context.ACTIVITY_SERVICE);
-        int compatMode = am.getPackageScreenCompatMode(packageName);
+        int compatMode = mDetails.mScreenCompatMode;
         // For now these are always off; this is the old UI model which we
         // are no longer using.
         if (false && (compatMode == ActivityManager.COMPAT_MODE_DISABLED
                 || compatMode == ActivityManager.COMPAT_MODE_ENABLED)) {
+            ActivityManager am = (ActivityManager)
+                    getActivity().getSystemService(Context.ACTIVITY_SERVICE);
             mScreenCompatSection.setVisibility(View.VISIBLE);
             mAskCompatibilityCB.setChecked(am.getPackageAskScreenCompat(packageName));
             mAskCompatibilityCB.setOnCheckedChangeListener(this);
@@ -787,7 +775,7 @@ public class InstalledAppDetails extends Fragment
         // Security permissions section
         LinearLayout permsView = (LinearLayout) mRootView.findViewById(R.id.permissions_section);
         AppSecurityPermissions asp = new AppSecurityPermissions(getActivity(), packageName);
-        int premiumSmsPermission = getPremiumSmsPermission(packageName);
+        int premiumSmsPermission = mDetails.mPremiumSmsPermission;
         // Premium SMS permission implies the app also has SEND_SMS permission, so the original
         // application permissions list doesn't have to be shown/hidden separately. The premium
         // SMS subsection should only be visible if the app has tried to send to a premium SMS.
@@ -815,8 +803,7 @@ public class InstalledAppDetails extends Fragment
             spinner.setAdapter(adapter);
             // List items are in the same order as SmsUsageMonitor constants, offset by 1.
             spinner.setSelection(premiumSmsPermission - 1);
-            spinner.setOnItemSelectedListener(new PremiumSmsSelectionListener(
-                    packageName, mSmsManager));
+            spinner.setOnItemSelectedListener(new PremiumSmsSelectionListener(packageName));
         } else {
             // Hide the premium SMS permission selector
             securityBillingDesc.setVisibility(View.GONE);
@@ -831,43 +818,29 @@ public class InstalledAppDetails extends Fragment
             securityList.addView(asp.getPermissionsViewWithRevokeButtons());
             // If this app is running under a shared user ID with other apps,
             // update the description to explain this.
-            String[] packages = mPm.getPackagesForUid(mPackageInfo.applicationInfo.uid);
-            if (packages != null && packages.length > 1) {
-                ArrayList<CharSequence> pnames = new ArrayList<CharSequence>();
-                for (int i=0; i<packages.length; i++) {
-                    String pkg = packages[i];
-                    if (mPackageInfo.packageName.equals(pkg)) {
-                        continue;
-                    }
-                    try {
-                        ApplicationInfo ainfo = mPm.getApplicationInfo(pkg, 0);
-                        pnames.add(ainfo.loadLabel(mPm));
-                    } catch (PackageManager.NameNotFoundException e) {
-                    }
-                }
-                final int N = pnames.size();
-                if (N > 0) {
-                    final Resources res = getActivity().getResources();
-                    String appListStr;
-                    if (N == 1) {
-                        appListStr = pnames.get(0).toString();
-                    } else if (N == 2) {
-                        appListStr = res.getString(R.string.join_two_items, pnames.get(0),
-                                pnames.get(1));
-                    } else {
-                        appListStr = pnames.get(N-2).toString();
-                        for (int i=N-3; i>=0; i--) {
-                            appListStr = res.getString(i == 0 ? R.string.join_many_items_first
-                                    : R.string.join_many_items_middle, pnames.get(i), appListStr);
-                        }
-                        appListStr = res.getString(R.string.join_many_items_last,
-                                appListStr, pnames.get(N-1));
+            final List<CharSequence> pnames = mDetails.mSharedUserLabels;
+            final int N = pnames.size();
+            if (N > 0) {
+                final Resources res = getActivity().getResources();
+                String appListStr;
+                if (N == 1) {
+                    appListStr = pnames.get(0).toString();
+                } else if (N == 2) {
+                    appListStr = res.getString(R.string.join_two_items, pnames.get(0),
+                            pnames.get(1));
+                } else {
+                    appListStr = pnames.get(N-2).toString();
+                    for (int i=N-3; i>=0; i--) {
+                        appListStr = res.getString(i == 0 ? R.string.join_many_items_first
+                                : R.string.join_many_items_middle, pnames.get(i), appListStr);
                     }
-                    TextView descr = (TextView) mRootView.findViewById(
-                            R.id.security_settings_desc);
-                    descr.setText(res.getString(R.string.security_settings_desc_multi,
-                            mPackageInfo.applicationInfo.loadLabel(mPm), appListStr));
+                    appListStr = res.getString(R.string.join_many_items_last,
+                            appListStr, pnames.get(N-1));
                 }
+                TextView descr = (TextView) mRootView.findViewById(
+                        R.id.security_settings_desc);
+                descr.setText(res.getString(R.string.security_settings_desc_multi,
+                        mPackageInfo.applicationInfo.loadLabel(mPm), appListStr));
             }
         }
         
@@ -882,40 +855,37 @@ public class InstalledAppDetails extends Fragment
             mShowUninstalled = (mAppEntry.info.flags&ApplicationInfo.FLAG_INSTALLED) == 0;
         } else {
             // All other times: if the app no longer exists then we want
-            // to go away.
-            try {
-                ApplicationInfo ainfo = getActivity().getPackageManager().getApplicationInfo(
-                        mAppEntry.info.packageName, PackageManager.GET_UNINSTALLED_PACKAGES
-                        | PackageManager.GET_DISABLED_COMPONENTS);
-                if (!mShowUninstalled) {
-                    // If we did not start out with the app uninstalled, then
-                    // it transitioning to the uninstalled state for the current
-                    // user means we should go away as well.
-                    return (ainfo.flags&ApplicationInfo.FLAG_INSTALLED) != 0;
-                }
-            } catch (NameNotFoundException e) {
-                return false;
+            // to go away.  It still existed when the details were fetched,
+            // or we would have bailed out above.
+            if (!mShowUninstalled) {
+                // If we did not start out with the app uninstalled, then
+                // it transitioning to the uninstalled state for the current
+                // user means we should go away as well.
+                return (mPackageInfo.applicationInfo.flags&ApplicationInfo.FLAG_INSTALLED) != 0;
             }
         }
 
         return true;
     }
 
-    private static class PremiumSmsSelectionListener implements AdapterView.OnItemSelectedListener {
+    private class PremiumSmsSelectionListener implements AdapterView.OnItemSelectedListener {
         private final String mPackageName;
-        private final ISms mSmsManager;
 
-        PremiumSmsSelectionListener(String packageName, ISms smsManager) {
+        PremiumSmsSelectionListener(String packageName) {
             mPackageName = packageName;
-            mSmsManager = smsManager;
         }
 
         @Override
         public void onItemSelected(AdapterView<?> parent, View view, int position,
                 long id) {
             if (position >= 0 && position < 3) {
+                if (mDetails != null && mDetails.mPremiumSmsPermission == position + 1) {
+                    // the selection refreshUi() just bound
+                    return;
+                }
                 Log.d(TAG, "Selected premium SMS policy " + position);
                 setPremiumSmsPermission(mPackageName, (position + 1));
+                invalidateDetails();
             } else {
                 Log.e(TAG, "Error: unknown premium SMS policy " + position);
             }
@@ -1059,6 +1029,8 @@ public class InstalledAppDetails extends Fragment
             showDialogInner(DLG_MOVE_FAILED, result);
         }
         refreshUi();
+        // The app's location changed; bind it again once the details show it.
+        invalidateDetails();
     }
 
     /*
@@ -1283,7 +1255,7 @@ public class InstalledAppDetails extends Fragment
     }
     
     private void checkForceStop() {
-        if (mDpm.packageHasActiveAdmins(mPackageInfo.packageName)) {
+        if (mDetails.mHasActiveAdmins) {
             // User can't force stop device admin.
             updateForceStopButton(false);
         } else if ((mAppEntry.info.flags&ApplicationInfo.FLAG_STOPPED) == 0) {
@@ -1328,22 +1300,12 @@ public class InstalledAppDetails extends Fragment
         try {
             final boolean enable = mNotificationSwitch.isChecked();
             nm.setNotificationsEnabledForPackage(packageName, mAppEntry.info.uid, enabled);
+            invalidateDetails();
         } catch (android.os.RemoteException ex) {
             mNotificationSwitch.setChecked(!enabled); // revert
         }
     }
 
-    private int getPremiumSmsPermission(String packageName) {
-        try {
-            if (mSmsManager != null) {
-                return mSmsManager.getPremiumSmsPermission(packageName);
-            }
-        } catch (RemoteException ex) {
-            // ignored
-        }
-        return SmsUsageMonitor.PREMIUM_SMS_PERMISSION_UNKNOWN;
-    }
-
     /*
      * Method implementing functionality of buttons clicked
      * @see android.view.View.OnClickListener#onClick(android.view.View)
@@ -1372,16 +1334,20 @@ public class InstalledAppDetails extends Fragment
             showDialogInner(DLG_SPECIAL_DISABLE, 0);
         } else if(v == mActivitiesButton) {
             mPm.clearPackagePreferredActivities(packageName);
+            IUsbManager usbManager = IUsbManager.Stub.asInterface(
+                    ServiceManager.getService(Context.USB_SERVICE));
             try {
-                mUsbManager.clearDefaults(packageName, UserHandle.myUserId());
+                usbManager.clearDefaults(packageName, UserHandle.myUserId());
             } catch (RemoteException e) {
-                Log.e(TAG, "mUsbManager.clearDefaults", e);
+                Log.e(TAG, "clearDefaults", e);
             }
-            mAppWidgetManager.setBindAppWidgetPermission(packageName, false);
+            AppWidgetManager.getInstance(getActivity())
+                    .setBindAppWidgetPermission(packageName, false);
             TextView autoLaunchTitleView =
                     (TextView) mRootView.findViewById(R.id.auto_launch_title);
             TextView autoLaunchView = (TextView) mRootView.findViewById(R.id.auto_launch);
             resetLaunchDefaultsUi(autoLaunchTitleView, autoLaunchView);
+            invalidateDetails();
         } else if(v == mClearDataButton) {
             if (mAppEntry.info.manageSpaceActivityName != null) {
                 if (!Utils.isMonkeyRunning()) {
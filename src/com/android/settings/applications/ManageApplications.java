@@ -35,6 +35,7 @@ import android.content.pm.ApplicationInfo;
 import android.content.pm.IPackageManager;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
+import android.graphics.drawable.Drawable;
 import android.net.NetworkPolicyManager;
 import android.os.AsyncTask;
 import android.os.Bundle;
@@ -57,7 +58,9 @@ import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
+import android.view.MotionEvent;
 import android.view.View;
+import android.view.ViewConfiguration;
 import android.view.ViewGroup;
 import android.view.animation.AnimationUtils;
 import android.widget.AbsListView;
@@ -80,6 +83,7 @@ import com.android.settings.Utils;
 
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.IdentityHashMap;
 import java.util.List;
 
 final class CanBeOnSdCardChecker {
@@ -175,7 +179,7 @@ public class ManageApplications extends Fragment implements
     
     private ApplicationsState mApplicationsState;
 
-    public static class TabInfo implements OnItemClickListener {
+    public static class TabInfo implements OnItemClickListener, View.OnTouchListener {
         public final ManageApplications mOwner;
         public final ApplicationsState mApplicationsState;
         public final CharSequence mLabel;
@@ -214,6 +218,19 @@ public class ManageApplications extends Fragment implements
             }
         };
 
+        // Package of the row under the finger, and whether its details have
+        // been prefetched yet.
+        private String mPressedPackage;
+        private boolean mPrefetchStarted;
+        private float mDownX, mDownY;
+        private int mTouchSlop;
+
+        final Runnable mStartPrefetch = new Runnable() {
+            public void run() {
+                startPrefetch();
+            }
+        };
+
         public TabInfo(ManageApplications owner, ApplicationsState apps,
                 CharSequence label, int listType, AppClickListener clickListener,
                 Bundle savedInstanceState) {
@@ -258,6 +275,8 @@ public class ManageApplications extends Fragment implements
                     lv.setEmptyView(emptyView);
                 }
                 lv.setOnItemClickListener(this);
+                lv.setOnTouchListener(this);
+                mTouchSlop = ViewConfiguration.get(mOwner.getActivity()).getScaledTouchSlop();
                 lv.setSaveEnabled(true);
                 lv.setItemsCanFocus(true);
                 lv.setTextFilterEnabled(true);
@@ -265,6 +284,7 @@ public class ManageApplications extends Fragment implements
                 mApplications = new ApplicationsAdapter(mApplicationsState, this, mFilter);
                 mListView.setAdapter(mApplications);
                 mListView.setRecyclerListener(mApplications);
+                mListView.setOnScrollListener(mApplications);
                 mColorBar = (LinearColorBar)mListContainer.findViewById(R.id.storage_color_bar);
                 mStorageChartLabel = (TextView)mListContainer.findViewById(R.id.storageChartLabel);
                 mUsedStorageText = (TextView)mListContainer.findViewById(R.id.usedStorageText);
@@ -426,6 +446,68 @@ public class ManageApplications extends Fragment implements
             mClickListener.onItemClick(this, parent, view, position, id);
         }
 
+        @Override
+        public boolean onTouch(View v, MotionEvent event) {
+            // Start fetching the details of the app under the finger once
+            // the touch is a press rather than the start of a scroll, so
+            // they are on their way by the time the click opens them.
+            switch (event.getActionMasked()) {
+                case MotionEvent.ACTION_DOWN: {
+                    cancelPrefetch();
+                    if (mApplications == null) {
+                        break;
+                    }
+                    final int position = mListView.pointToPosition((int) event.getX(),
+                            (int) event.getY());
+                    if (position != AdapterView.INVALID_POSITION
+                            && position < mApplications.getCount()) {
+                        mPressedPackage = mApplications.getAppEntry(position).info.packageName;
+                        mDownX = event.getX();
+                        mDownY = event.getY();
+                        // the list shows the row pressed after the same delay
+                        mListView.postDelayed(mStartPrefetch,
+                                ViewConfiguration.getTapTimeout());
+                    }
+                } break;
+                case MotionEvent.ACTION_MOVE:
+                    if (mPressedPackage != null
+                            && (Math.abs(event.getX() - mDownX) > mTouchSlop
+                                    || Math.abs(event.getY() - mDownY) > mTouchSlop)) {
+                        cancelPrefetch();
+                    }
+                    break;
+                case MotionEvent.ACTION_UP:
+                    // a tap quicker than the press delay
+                    if (mPressedPackage != null && !mPrefetchStarted) {
+                        mListView.removeCallbacks(mStartPrefetch);
+                        startPrefetch();
+                    }
+                    mPressedPackage = null;
+                    break;
+                case MotionEvent.ACTION_CANCEL:
+                    cancelPrefetch();
+                    break;
+            }
+            return false;
+        }
+
+        private void startPrefetch() {
+            if (mPressedPackage != null) {
+                mPrefetchStarted = true;
+                AppDetailsPrefetcher.getInstance(mOwner.getActivity()).prefetch(mPressedPackage);
+            }
+        }
+
+        private void cancelPrefetch() {
+            mListView.removeCallbacks(mStartPrefetch);
+            if (mPressedPackage != null && mPrefetchStarted) {
+                AppDetailsPrefetcher.getInstance(mOwner.getActivity()).cancelPrefetch(
+                        mPressedPackage);
+            }
+            mPressedPackage = null;
+            mPrefetchStarted = false;
+        }
+
         void handleRunningProcessesAvail() {
             mLoadingContainer.startAnimation(AnimationUtils.loadAnimation(
                     mOwner.getActivity(), android.R.anim.fade_out));
@@ -535,19 +617,24 @@ public class ManageApplications extends Fragment implements
      * The order of applications in the list is mirrored in mAppLocalList
      */
     static class ApplicationsAdapter extends BaseAdapter implements Filterable,
-            ApplicationsState.Callbacks, AbsListView.RecyclerListener {
+            ApplicationsState.Callbacks, AbsListView.RecyclerListener,
+            AbsListView.OnScrollListener {
         private final ApplicationsState mState;
         private final ApplicationsState.Session mSession;
         private final TabInfo mTab;
         private final Context mContext;
         private final ArrayList<View> mActive = new ArrayList<View>();
         private final int mFilterMode;
+        private final Drawable mDefaultIcon;
         private ArrayList<ApplicationsState.AppEntry> mBaseEntries;
         private ArrayList<ApplicationsState.AppEntry> mEntries;
         private boolean mResumed;
         private int mLastSortMode=-1;
         private boolean mWaitingForData;
         private int mWhichSize = SIZE_TOTAL;
+        private int mFirstVisible = -1;
+        private int mVisibleCount;
+        private final AppSearchIndex mSearchIndex = new AppSearchIndex();
         CharSequence mCurFilterPrefix;
 
         private Filter mFilter = new Filter() {
@@ -566,6 +653,7 @@ public class ManageApplications extends Fragment implements
                 mCurFilterPrefix = constraint;
                 mEntries = (ArrayList<ApplicationsState.AppEntry>)results.values;
                 notifyDataSetChanged();
+                updateVisibleEntries();
                 mTab.updateStorageUsage();
             }
         };
@@ -576,6 +664,7 @@ public class ManageApplications extends Fragment implements
             mTab = tab;
             mContext = tab.mOwner.getActivity();
             mFilterMode = filterMode;
+            mDefaultIcon = mContext.getPackageManager().getDefaultActivityIcon();
         }
 
         public void resume(int sort) {
@@ -650,12 +739,14 @@ public class ManageApplications extends Fragment implements
                     comparatorObj = ApplicationsState.ALPHA_COMPARATOR;
                     break;
             }
-            ArrayList<ApplicationsState.AppEntry> entries
-                    = mSession.rebuild(filterObj, comparatorObj);
-            if (entries == null && !eraseold) {
-                // Don't have new list yet, but can continue using the old one.
+            if (!eraseold) {
+                // Keep showing the old list until the new one arrives, as a
+                // delta from it when only a few packages changed.
+                mSession.requestRebuild(filterObj, comparatorObj);
                 return;
             }
+            ArrayList<ApplicationsState.AppEntry> entries
+                    = mSession.rebuild(filterObj, comparatorObj);
             mBaseEntries = entries;
             if (mBaseEntries != null) {
                 mEntries = applyPrefixFilter(mCurFilterPrefix, mBaseEntries);
@@ -663,6 +754,7 @@ public class ManageApplications extends Fragment implements
                 mEntries = null;
             }
             notifyDataSetChanged();
+            updateVisibleEntries();
             mTab.updateStorageUsage();
 
             if (entries == null) {
@@ -681,17 +773,8 @@ public class ManageApplications extends Fragment implements
                 return origEntries;
             } else {
                 String prefixStr = ApplicationsState.normalize(prefix.toString());
-                final String spacePrefixStr = " " + prefixStr;
-                ArrayList<ApplicationsState.AppEntry> newEntries
-                        = new ArrayList<ApplicationsState.AppEntry>();
-                for (int i=0; i<origEntries.size(); i++) {
-                    ApplicationsState.AppEntry entry = origEntries.get(i);
-                    String nlabel = entry.getNormalizedLabel();
-                    if (nlabel.startsWith(prefixStr) || nlabel.indexOf(spacePrefixStr) != -1) {
-                        newEntries.add(entry);
-                    }
-                }
-                return newEntries;
+                mSearchIndex.setEntries(origEntries);
+                return mSearchIndex.query(prefixStr);
             }
         }
 
@@ -714,9 +797,126 @@ public class ManageApplications extends Fragment implements
             mBaseEntries = apps;
             mEntries = applyPrefixFilter(mCurFilterPrefix, mBaseEntries);
             notifyDataSetChanged();
+            updateVisibleEntries();
             mTab.updateStorageUsage();
         }
 
+        @Override
+        public void onRebuildDelta(ArrayList<AppEntry> apps,
+                ArrayList<ApplicationsState.Change> changes) {
+            if (mWaitingForData || mBaseEntries == null || mEntries == null
+                    || !isDeltaOf(mBaseEntries, apps, changes)) {
+                onRebuildComplete(apps);
+                return;
+            }
+            final ArrayList<ApplicationsState.AppEntry> previous = mBaseEntries;
+            mBaseEntries = apps;
+            if (mEntries == previous) {
+                mEntries = apps;
+            } else {
+                mEntries = applyDeltaToFiltered(previous, apps, changes);
+            }
+
+            // a filtered list may have gained or lost rows even so
+            boolean inPlace = mEntries == apps;
+            for (int i=0; i<changes.size(); i++) {
+                if (changes.get(i).type != ApplicationsState.Change.CHANGED) {
+                    inPlace = false;
+                    break;
+                }
+            }
+            if (inPlace) {
+                // Nothing moved, so the rows on screen can just be refreshed.
+                for (int i=0; i<mActive.size(); i++) {
+                    AppViewHolder holder = (AppViewHolder)mActive.get(i).getTag();
+                    synchronized (holder.entry) {
+                        holder.updateSizeText(mTab.mInvalidSizeStr, mWhichSize);
+                    }
+                }
+            } else {
+                notifyDataSetChanged();
+                updateVisibleEntries();
+            }
+            mTab.updateStorageUsage();
+        }
+
+        /**
+         * Whether applying the changes to the given list, in order, yields
+         * the new list; if not, the delta was computed against some other
+         * list and must not be trusted.
+         */
+        private boolean isDeltaOf(ArrayList<ApplicationsState.AppEntry> base,
+                ArrayList<ApplicationsState.AppEntry> apps,
+                ArrayList<ApplicationsState.Change> changes) {
+            ArrayList<ApplicationsState.AppEntry> list
+                    = new ArrayList<ApplicationsState.AppEntry>(base);
+            for (int i=0; i<changes.size(); i++) {
+                ApplicationsState.Change change = changes.get(i);
+                switch (change.type) {
+                    case ApplicationsState.Change.INSERTED:
+                        if (change.position > list.size()) return false;
+                        list.add(change.position, change.entry);
+                        break;
+                    case ApplicationsState.Change.REMOVED:
+                        if (change.position >= list.size()
+                                || list.get(change.position) != change.entry) return false;
+                        list.remove(change.position);
+                        break;
+                    default:
+                        if (change.position >= list.size()
+                                || list.get(change.position) != change.entry) return false;
+                        list.remove(change.position);
+                        if (change.toPosition > list.size()) return false;
+                        list.add(change.toPosition, change.entry);
+                        break;
+                }
+            }
+            return list.equals(apps);
+        }
+
+        /**
+         * Carries the prefix-filtered list over to the new base list: rows
+         * the changes didn't touch stay as they were, and the touched ones
+         * are matched again against the search index, which only
+         * re-tokenizes them.
+         */
+        private ArrayList<ApplicationsState.AppEntry> applyDeltaToFiltered(
+                ArrayList<ApplicationsState.AppEntry> previous,
+                ArrayList<ApplicationsState.AppEntry> apps,
+                ArrayList<ApplicationsState.Change> changes) {
+            if (mCurFilterPrefix == null || mCurFilterPrefix.length() == 0) {
+                return apps;
+            }
+            String prefixStr = ApplicationsState.normalize(mCurFilterPrefix.toString());
+            mSearchIndex.applyChanges(previous, apps, changes);
+
+            IdentityHashMap<ApplicationsState.AppEntry, Boolean> shown
+                    = new IdentityHashMap<ApplicationsState.AppEntry, Boolean>(mEntries.size());
+            for (int i=0; i<mEntries.size(); i++) {
+                shown.put(mEntries.get(i), Boolean.TRUE);
+            }
+            IdentityHashMap<ApplicationsState.AppEntry, Boolean> touched
+                    = new IdentityHashMap<ApplicationsState.AppEntry, Boolean>();
+            for (int i=0; i<changes.size(); i++) {
+                ApplicationsState.Change change = changes.get(i);
+                shown.remove(change.entry);
+                if (change.type != ApplicationsState.Change.REMOVED) {
+                    touched.put(change.entry, Boolean.TRUE);
+                }
+            }
+
+            ArrayList<ApplicationsState.AppEntry> result
+                    = new ArrayList<ApplicationsState.AppEntry>();
+            for (int i=0; i<apps.size(); i++) {
+                ApplicationsState.AppEntry entry = apps.get(i);
+                if (shown.containsKey(entry) || (touched.containsKey(entry)
+                        && mSearchIndex.matches(entry, prefixStr))) {
+                    result.add(entry);
+                }
+            }
+            return result;
+        }
+
         @Override
         public void onPackageListChanged() {
             rebuild(false);
@@ -724,8 +924,15 @@ public class ManageApplications extends Fragment implements
 
         @Override
         public void onPackageIconChanged() {
-            // We ensure icons are loaded when their item is displayed, so
-            // don't care about icons loaded in the background.
+            // Rows bound before their icon was loaded show the default one.
+            for (int i=0; i<mActive.size(); i++) {
+                AppViewHolder holder = (AppViewHolder)mActive.get(i).getTag();
+                synchronized (holder.entry) {
+                    if (holder.entry.icon != null) {
+                        holder.appIcon.setImageDrawable(holder.entry.icon);
+                    }
+                }
+            }
         }
 
         @Override
@@ -787,9 +994,12 @@ public class ManageApplications extends Fragment implements
                 if (entry.label != null) {
                     holder.appName.setText(entry.label);
                 }
-                mState.ensureIcon(entry);
-                if (entry.icon != null) {
+                // Icons missing from the cache are loaded in the background,
+                // so that scrolling never waits on the package manager.
+                if (mState.requestIcon(entry)) {
                     holder.appIcon.setImageDrawable(entry.icon);
+                } else {
+                    holder.appIcon.setImageDrawable(mDefaultIcon);
                 }
                 holder.updateSizeText(mTab.mInvalidSizeStr, mWhichSize);
                 if ((entry.info.flags&ApplicationInfo.FLAG_INSTALLED) == 0) {
@@ -819,6 +1029,33 @@ public class ManageApplications extends Fragment implements
             return mFilter;
         }
 
+        @Override
+        public void onScrollStateChanged(AbsListView view, int scrollState) {
+        }
+
+        @Override
+        public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                int totalItemCount) {
+            if (firstVisibleItem == mFirstVisible && visibleItemCount == mVisibleCount) {
+                return;
+            }
+            mFirstVisible = firstVisibleItem;
+            mVisibleCount = visibleItemCount;
+            updateVisibleEntries();
+        }
+
+        private void updateVisibleEntries() {
+            ArrayList<ApplicationsState.AppEntry> visible = null;
+            if (mEntries != null && mFirstVisible >= 0) {
+                final int end = Math.min(mFirstVisible + mVisibleCount, mEntries.size());
+                visible = new ArrayList<ApplicationsState.AppEntry>();
+                for (int i=mFirstVisible; i<end; i++) {
+                    visible.add(mEntries.get(i));
+                }
+            }
+            mSession.setVisibleEntries(visible);
+        }
+
         @Override
         public void onMovedToScrapHeap(View view) {
             mActive.remove(view);
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
+import com.android.internal.util.MemInfoReader;
+
+import java.util.ArrayList;
+
+/**
+ * Samples /proc/meminfo on a background thread at a fixed cadence while
+ * anyone is listening, and hands immutable snapshots of it to listeners on
+ * the main thread.  Screens showing system memory use this instead of
+ * reading the file themselves.
+ */
+final class MemInfoSampler {
+    static final int MSG_SAMPLE = 1;
+    static final int MSG_PUBLISH = 2;
+
+    static final long SAMPLE_INTERVAL = 2000;
+
+    // Number of past samples of available memory kept in each snapshot.
+    static final int HISTORY_SIZE = 30;
+
+    static Object sGlobalLock = new Object();
+    static MemInfoSampler sInstance;
+
+    /**
+     * One sample of /proc/meminfo, in bytes.
+     */
+    static final class Snapshot {
+        final long mTime;
+        final long mTotalSize;
+        final long mFreeSize;
+        final long mCachedSize;
+        // Free plus cached size of the most recent samples, oldest first,
+        // ending with this one.
+        private final long[] mHistory;
+
+        Snapshot(long time, long totalSize, long freeSize, long cachedSize, long[] history) {
+            mTime = time;
+            mTotalSize = totalSize;
+            mFreeSize = freeSize;
+            mCachedSize = cachedSize;
+            mHistory = history;
+        }
+
+        long getAvailableSize() {
+            return mFreeSize + mCachedSize;
+        }
+
+        int getHistoryCount() {
+            return mHistory.length;
+        }
+
+        long getHistoryAt(int index) {
+            return mHistory[index];
+        }
+    }
+
+    static interface OnMemInfoListener {
+        public void onMemInfoChanged(Snapshot snapshot);
+    }
+
+    final HandlerThread mBackgroundThread;
+    final Handler mBackgroundHandler;
+
+    // Only touched on the background thread.
+    final MemInfoReader mReader = new MemInfoReader();
+    final long[] mHistory = new long[HISTORY_SIZE];
+    int mHistoryStart;
+    int mHistoryCount;
+
+    // Bumped on the main thread whenever sampling starts or stops; a
+    // sample from an older generation doesn't schedule the next one.
+    volatile int mGeneration;
+
+    // Only touched on the main thread.
+    final ArrayList<OnMemInfoListener> mListeners = new ArrayList<OnMemInfoListener>();
+    Snapshot mSnapshot;
+
+    final Handler mHandler = new Handler(Looper.getMainLooper()) {
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_PUBLISH:
+                    mSnapshot = (Snapshot) msg.obj;
+                    for (int i=mListeners.size()-1; i>=0; i--) {
+                        mListeners.get(i).onMemInfoChanged(mSnapshot);
+                    }
+                    break;
+            }
+        }
+    };
+
+    static MemInfoSampler getInstance() {
+        synchronized (sGlobalLock) {
+            if (sInstance == null) {
+                sInstance = new MemInfoSampler();
+            }
+            return sInstance;
+        }
+    }
+
+    private MemInfoSampler() {
+        mBackgroundThread = new HandlerThread("MemInfoSampler",
+                Process.THREAD_PRIORITY_BACKGROUND);
+        mBackgroundThread.start();
+        mBackgroundHandler = new Handler(mBackgroundThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                switch (msg.what) {
+                    case MSG_SAMPLE:
+                        mHandler.obtainMessage(MSG_PUBLISH, sample()).sendToTarget();
+                        if (msg.arg1 == mGeneration) {
+                            sendMessageDelayed(obtainMessage(MSG_SAMPLE, msg.arg1, 0),
+                                    SAMPLE_INTERVAL);
+                        }
+                        break;
+                }
+            }
+        };
+    }
+
+    /**
+     * Starts delivering snapshots to the given listener.  If a snapshot has
+     * already been taken it is delivered right away, even if it is stale.
+     * Must be called on the main thread.
+     */
+    void addListener(OnMemInfoListener listener) {
+        if (mListeners.contains(listener)) {
+            return;
+        }
+        mListeners.add(listener);
+        if (mListeners.size() == 1) {
+            mGeneration++;
+            mBackgroundHandler.removeMessages(MSG_SAMPLE);
+            mBackgroundHandler.obtainMessage(MSG_SAMPLE, mGeneration, 0).sendToTarget();
+        }
+        if (mSnapshot != null) {
+            listener.onMemInfoChanged(mSnapshot);
+        }
+    }
+
+    /**
+     * Stops delivering snapshots to the given listener; sampling stops
+     * with the last one.  Must be called on the main thread.
+     */
+    void removeListener(OnMemInfoListener listener) {
+        if (mListeners.remove(listener) && mListeners.isEmpty()) {
+            // a sample already being taken sees this and stops there
+            mGeneration++;
+            mBackgroundHandler.removeMessages(MSG_SAMPLE);
+        }
+    }
+
+    /**
+     * Returns the latest snapshot, or null if none has been taken yet.
+     */
+    Snapshot getSnapshot() {
+        return mSnapshot;
+    }
+
+    private Snapshot sample() {
+        mReader.readMemInfo();
+        final long free = mReader.getFreeSize();
+        final long cached = mReader.getCachedSize();
+
+        if (mHistoryCount < HISTORY_SIZE) {
+            mHistory[(mHistoryStart + mHistoryCount) % HISTORY_SIZE] = free + cached;
+            mHistoryCount++;
+        } else {
+            mHistory[mHistoryStart] = free + cached;
+            mHistoryStart = (mHistoryStart + 1) % HISTORY_SIZE;
+        }
+        final long[] history = new long[mHistoryCount];
+        for (int i=0; i<mHistoryCount; i++) {
+            history[i] = mHistory[(mHistoryStart + i) % HISTORY_SIZE];
+        }
+
+        return new Snapshot(SystemClock.uptimeMillis(), mReader.getTotalSize(), free, cached,
+                history);
+    }
+}
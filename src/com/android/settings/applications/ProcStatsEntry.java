@@ -55,10 +55,19 @@ public final class ProcStatsEntry implements Parcelable {
 
     public ProcStatsEntry(ProcessStats.ProcessState proc, String packageName,
             ProcessStats.ProcessDataCollection tmpTotals, boolean useUss, boolean weightWithTime) {
-        ProcessStats.computeProcessData(proc, tmpTotals, 0);
-        mPackage = proc.mPackage;
-        mUid = proc.mUid;
-        mName = proc.mName;
+        this(proc.mPackage, proc.mUid, proc.mName, packageName,
+                computeProcessData(proc, tmpTotals), useUss, weightWithTime);
+    }
+
+    /**
+     * Creates an entry from totals that have already been computed, such
+     * as a slice of a {@link ProcessStatsCube}.
+     */
+    ProcStatsEntry(String procPackage, int uid, String name, String packageName,
+            ProcessStats.ProcessDataCollection tmpTotals, boolean useUss, boolean weightWithTime) {
+        mPackage = procPackage;
+        mUid = uid;
+        mName = name;
         mPackages.add(packageName);
         mDuration = tmpTotals.totalTime;
         mAvgPss = tmpTotals.avgPss;
@@ -66,10 +75,16 @@ public final class ProcStatsEntry implements Parcelable {
         mAvgUss = tmpTotals.avgUss;
         mMaxUss = tmpTotals.maxUss;
         mWeight = (weightWithTime ? mDuration : 1) * (useUss ? mAvgUss : mAvgPss);
-        if (DEBUG) Log.d(TAG, "New proc entry " + proc.mName + ": dur=" + mDuration
+        if (DEBUG) Log.d(TAG, "New proc entry " + mName + ": dur=" + mDuration
                 + " avgpss=" + mAvgPss + " weight=" + mWeight);
     }
 
+    private static ProcessStats.ProcessDataCollection computeProcessData(
+            ProcessStats.ProcessState proc, ProcessStats.ProcessDataCollection tmpTotals) {
+        ProcessStats.computeProcessData(proc, tmpTotals, 0);
+        return tmpTotals;
+    }
+
     public ProcStatsEntry(Parcel in) {
         mPackage = in.readString();
         mUid = in.readInt();
@@ -98,34 +113,19 @@ public final class ProcStatsEntry implements Parcelable {
         mPackages.add(packageName);
     }
 
-    public void evaluateTargetPackage(PackageManager pm, ProcessStats stats,
-            ProcessStats.ProcessDataCollection totals, Comparator<ProcStatsEntry> compare,
-            boolean useUss, boolean weightWithTime) {
+    /**
+     * Picks the package to show for this process.  {@code subProcs} holds
+     * one entry per package sharing the process, weighed the same way as
+     * this entry; it is only needed when there is more than one package.
+     */
+    public void evaluateTargetPackage(PackageManager pm, ArrayList<ProcStatsEntry> subProcs,
+            Comparator<ProcStatsEntry> compare) {
         mBestTargetPackage = null;
         if (mPackages.size() == 1) {
             if (DEBUG) Log.d(TAG, "Eval pkg of " + mName + ": single pkg " + mPackages.get(0));
             mBestTargetPackage = mPackages.get(0);
-        } else {
+        } else if (subProcs != null) {
             // See if there is one significant package that was running here.
-            ArrayList<ProcStatsEntry> subProcs = new ArrayList<ProcStatsEntry>();
-            for (int ipkg=0; ipkg<mPackages.size(); ipkg++) {
-                ProcessStats.PackageState pkgState = stats.mPackages.get(mPackages.get(ipkg), mUid);
-                if (DEBUG) Log.d(TAG, "Eval pkg of " + mName + ", pkg "
-                        + mPackages.get(ipkg) + ":");
-                if (pkgState == null) {
-                    Log.w(TAG, "No package state found for " + mPackages.get(ipkg) + "/"
-                            + mUid + " in process " + mName);
-                    continue;
-                }
-                ProcessStats.ProcessState pkgProc = pkgState.mProcesses.get(mName);
-                if (pkgProc == null) {
-                    Log.w(TAG, "No process " + mName + " found in package state "
-                            + mPackages.get(ipkg) + "/" + mUid);
-                    continue;
-                }
-                subProcs.add(new ProcStatsEntry(pkgProc, pkgState.mPackageName, totals, useUss,
-                        weightWithTime));
-            }
             if (subProcs.size() > 1) {
                 Collections.sort(subProcs, compare);
                 if (subProcs.get(0).mWeight > (subProcs.get(1).mWeight*3)) {
@@ -267,6 +267,15 @@ public final class ProcStatsEntry implements Parcelable {
         services.add(new Service(svc));
     }
 
+    public void addService(Service service) {
+        ArrayList<Service> services = mServices.get(service.mPackage);
+        if (services == null) {
+            services = new ArrayList<Service>();
+            mServices.put(service.mPackage, services);
+        }
+        services.add(service);
+    }
+
     @Override
     public int describeContents() {
         return 0;
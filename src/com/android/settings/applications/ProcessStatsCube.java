@@ -0,0 +1,382 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.content.pm.PackageManager;
+import android.util.Log;
+import android.util.SparseArray;
+import com.android.internal.app.ProcessMap;
+import com.android.internal.app.ProcessStats;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+
+/**
+ * Per-process totals of a {@link ProcessStats} snapshot, aggregated once by
+ * process state group and memory factor so that the process stats screen
+ * can answer any combination of its menu options without walking the
+ * stats again.
+ *
+ * <p>Screen states are always summed.  Process states are folded into the
+ * groups the screen offers (background, the extra system states, foreground
+ * and cached); states outside of those groups are never shown and are
+ * dropped.  Each cell keeps the duration and enough of the PSS samples to
+ * combine cells the same way {@link ProcessStats#computeProcessData} does.
+ */
+final class ProcessStatsCube {
+    static final String TAG = "ProcessStatsCube";
+    static final boolean DEBUG = ProcessStatsUi.DEBUG;
+
+    static final int GROUP_BACKGROUND = 0;
+    static final int GROUP_SYSTEM = 1;
+    static final int GROUP_FOREGROUND = 2;
+    static final int GROUP_CACHED = 3;
+    static final int GROUP_COUNT = 4;
+
+    static final int MEM_COUNT = ProcessStats.ADJ_MEM_FACTOR_COUNT;
+
+    private static final int CELLS_PER_ROW = GROUP_COUNT * MEM_COUNT;
+
+    // Group of each process state, or -1 if the screen never shows it.
+    private static final int[] sStateGroups = new int[ProcessStats.STATE_COUNT];
+
+    static {
+        for (int i=0; i<ProcessStats.STATE_COUNT; i++) {
+            sStateGroups[i] = -1;
+        }
+        assignGroup(ProcessStats.BACKGROUND_PROC_STATES, GROUP_BACKGROUND);
+        assignGroup(ProcessStatsUi.BACKGROUND_AND_SYSTEM_PROC_STATES, GROUP_SYSTEM);
+        assignGroup(ProcessStatsUi.FOREGROUND_PROC_STATES, GROUP_FOREGROUND);
+        assignGroup(ProcessStatsUi.CACHED_PROC_STATES, GROUP_CACHED);
+    }
+
+    private static void assignGroup(int[] procStates, int group) {
+        for (int i=0; i<procStates.length; i++) {
+            if (sStateGroups[procStates[i]] < 0) {
+                sStateGroups[procStates[i]] = group;
+            }
+        }
+    }
+
+    /**
+     * One process of the snapshot.  Processes shared by several packages
+     * also carry the per-package processes they were merged from.
+     */
+    static final class Process {
+        final String mName;
+        final int mUid;
+        final String mPackage;
+        final int mRow;
+        final ArrayList<String> mPackages = new ArrayList<String>(1);
+        final ArrayList<Process> mPackageProcesses = new ArrayList<Process>(1);
+        final ArrayList<ProcStatsEntry.Service> mServices = new ArrayList<ProcStatsEntry.Service>();
+
+        Process(ProcessStats.ProcessState proc, int row) {
+            mName = proc.mName;
+            mUid = proc.mUid;
+            mPackage = proc.mPackage;
+            mRow = row;
+        }
+    }
+
+    private final ArrayList<Process> mProcesses = new ArrayList<Process>();
+    private final ProcessMap<Process> mProcessMap = new ProcessMap<Process>();
+    private final long[] mMemFactorTimes = new long[MEM_COUNT];
+    private final long mTotalTime;
+
+    // Indexed by cell: (row * GROUP_COUNT + group) * MEM_COUNT + memFactor.
+    private long[] mDurations;
+    private long[] mPssSamples;
+    private double[] mPssSums;
+    private long[] mMinPss;
+    private long[] mMaxPss;
+    private double[] mUssSums;
+    private long[] mMinUss;
+    private long[] mMaxUss;
+    private int mRowCount;
+
+    /**
+     * Returns the bit mask of groups covering the given process states.
+     */
+    static int groupMask(int[] procStates) {
+        int mask = 0;
+        for (int i=0; i<procStates.length; i++) {
+            final int group = sStateGroups[procStates[i]];
+            if (group >= 0) {
+                mask |= 1 << group;
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Returns the bit mask of the given memory factors.
+     */
+    static int memMask(int[] memStates) {
+        int mask = 0;
+        for (int i=0; i<memStates.length; i++) {
+            mask |= 1 << memStates[i];
+        }
+        return mask;
+    }
+
+    ProcessStatsCube(ProcessStats stats, long now) {
+        final int initialRows = stats.mProcesses.getMap().size() * 2;
+        allocate(initialRows > 0 ? initialRows : 1);
+
+        for (int ipkg=0, N=stats.mPackages.getMap().size(); ipkg<N; ipkg++) {
+            final SparseArray<ProcessStats.PackageState> pkgUids
+                    = stats.mPackages.getMap().valueAt(ipkg);
+            for (int iu=0; iu<pkgUids.size(); iu++) {
+                final ProcessStats.PackageState st = pkgUids.valueAt(iu);
+                for (int iproc=0; iproc<st.mProcesses.size(); iproc++) {
+                    final ProcessStats.ProcessState pkgProc = st.mProcesses.valueAt(iproc);
+                    final ProcessStats.ProcessState proc = stats.mProcesses.get(pkgProc.mName,
+                            pkgProc.mUid);
+                    if (proc == null) {
+                        Log.w(TAG, "No process found for pkg " + st.mPackageName
+                                + "/" + st.mUid + " proc name " + pkgProc.mName);
+                        continue;
+                    }
+                    Process p = mProcessMap.get(proc.mName, proc.mUid);
+                    if (p == null) {
+                        p = addRow(proc);
+                        mProcessMap.put(proc.mName, proc.mUid, p);
+                        mProcesses.add(p);
+                    }
+                    p.mPackages.add(st.mPackageName);
+                    p.mPackageProcesses.add(addRow(pkgProc));
+                }
+            }
+        }
+
+        for (int ip=0, N=stats.mPackages.getMap().size(); ip<N; ip++) {
+            SparseArray<ProcessStats.PackageState> uids = stats.mPackages.getMap().valueAt(ip);
+            for (int iu=0; iu<uids.size(); iu++) {
+                ProcessStats.PackageState ps = uids.valueAt(iu);
+                for (int is=0, NS=ps.mServices.size(); is<NS; is++) {
+                    ProcessStats.ServiceState ss = ps.mServices.valueAt(is);
+                    if (ss.mProcessName != null) {
+                        Process p = mProcessMap.get(ss.mProcessName, uids.keyAt(iu));
+                        if (p != null) {
+                            p.mServices.add(new ProcStatsEntry.Service(ss));
+                        } else {
+                            Log.w(TAG, "No process " + ss.mProcessName + "/" + uids.keyAt(iu)
+                                    + " for service " + ss.mName);
+                        }
+                    }
+                }
+            }
+        }
+
+        mTotalTime = ProcessStats.dumpSingleTime(null, null, stats.mMemFactorDurations,
+                stats.mMemFactor, stats.mStartTime, now);
+        for (int iscreen=0; iscreen<ProcessStats.ADJ_COUNT; iscreen+=ProcessStats.ADJ_SCREEN_MOD) {
+            for (int imem=0; imem<MEM_COUNT; imem++) {
+                mMemFactorTimes[imem] += stats.mMemFactorDurations[imem+iscreen];
+            }
+        }
+
+        if (DEBUG) Log.d(TAG, "Built cube of " + mProcesses.size() + " processes, "
+                + mRowCount + " rows");
+    }
+
+    int getProcessCount() {
+        return mProcesses.size();
+    }
+
+    Process getProcess(int index) {
+        return mProcesses.get(index);
+    }
+
+    /**
+     * Total time covered by the snapshot.
+     */
+    long getTotalTime() {
+        return mTotalTime;
+    }
+
+    /**
+     * Time the device spent at the given memory factor, over all screen states.
+     */
+    long getMemFactorTime(int memFactor) {
+        return mMemFactorTimes[memFactor];
+    }
+
+    /**
+     * Sums the cells of the given process selected by the masks into
+     * {@code out}, the same way {@link ProcessStats#computeProcessData}
+     * would for the matching process and memory states.
+     */
+    void slice(Process proc, int groupMask, int memMask,
+            ProcessStats.ProcessDataCollection out) {
+        long duration = 0;
+        long samples = 0;
+        double pssSum = 0;
+        double ussSum = 0;
+        long minPss = 0, maxPss = 0, minUss = 0, maxUss = 0;
+        final int rowStart = proc.mRow * CELLS_PER_ROW;
+        for (int ig=0; ig<GROUP_COUNT; ig++) {
+            if ((groupMask & (1 << ig)) == 0) {
+                continue;
+            }
+            final int groupStart = rowStart + ig * MEM_COUNT;
+            for (int im=0; im<MEM_COUNT; im++) {
+                if ((memMask & (1 << im)) == 0) {
+                    continue;
+                }
+                final int cell = groupStart + im;
+                duration += mDurations[cell];
+                final long cellSamples = mPssSamples[cell];
+                if (cellSamples > 0) {
+                    if (samples == 0) {
+                        minPss = mMinPss[cell];
+                        maxPss = mMaxPss[cell];
+                        minUss = mMinUss[cell];
+                        maxUss = mMaxUss[cell];
+                    } else {
+                        if (mMinPss[cell] < minPss) minPss = mMinPss[cell];
+                        if (mMaxPss[cell] > maxPss) maxPss = mMaxPss[cell];
+                        if (mMinUss[cell] < minUss) minUss = mMinUss[cell];
+                        if (mMaxUss[cell] > maxUss) maxUss = mMaxUss[cell];
+                    }
+                    samples += cellSamples;
+                    pssSum += mPssSums[cell];
+                    ussSum += mUssSums[cell];
+                }
+            }
+        }
+        out.totalTime = duration;
+        out.numPss = samples;
+        out.minPss = minPss;
+        out.avgPss = samples > 0 ? (long) (pssSum / samples) : 0;
+        out.maxPss = maxPss;
+        out.minUss = minUss;
+        out.avgUss = samples > 0 ? (long) (ussSum / samples) : 0;
+        out.maxUss = maxUss;
+    }
+
+    /**
+     * Builds the list entry of the given process for the selected cells.
+     * {@code tmpTotals} is scratch space.
+     */
+    ProcStatsEntry makeEntry(Process proc, int groupMask, int memMask,
+            ProcessStats.ProcessDataCollection tmpTotals, boolean useUss,
+            boolean weightWithTime) {
+        slice(proc, groupMask, memMask, tmpTotals);
+        ProcStatsEntry ent = new ProcStatsEntry(proc.mPackage, proc.mUid, proc.mName,
+                proc.mPackages.get(0), tmpTotals, useUss, weightWithTime);
+        for (int i=1; i<proc.mPackages.size(); i++) {
+            ent.addPackage(proc.mPackages.get(i));
+        }
+        return ent;
+    }
+
+    /**
+     * Picks the package to show for the given entry, weighing the packages
+     * sharing its process with the same selection the entry was built from.
+     */
+    void evaluateTargetPackage(PackageManager pm, ProcStatsEntry ent, int groupMask,
+            int memMask, ProcessStats.ProcessDataCollection tmpTotals,
+            Comparator<ProcStatsEntry> compare, boolean useUss, boolean weightWithTime) {
+        ArrayList<ProcStatsEntry> subProcs = null;
+        final Process proc = mProcessMap.get(ent.mName, ent.mUid);
+        if (proc != null && proc.mPackageProcesses.size() > 1) {
+            subProcs = new ArrayList<ProcStatsEntry>(proc.mPackageProcesses.size());
+            for (int i=0; i<proc.mPackageProcesses.size(); i++) {
+                final Process pkgProc = proc.mPackageProcesses.get(i);
+                slice(pkgProc, groupMask, memMask, tmpTotals);
+                subProcs.add(new ProcStatsEntry(pkgProc.mPackage, pkgProc.mUid, pkgProc.mName,
+                        proc.mPackages.get(i), tmpTotals, useUss, weightWithTime));
+            }
+        }
+        ent.evaluateTargetPackage(pm, subProcs, compare);
+    }
+
+    private Process addRow(ProcessStats.ProcessState proc) {
+        if (mRowCount * CELLS_PER_ROW >= mDurations.length) {
+            allocate(mRowCount * 2);
+        }
+        final Process p = new Process(proc, mRowCount++);
+        final int rowStart = p.mRow * CELLS_PER_ROW;
+        for (int is=0; is<ProcessStats.ALL_SCREEN_ADJ.length; is++) {
+            final int screen = ProcessStats.ALL_SCREEN_ADJ[is];
+            for (int im=0; im<MEM_COUNT; im++) {
+                for (int ip=0; ip<ProcessStats.STATE_COUNT; ip++) {
+                    final int group = sStateGroups[ip];
+                    if (group < 0) {
+                        continue;
+                    }
+                    final int bucket = ((screen + im) * ProcessStats.STATE_COUNT) + ip;
+                    final int cell = rowStart + group * MEM_COUNT + im;
+                    mDurations[cell] += proc.getDuration(bucket, 0);
+                    final long samples = proc.getPssSampleCount(bucket);
+                    if (samples > 0) {
+                        final long minPss = proc.getPssMinimum(bucket);
+                        final long maxPss = proc.getPssMaximum(bucket);
+                        final long minUss = proc.getPssUssMinimum(bucket);
+                        final long maxUss = proc.getPssUssMaximum(bucket);
+                        if (mPssSamples[cell] == 0) {
+                            mMinPss[cell] = minPss;
+                            mMaxPss[cell] = maxPss;
+                            mMinUss[cell] = minUss;
+                            mMaxUss[cell] = maxUss;
+                        } else {
+                            if (minPss < mMinPss[cell]) mMinPss[cell] = minPss;
+                            if (maxPss > mMaxPss[cell]) mMaxPss[cell] = maxPss;
+                            if (minUss < mMinUss[cell]) mMinUss[cell] = minUss;
+                            if (maxUss > mMaxUss[cell]) mMaxUss[cell] = maxUss;
+                        }
+                        mPssSamples[cell] += samples;
+                        mPssSums[cell] += proc.getPssAverage(bucket) * (double) samples;
+                        mUssSums[cell] += proc.getPssUssAverage(bucket) * (double) samples;
+                    }
+                }
+            }
+        }
+        return p;
+    }
+
+    private void allocate(int rows) {
+        final int cells = rows * CELLS_PER_ROW;
+        final int used = mRowCount * CELLS_PER_ROW;
+        mDurations = grow(mDurations, cells, used);
+        mPssSamples = grow(mPssSamples, cells, used);
+        mPssSums = grow(mPssSums, cells, used);
+        mMinPss = grow(mMinPss, cells, used);
+        mMaxPss = grow(mMaxPss, cells, used);
+        mUssSums = grow(mUssSums, cells, used);
+        mMinUss = grow(mMinUss, cells, used);
+        mMaxUss = grow(mMaxUss, cells, used);
+    }
+
+    private static long[] grow(long[] array, int size, int used) {
+        long[] newArray = new long[size];
+        if (array != null) {
+            System.arraycopy(array, 0, newArray, 0, used);
+        }
+        return newArray;
+    }
+
+    private static double[] grow(double[] array, int size, int used) {
+        double[] newArray = new double[size];
+        if (array != null) {
+            System.arraycopy(array, 0, newArray, 0, used);
+        }
+        return newArray;
+    }
+}
@@ -26,6 +26,7 @@ import android.content.Intent;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.content.res.Resources;
+import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Process;
@@ -39,6 +40,7 @@ import android.widget.Button;
 import android.widget.ImageView;
 import android.widget.ProgressBar;
 import android.widget.TextView;
+import com.android.settings.IconCache;
 import com.android.settings.R;
 
 import java.util.ArrayList;
@@ -131,7 +133,13 @@ public class ProcessStatsDetail extends Fragment implements Button.OnClickListen
         progress.setProgress(appLevel);
         final ImageView icon = (ImageView) mRootView.findViewById(android.R.id.icon);
         if (mEntry.mUiTargetApp != null) {
-            icon.setImageDrawable(mEntry.mUiTargetApp.loadIcon(mPm));
+            IconCache.getInstance(getActivity()).loadIcon(mEntry.mUiTargetApp,
+                    new IconCache.OnIconLoadedListener() {
+                @Override
+                public void onIconLoaded(Drawable d) {
+                    icon.setImageDrawable(d);
+                }
+            });
         }
 
         mTwoButtonsPanel = (ViewGroup)mRootView.findViewById(R.id.two_buttons_panel);
@@ -179,7 +187,13 @@ public class ProcessStatsDetail extends Fragment implements Button.OnClickListen
         TextView descriptionView = (TextView) item.findViewById(R.id.description);
         try {
             ApplicationInfo ai = mPm.getApplicationInfo(packageName, 0);
-            icon.setImageDrawable(ai.loadIcon(mPm));
+            IconCache.getInstance(getActivity()).loadIcon(ai,
+                    new IconCache.OnIconLoadedListener() {
+                @Override
+                public void onIconLoaded(Drawable d) {
+                    icon.setImageDrawable(d);
+                }
+            });
             nameView.setText(ai.loadLabel(mPm));
         } catch (PackageManager.NameNotFoundException e) {
         }
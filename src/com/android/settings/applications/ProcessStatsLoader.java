@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.content.AsyncTaskLoader;
+import android.content.Context;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+import android.os.ServiceManager;
+import android.os.SystemClock;
+import android.text.format.DateUtils;
+import android.util.Log;
+import android.util.LruCache;
+import com.android.internal.app.IProcessStats;
+import com.android.internal.app.ProcessStats;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads process stats over a given duration on a background thread.
+ *
+ * <p>Results are kept in a small process-wide cache keyed by duration and
+ * reused until they are {@link #MAX_AGE} old, measured from when they were
+ * read.  The service doesn't tell when it last committed, and the stats it
+ * returns include the current, uncommitted period, so age is all there is
+ * to go by.  This also carries the stats across configuration changes.
+ *
+ * <p>Each result also carries the {@link ProcessStatsCube} of its stats,
+ * built here so that the screen never aggregates on the main thread.
+ */
+class ProcessStatsLoader extends AsyncTaskLoader<ProcessStatsLoader.Result> {
+    static final String TAG = "ProcessStatsLoader";
+
+    private static final String KEY_DURATION = "duration";
+
+    // One entry per duration menu option.
+    private static final int MAX_CACHED = 4;
+
+    // How long a result is reused before the service is asked again.
+    static final long MAX_AGE = DateUtils.MINUTE_IN_MILLIS;
+
+    private static final LruCache<Long, Result> sCache = new LruCache<Long, Result>(MAX_CACHED);
+
+    static final class Result {
+        final long mDuration;
+        // Elapsed realtime when read.
+        final long mTime;
+        final ProcessStats mStats;
+        final ProcessStatsCube mCube;
+        final int mMemState;
+
+        Result(long duration, long time, ProcessStats stats, ProcessStatsCube cube,
+                int memState) {
+            mDuration = duration;
+            mTime = time;
+            mStats = stats;
+            mCube = cube;
+            mMemState = memState;
+        }
+    }
+
+    private final long mDuration;
+
+    private Result mResult;
+
+    public static Bundle buildArgs(long duration) {
+        final Bundle args = new Bundle();
+        args.putLong(KEY_DURATION, duration);
+        return args;
+    }
+
+    public ProcessStatsLoader(Context context, Bundle args) {
+        super(context);
+        mDuration = args.getLong(KEY_DURATION);
+    }
+
+    /**
+     * Returns the stats last read for the given duration, or null if there
+     * are none younger than {@link #MAX_AGE}.
+     */
+    static Result getCached(long duration) {
+        final Result result = sCache.get(duration);
+        if (result != null && SystemClock.elapsedRealtime() - result.mTime >= MAX_AGE) {
+            sCache.remove(duration);
+            return null;
+        }
+        return result;
+    }
+
+    /**
+     * Drops all cached stats, so that the next load goes to the service.
+     */
+    static void invalidate() {
+        sCache.evictAll();
+    }
+
+    @Override
+    public Result loadInBackground() {
+        final Result cached = getCached(mDuration);
+        if (cached != null) {
+            return cached;
+        }
+
+        final IProcessStats service = IProcessStats.Stub.asInterface(
+                ServiceManager.getService(ProcessStats.SERVICE_NAME));
+        final long time = SystemClock.elapsedRealtime();
+        try {
+            final int memState = service.getCurrentMemoryState();
+            ParcelFileDescriptor pfd = service.getStatsOverTime(mDuration);
+            ProcessStats stats = new ProcessStats(false);
+            InputStream is = new ParcelFileDescriptor.AutoCloseInputStream(pfd);
+            stats.read(is);
+            try {
+                is.close();
+            } catch (IOException e) {
+            }
+            if (stats.mReadError != null) {
+                Log.w(TAG, "Failure reading process stats: " + stats.mReadError);
+            }
+            final ProcessStatsCube cube = new ProcessStatsCube(stats,
+                    SystemClock.uptimeMillis());
+            final Result result = new Result(mDuration, time, stats, cube, memState);
+            sCache.put(mDuration, result);
+            return result;
+        } catch (RemoteException e) {
+            Log.e(TAG, "RemoteException:", e);
+            return null;
+        }
+    }
+
+    @Override
+    public void deliverResult(Result result) {
+        if (isReset()) {
+            return;
+        }
+        mResult = result;
+        if (isStarted()) {
+            super.deliverResult(result);
+        }
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (mResult != null) {
+            deliverResult(mResult);
+        }
+        if (takeContentChanged() || mResult == null) {
+            forceLoad();
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        cancelLoad();
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        onStopLoading();
+        mResult = null;
+    }
+}
@@ -17,6 +17,7 @@
 package com.android.settings.applications;
 
 import android.content.Context;
+import android.content.pm.ApplicationInfo;
 import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
 import android.preference.Preference;
@@ -24,6 +25,7 @@ import android.text.format.Formatter;
 import android.view.View;
 import android.widget.ProgressBar;
 import android.widget.TextView;
+import com.android.settings.IconCache;
 import com.android.settings.R;
 
 public class ProcessStatsPreference extends Preference {
@@ -42,6 +44,19 @@ public class ProcessStatsPreference extends Preference {
         return mEntry;
     }
 
+    /**
+     * Shows the icon of the given app once it has been loaded, keeping the
+     * placeholder until then.
+     */
+    public void setIconAsync(ApplicationInfo app) {
+        IconCache.getInstance(getContext()).loadIcon(app, new IconCache.OnIconLoadedListener() {
+            @Override
+            public void onIconLoaded(Drawable icon) {
+                setIcon(icon);
+            }
+        });
+    }
+
     public void setPercent(double percentOfWeight, double percentOfTime) {
         mProgress = (int) Math.ceil(percentOfWeight);
         mProgressText = getContext().getResources().getString(
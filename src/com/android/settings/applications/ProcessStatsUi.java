@@ -16,13 +16,11 @@
 
 package com.android.settings.applications;
 
+import android.app.LoaderManager;
 import android.content.Context;
+import android.content.Loader;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
-import android.os.ParcelFileDescriptor;
-import android.os.RemoteException;
-import android.os.ServiceManager;
-import android.os.SystemClock;
 import android.os.UserManager;
 import android.preference.Preference;
 import android.preference.PreferenceActivity;
@@ -30,26 +28,22 @@ import android.preference.PreferenceFragment;
 import android.preference.PreferenceGroup;
 import android.preference.PreferenceScreen;
 import android.util.Log;
-import android.util.SparseArray;
 import android.util.TimeUtils;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.SubMenu;
-import com.android.internal.app.IProcessStats;
-import com.android.internal.app.ProcessMap;
 import com.android.internal.app.ProcessStats;
 import com.android.settings.R;
 import com.android.settings.fuelgauge.Utils;
 
-import java.io.IOException;
-import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 
 public class ProcessStatsUi extends PreferenceFragment
-        implements LinearColorBar.OnRegionTappedListener {
+        implements LinearColorBar.OnRegionTappedListener,
+        LoaderManager.LoaderCallbacks<ProcessStatsLoader.Result> {
     static final String TAG = "ProcessStatsUi";
     static final boolean DEBUG = false;
 
@@ -69,6 +63,8 @@ public class ProcessStatsUi extends PreferenceFragment
 
     static final int MAX_ITEMS_TO_LIST = 60;
 
+    private static final int LOADER_STATS = 1;
+
     final static Comparator<ProcStatsEntry> sEntryCompare = new Comparator<ProcStatsEntry>() {
         @Override
         public int compare(ProcStatsEntry lhs, ProcStatsEntry rhs) {
@@ -85,11 +81,9 @@ public class ProcessStatsUi extends PreferenceFragment
         }
     };
 
-    private static ProcessStats sStatsXfer;
-
-    IProcessStats mProcessStats;
     UserManager mUm;
     ProcessStats mStats;
+    ProcessStatsCube mCube;
     int mMemState;
 
     private long mDuration;
@@ -131,13 +125,7 @@ public class ProcessStatsUi extends PreferenceFragment
     public void onCreate(Bundle icicle) {
         super.onCreate(icicle);
 
-        if (icicle != null) {
-            mStats = sStatsXfer;
-        }
-
         addPreferencesFromResource(R.xml.process_stats_summary);
-        mProcessStats = IProcessStats.Stub.asInterface(
-                ServiceManager.getService(ProcessStats.SERVICE_NAME));
         mUm = (UserManager)getActivity().getSystemService(Context.USER_SERVICE);
         mAppListGroup = (PreferenceGroup) findPreference(KEY_APP_LIST);
         mMemStatusPref = mAppListGroup.findPreference(KEY_MEM_STATUS);
@@ -172,14 +160,6 @@ public class ProcessStatsUi extends PreferenceFragment
         outState.putInt("mem_region", mMemRegion);
     }
 
-    @Override
-    public void onDestroy() {
-        super.onDestroy();
-        if (getActivity().isChangingConfigurations()) {
-            sStatsXfer = mStats;
-        }
-    }
-
     @Override
     public boolean onPreferenceTreeClick(PreferenceScreen preferenceScreen, Preference preference) {
         if (!(preference instanceof ProcessStatsPreference)) {
@@ -279,6 +259,7 @@ public class ProcessStatsUi extends PreferenceFragment
         final int id = item.getItemId();
         switch (id) {
             case MENU_STATS_REFRESH:
+                ProcessStatsLoader.invalidate();
                 mStats = null;
                 refreshStats();
                 return true;
@@ -354,7 +335,17 @@ public class ProcessStatsUi extends PreferenceFragment
         updateMenus();
 
         if (mStats == null || mLastDuration != mDuration) {
-            load();
+            ProcessStatsLoader.Result cached = ProcessStatsLoader.getCached(mDuration);
+            if (cached != null) {
+                setResult(cached);
+            } else {
+                // Keep showing what we have until the new stats are read.
+                getLoaderManager().restartLoader(LOADER_STATS,
+                        ProcessStatsLoader.buildArgs(mDuration), this);
+                if (mStats == null) {
+                    return;
+                }
+            }
         }
 
         int[] stats;
@@ -400,20 +391,15 @@ public class ProcessStatsUi extends PreferenceFragment
         mAppListGroup.addPreference(hist);
         */
 
-        long now = SystemClock.uptimeMillis();
-
         final PackageManager pm = getActivity().getPackageManager();
+        final ProcessStatsCube cube = mCube;
 
-        mTotalTime = ProcessStats.dumpSingleTime(null, null, mStats.mMemFactorDurations,
-                mStats.mMemFactor, mStats.mStartTime, now);
+        mTotalTime = cube.getTotalTime();
         if (DEBUG) Log.d(TAG, "Total time of stats: " + makeDuration(mTotalTime));
 
         long[] memTimes = new long[ProcessStats.ADJ_MEM_FACTOR_COUNT];
-        for (int iscreen=0; iscreen<ProcessStats.ADJ_COUNT; iscreen+=ProcessStats.ADJ_SCREEN_MOD) {
-            for (int imem=0; imem<ProcessStats.ADJ_MEM_FACTOR_COUNT; imem++) {
-                int state = imem+iscreen;
-                memTimes[imem] += mStats.mMemFactorDurations[state];
-            }
+        for (int imem=0; imem<ProcessStats.ADJ_MEM_FACTOR_COUNT; imem++) {
+            memTimes[imem] = cube.getMemFactorTime(imem);
         }
 
         long memTotalTime;
@@ -462,64 +448,26 @@ public class ProcessStatsUi extends PreferenceFragment
         }
         */
 
-        if (DEBUG) Log.d(TAG, "-------------------- PULLING PROCESSES");
-
-        final ProcessMap<ProcStatsEntry> entriesMap = new ProcessMap<ProcStatsEntry>();
-        for (int ipkg=0, N=mStats.mPackages.getMap().size(); ipkg<N; ipkg++) {
-            final SparseArray<ProcessStats.PackageState> pkgUids
-                    = mStats.mPackages.getMap().valueAt(ipkg);
-            for (int iu=0; iu<pkgUids.size(); iu++) {
-                final ProcessStats.PackageState st = pkgUids.valueAt(iu);
-                for (int iproc=0; iproc<st.mProcesses.size(); iproc++) {
-                    final ProcessStats.ProcessState pkgProc = st.mProcesses.valueAt(iproc);
-                    final ProcessStats.ProcessState proc = mStats.mProcesses.get(pkgProc.mName,
-                            pkgProc.mUid);
-                    if (proc == null) {
-                        Log.w(TAG, "No process found for pkg " + st.mPackageName
-                                + "/" + st.mUid + " proc name " + pkgProc.mName);
-                        continue;
-                    }
-                    ProcStatsEntry ent = entriesMap.get(proc.mName, proc.mUid);
-                    if (ent == null) {
-                        ent = new ProcStatsEntry(proc, st.mPackageName, totals, mUseUss,
-                                mStatsType == MENU_TYPE_BACKGROUND);
-                        if (ent.mDuration > 0) {
-                            if (DEBUG) Log.d(TAG, "Adding proc " + proc.mName + "/"
-                                    + proc.mUid + ": time=" + makeDuration(ent.mDuration) + " ("
-                                    + ((((double)ent.mDuration) / memTotalTime) * 100) + "%)"
-                                    + " pss=" + ent.mAvgPss);
-                            entriesMap.put(proc.mName, proc.mUid, ent);
-                            entries.add(ent);
-                        }
-                    }  else {
-                        ent.addPackage(st.mPackageName);
-                    }
-                }
-            }
-        }
-
-        if (DEBUG) Log.d(TAG, "-------------------- MAPPING SERVICES");
-
-        // Add in service info.
-        if (mStatsType == MENU_TYPE_BACKGROUND) {
-            for (int ip=0, N=mStats.mPackages.getMap().size(); ip<N; ip++) {
-                SparseArray<ProcessStats.PackageState> uids = mStats.mPackages.getMap().valueAt(ip);
-                for (int iu=0; iu<uids.size(); iu++) {
-                    ProcessStats.PackageState ps = uids.valueAt(iu);
-                    for (int is=0, NS=ps.mServices.size(); is<NS; is++) {
-                        ProcessStats.ServiceState ss = ps.mServices.valueAt(is);
-                        if (ss.mProcessName != null) {
-                            ProcStatsEntry ent = entriesMap.get(ss.mProcessName, uids.keyAt(iu));
-                            if (ent != null) {
-                                if (DEBUG) Log.d(TAG, "Adding service " + ps.mPackageName
-                                        + "/" + ss.mName + "/" + uids.keyAt(iu) + " to proc "
-                                        + ss.mProcessName);
-                                ent.addService(ss);
-                            } else {
-                                Log.w(TAG, "No process " + ss.mProcessName + "/" + uids.keyAt(iu)
-                                        + " for service " + ss.mName);
-                            }
-                        }
+        if (DEBUG) Log.d(TAG, "-------------------- SLICING PROCESSES");
+
+        // Every menu combination is a slice of the cube built with the stats.
+        final boolean background = mStatsType == MENU_TYPE_BACKGROUND;
+        final int groupMask = ProcessStatsCube.groupMask(stats);
+        final int memMask = ProcessStatsCube.memMask(memStates);
+        for (int i=0, N=cube.getProcessCount(); i<N; i++) {
+            final ProcessStatsCube.Process proc = cube.getProcess(i);
+            final ProcStatsEntry ent = cube.makeEntry(proc, groupMask, memMask, totals,
+                    mUseUss, background);
+            if (ent.mDuration > 0) {
+                if (DEBUG) Log.d(TAG, "Adding proc " + proc.mName + "/"
+                        + proc.mUid + ": time=" + makeDuration(ent.mDuration) + " ("
+                        + ((((double)ent.mDuration) / memTotalTime) * 100) + "%)"
+                        + " pss=" + ent.mAvgPss);
+                entries.add(ent);
+                // Add in service info.
+                if (background) {
+                    for (int is=0, NS=proc.mServices.size(); is<NS; is++) {
+                        ent.addService(proc.mServices.get(is));
                     }
                 }
             }
@@ -573,12 +521,12 @@ public class ProcessStatsUi extends PreferenceFragment
                 continue;
             }
             ProcessStatsPreference pref = new ProcessStatsPreference(getActivity(), null, proc);
-            proc.evaluateTargetPackage(pm, mStats, totals, sEntryCompare, mUseUss,
-                    mStatsType == MENU_TYPE_BACKGROUND);
+            cube.evaluateTargetPackage(pm, proc, groupMask, memMask, totals, sEntryCompare,
+                    mUseUss, background);
             proc.retrieveUiData(pm);
             pref.setTitle(proc.mUiLabel);
             if (proc.mUiTargetApp != null) {
-                pref.setIcon(proc.mUiTargetApp.loadIcon(pm));
+                pref.setIconAsync(proc.mUiTargetApp);
             }
             pref.setOrder(i);
             pref.setPercent(percentOfWeight, percentOfTime);
@@ -590,23 +538,32 @@ public class ProcessStatsUi extends PreferenceFragment
         }
     }
 
-    private void load() {
-        try {
-            mLastDuration = mDuration;
-            mMemState = mProcessStats.getCurrentMemoryState();
-            ParcelFileDescriptor pfd = mProcessStats.getStatsOverTime(mDuration);
-            mStats = new ProcessStats(false);
-            InputStream is = new ParcelFileDescriptor.AutoCloseInputStream(pfd);
-            mStats.read(is);
-            try {
-                is.close();
-            } catch (IOException e) {
-            }
-            if (mStats.mReadError != null) {
-                Log.w(TAG, "Failure reading process stats: " + mStats.mReadError);
-            }
-        } catch (RemoteException e) {
-            Log.e(TAG, "RemoteException:", e);
+    private void setResult(ProcessStatsLoader.Result result) {
+        mLastDuration = result.mDuration;
+        mStats = result.mStats;
+        mCube = result.mCube;
+        mMemState = result.mMemState;
+    }
+
+    @Override
+    public Loader<ProcessStatsLoader.Result> onCreateLoader(int id, Bundle args) {
+        return new ProcessStatsLoader(getActivity(), args);
+    }
+
+    @Override
+    public void onLoadFinished(Loader<ProcessStatsLoader.Result> loader,
+            ProcessStatsLoader.Result result) {
+        // Drop stats for a duration the user has already moved away from.
+        if (result == null || result.mDuration != mDuration) {
+            return;
+        }
+        setResult(result);
+        if (isResumed()) {
+            refreshStats();
         }
     }
+
+    @Override
+    public void onLoaderReset(Loader<ProcessStatsLoader.Result> loader) {
+    }
 }
@@ -17,7 +17,6 @@
 package com.android.settings.applications;
 
 import android.text.BidiFormatter;
-import com.android.internal.util.MemInfoReader;
 import com.android.settings.R;
 import com.intel.arkham.ContainerCommons;
 import com.intel.config.FeatureConfig;
@@ -37,6 +36,7 @@ import android.util.AttributeSet;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.BaseAdapter;
 import android.widget.FrameLayout;
@@ -52,7 +52,7 @@ import java.util.Iterator;
 
 public class RunningProcessesView extends FrameLayout
         implements AdapterView.OnItemClickListener, RecyclerListener,
-        RunningState.OnRefreshUiListener {
+        RunningState.OnRefreshUiListener, MemInfoSampler.OnMemInfoListener {
     
     final int mMyUserId;
 
@@ -88,7 +88,8 @@ public class RunningProcessesView extends FrameLayout
     
     Dialog mCurDialog;
 
-    MemInfoReader mMemInfoReader = new MemInfoReader();
+    MemInfoSampler mMemInfoSampler;
+    MemInfoSampler.Snapshot mMemInfo;
 
     public static class ActiveItem {
         View mRootView;
@@ -334,11 +335,19 @@ public class RunningProcessesView extends FrameLayout
             mDataAvail = null;
         }
 
+        refreshMemoryUi();
+    }
+
+    void refreshMemoryUi() {
+        final MemInfoSampler.Snapshot memInfo = mMemInfo;
+        if (memInfo == null) {
+            // The sampler has not read /proc/meminfo yet.
+            return;
+        }
+
         // This is the amount of available memory until we start killing
         // background services.
-        mMemInfoReader.readMemInfo();
-        long availMem = mMemInfoReader.getFreeSize() + mMemInfoReader.getCachedSize()
-                - SECONDARY_SERVER_MEM;
+        long availMem = memInfo.getAvailableSize() - SECONDARY_SERVER_MEM;
         if (availMem < 0) {
             availMem = 0;
         }
@@ -358,7 +367,7 @@ public class RunningProcessesView extends FrameLayout
                         R.string.service_background_processes, sizeStr));
                 sizeStr = bidiFormatter.unicodeWrap(
                         Formatter.formatShortFileSize(getContext(),
-                                mMemInfoReader.getTotalSize() - freeMem));
+                                memInfo.mTotalSize - freeMem));
                 mForegroundProcessText.setText(getResources().getString(
                         R.string.service_foreground_processes, sizeStr));
             }
@@ -378,7 +387,7 @@ public class RunningProcessesView extends FrameLayout
                 */
             }
             
-            float totalMem = mMemInfoReader.getTotalSize();
+            float totalMem = memInfo.mTotalSize;
             float totalShownMem = availMem + mLastBackgroundProcessMemory
                     + mLastServiceProcessMemory;
             mColorBar.setRatios((totalMem-totalShownMem)/totalMem,
@@ -391,6 +400,7 @@ public class RunningProcessesView extends FrameLayout
         ListView l = (ListView)parent;
         RunningState.MergedItem mi = (RunningState.MergedItem)l.getAdapter().getItem(position);
         mCurSelected = mi;
+        mState.noteInteraction();
         startServiceDetailsActivity(mi);
     }
 
@@ -434,6 +444,19 @@ public class RunningProcessesView extends FrameLayout
         }
         mListView.setOnItemClickListener(this);
         mListView.setRecyclerListener(this);
+        mListView.setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+                if (scrollState != SCROLL_STATE_IDLE) {
+                    mState.noteInteraction();
+                }
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                    int totalItemCount) {
+            }
+        });
         mAdapter = new ServiceListAdapter(mState);
         mListView.setAdapter(mAdapter);
         mColorBar = (LinearColorBar)findViewById(R.id.color_bar);
@@ -441,6 +464,7 @@ public class RunningProcessesView extends FrameLayout
         mBackgroundProcessText.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
+                mState.noteInteraction();
                 mAdapter.setShowBackground(true);
             }
         });
@@ -448,6 +472,7 @@ public class RunningProcessesView extends FrameLayout
         mForegroundProcessText.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
+                mState.noteInteraction();
                 mAdapter.setShowBackground(false);
             }
         });
@@ -455,10 +480,12 @@ public class RunningProcessesView extends FrameLayout
         ActivityManager.MemoryInfo memInfo = new ActivityManager.MemoryInfo();
         mAm.getMemoryInfo(memInfo);
         SECONDARY_SERVER_MEM = memInfo.secondaryServerThreshold;
+        mMemInfoSampler = MemInfoSampler.getInstance();
     }
     
     public void doPause() {
         mState.pause();
+        mMemInfoSampler.removeListener(this);
         mDataAvail = null;
         mOwner = null;
     }
@@ -466,6 +493,7 @@ public class RunningProcessesView extends FrameLayout
     public boolean doResume(Fragment owner, Runnable dataAvail) {
         mOwner = owner;
         mState.resume(this);
+        mMemInfoSampler.addListener(this);
         if (mState.hasData()) {
             // If the state already has its data, then let's populate our
             // list right now to avoid flicker.
@@ -489,6 +517,14 @@ public class RunningProcessesView extends FrameLayout
         }
     }
 
+    @Override
+    public void onMemInfoChanged(MemInfoSampler.Snapshot snapshot) {
+        mMemInfo = snapshot;
+        if (mState.hasData()) {
+            refreshMemoryUi();
+        }
+    }
+
     @Override
     public void onRefreshUi(int what) {
         switch (what) {
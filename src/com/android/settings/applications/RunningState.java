@@ -16,6 +16,7 @@
 
 package com.android.settings.applications;
 
+import com.android.settings.IconCache;
 import com.android.settings.R;
 import com.android.settings.users.UserUtils;
 import com.intel.config.FeatureConfig;
@@ -39,6 +40,7 @@ import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.text.format.Formatter;
@@ -69,7 +71,15 @@ public class RunningState {
     static final int MSG_UPDATE_TIME = 4;
 
     static final long TIME_UPDATE_DELAY = 1000;
+
+    // Contents are polled every CONTENTS_UPDATE_DELAY.  While consecutive
+    // polls find the same processes and services the interval doubles, up
+    // to MAX_CONTENTS_UPDATE_DELAY; for INTERACTION_BOOST_TIME after the
+    // user does something it drops to MIN_CONTENTS_UPDATE_DELAY.
+    static final long MIN_CONTENTS_UPDATE_DELAY = 1000;
     static final long CONTENTS_UPDATE_DELAY = 2000;
+    static final long MAX_CONTENTS_UPDATE_DELAY = 16000;
+    static final long INTERACTION_BOOST_TIME = 10000;
 
     static final int MAX_SERVICES = 100;
 
@@ -125,20 +135,35 @@ public class RunningState {
     final SparseArray<UserState> mUsers = new SparseArray<UserState>();
 
     static class AppProcessInfo {
-        final ActivityManager.RunningAppProcessInfo info;
+        ActivityManager.RunningAppProcessInfo info;
         boolean hasServices;
         boolean hasForegroundServices;
 
-        AppProcessInfo(ActivityManager.RunningAppProcessInfo _info) {
+        void set(ActivityManager.RunningAppProcessInfo _info) {
             info = _info;
+            hasServices = false;
+            hasForegroundServices = false;
         }
     }
 
-    // Temporary structure used when updating above information.
+    // Temporary structures used when updating above information, kept
+    // around so that a pass doesn't allocate them again.  Only touched by
+    // the background thread.
     final SparseArray<AppProcessInfo> mTmpAppProcesses = new SparseArray<AppProcessInfo>();
+    final ArrayList<AppProcessInfo> mAppProcessInfoPool = new ArrayList<AppProcessInfo>();
+    final ArrayList<ProcessItem> mTmpSortedProcesses = new ArrayList<ProcessItem>();
+    int[] mTmpPids = new int[0];
 
     int mSequence = 0;
 
+    // Fingerprint of the processes and services seen by the last update(),
+    // and whether that update found them unchanged.  Only touched by the
+    // background thread.
+    long mLastFingerprint;
+    boolean mHaveFingerprint;
+    boolean mLastUpdateIdentical;
+    long mContentsUpdateDelay = CONTENTS_UPDATE_DELAY;
+
     final Comparator<RunningState.MergedItem> mBackgroundComparator
         = new Comparator<RunningState.MergedItem>() {
             @Override
@@ -206,6 +231,11 @@ public class RunningState {
     boolean mHaveData;
     boolean mWatchingBackgroundItems;
 
+    // Until when updates run at the fast rate, and when the next one is
+    // scheduled (both uptime).
+    long mBoostUntil;
+    long mNextContentsUpdate;
+
     ArrayList<BaseItem> mItems = new ArrayList<BaseItem>();
     ArrayList<MergedItem> mMergedItems = new ArrayList<MergedItem>();
     ArrayList<MergedItem> mBackgroundItems = new ArrayList<MergedItem>();
@@ -241,9 +271,26 @@ public class RunningState {
                     Message cmd = mHandler.obtainMessage(MSG_REFRESH_UI);
                     cmd.arg1 = update(mApplicationContext, mAm) ? 1 : 0;
                     mHandler.sendMessage(cmd);
-                    removeMessages(MSG_UPDATE_CONTENTS);
-                    msg = obtainMessage(MSG_UPDATE_CONTENTS);
-                    sendMessageDelayed(msg, CONTENTS_UPDATE_DELAY);
+                    synchronized (mLock) {
+                        final long now = SystemClock.uptimeMillis();
+                        long delay;
+                        if (now < mBoostUntil) {
+                            mContentsUpdateDelay = CONTENTS_UPDATE_DELAY;
+                            delay = MIN_CONTENTS_UPDATE_DELAY;
+                        } else {
+                            if (mLastUpdateIdentical) {
+                                mContentsUpdateDelay = Math.min(mContentsUpdateDelay*2,
+                                        MAX_CONTENTS_UPDATE_DELAY);
+                            } else {
+                                mContentsUpdateDelay = CONTENTS_UPDATE_DELAY;
+                            }
+                            delay = mContentsUpdateDelay;
+                        }
+                        removeMessages(MSG_UPDATE_CONTENTS);
+                        msg = obtainMessage(MSG_UPDATE_CONTENTS);
+                        sendMessageDelayed(msg, delay);
+                        mNextContentsUpdate = now + delay;
+                    }
                     break;
             }
         }
@@ -314,6 +361,8 @@ public class RunningState {
         long mSize;
         String mSizeStr;
         String mCurSizeStr;
+        // The size mSizeStr was formatted from.
+        long mSizeStrBytes = -1;
         boolean mNeedDivider;
         boolean mBackground;
 
@@ -323,7 +372,9 @@ public class RunningState {
         }
 
         public Drawable loadIcon(Context context, RunningState state) {
-            if (mPackageInfo != null) {
+            if (mPackageInfo instanceof ApplicationInfo) {
+                return IconCache.getInstance(context).getIcon((ApplicationInfo)mPackageInfo);
+            } else if (mPackageInfo != null) {
                 return mPackageInfo.loadIcon(state.mPm);
             }
             return null;
@@ -519,7 +570,8 @@ public class RunningState {
         
         boolean updateSize(Context context, long pss, int curSeq) {
             mSize = pss * 1024;
-            if (mCurSeq == curSeq) {
+            if (mCurSeq == curSeq && mSize != mSizeStrBytes) {
+                mSizeStrBytes = mSize;
                 String sizeStr = Formatter.formatShortFileSize(
                         context, mSize);
                 if (!sizeStr.equals(mSizeStr)){
@@ -662,7 +714,11 @@ public class RunningState {
                     mSize += mOtherProcesses.get(i).mSize;
                 }
             }
-            
+
+            if (mSize == mSizeStrBytes) {
+                return false;
+            }
+            mSizeStrBytes = mSize;
             String sizeStr = Formatter.formatShortFileSize(
                     context, mSize);
             if (!sizeStr.equals(mSizeStr)){
@@ -759,14 +815,21 @@ public class RunningState {
         synchronized (mLock) {
             mResumed = true;
             mRefreshUiListener = listener;
+            final long now = SystemClock.uptimeMillis();
+            mBoostUntil = now + INTERACTION_BOOST_TIME;
             if (mInterestingConfigChanges.applyNewConfig(mApplicationContext.getResources())) {
                 mHaveData = false;
                 mBackgroundHandler.removeMessages(MSG_RESET_CONTENTS);
                 mBackgroundHandler.removeMessages(MSG_UPDATE_CONTENTS);
                 mBackgroundHandler.sendEmptyMessage(MSG_RESET_CONTENTS);
             }
-            if (!mBackgroundHandler.hasMessages(MSG_UPDATE_CONTENTS)) {
+            // An update left over from before the pause may have been
+            // backed off a long way; don't wait for it.
+            if (!mBackgroundHandler.hasMessages(MSG_UPDATE_CONTENTS)
+                    || mNextContentsUpdate > now + MIN_CONTENTS_UPDATE_DELAY) {
+                mBackgroundHandler.removeMessages(MSG_UPDATE_CONTENTS);
                 mBackgroundHandler.sendEmptyMessage(MSG_UPDATE_CONTENTS);
+                mNextContentsUpdate = now;
             }
             mHandler.sendEmptyMessage(MSG_UPDATE_TIME);
         }
@@ -774,11 +837,29 @@ public class RunningState {
 
     void updateNow() {
         synchronized (mLock) {
+            mBoostUntil = SystemClock.uptimeMillis() + INTERACTION_BOOST_TIME;
             mBackgroundHandler.removeMessages(MSG_UPDATE_CONTENTS);
             mBackgroundHandler.sendEmptyMessage(MSG_UPDATE_CONTENTS);
         }
     }
 
+    /**
+     * Called when the user interacts with a screen showing this state, so
+     * that updates go back to the fast rate for a while.
+     */
+    void noteInteraction() {
+        synchronized (mLock) {
+            final long now = SystemClock.uptimeMillis();
+            mBoostUntil = now + INTERACTION_BOOST_TIME;
+            if (mResumed && mNextContentsUpdate > now + MIN_CONTENTS_UPDATE_DELAY) {
+                mBackgroundHandler.removeMessages(MSG_UPDATE_CONTENTS);
+                mBackgroundHandler.sendEmptyMessageDelayed(MSG_UPDATE_CONTENTS,
+                        MIN_CONTENTS_UPDATE_DELAY);
+                mNextContentsUpdate = now + MIN_CONTENTS_UPDATE_DELAY;
+            }
+        }
+    }
+
     boolean hasData() {
         synchronized (mLock) {
             return mHaveData;
@@ -819,6 +900,7 @@ public class RunningState {
     }
 
     private void reset() {
+        mHaveFingerprint = false;
         mServiceProcessesByName.clear();
         mServiceProcessesByPid.clear();
         mInterestingProcesses.clear();
@@ -828,6 +910,16 @@ public class RunningState {
         mUsers.clear();
     }
 
+    // Returns the item showing the given process on its own, reusing the
+    // one it had before if any so that its id stays stable.
+    private static MergedItem obtainMergedItem(ProcessItem proc) {
+        if (proc.mMergedItem == null) {
+            proc.mMergedItem = new MergedItem(proc.mUserId);
+            proc.mMergedItem.mProcess = proc;
+        }
+        return proc.mMergedItem;
+    }
+
     private void addOtherUserItem(Context context, ArrayList<MergedItem> newMergedItems,
             SparseArray<MergedItem> userItems, MergedItem newItem) {
         MergedItem userItem = userItems.get(newItem.mUserId);
@@ -860,11 +952,10 @@ public class RunningState {
         userItem.mChildren.add(newItem);
     }
 
-    private boolean update(Context context, ActivityManager am) {
+    // Not private so that tests can measure a pass.
+    boolean update(Context context, ActivityManager am) {
         final PackageManager pm = context.getPackageManager();
-        
-        mSequence++;
-        
+
         boolean changed = false;
 
         // Retrieve list of services, filtering out anything that definitely
@@ -899,10 +990,70 @@ public class RunningState {
         List<ActivityManager.RunningAppProcessInfo> processes
                 = am.getRunningAppProcesses();
         final int NP = processes != null ? processes.size() : 0;
+
+        // If no process or service changed since the last pass, all of the
+        // items are still correct and only their memory use needs to be
+        // refreshed.
+        final long fingerprint = computeFingerprint(services, NS, processes, NP);
+        mLastUpdateIdentical = mHaveFingerprint && fingerprint == mLastFingerprint;
+        mLastFingerprint = fingerprint;
+        mHaveFingerprint = true;
+        if (!mLastUpdateIdentical) {
+            mSequence++;
+            changed = updateItems(context, pm, services, NS, processes, NP);
+        }
+
+        return updateMemory(context, changed);
+    }
+
+    private static long computeFingerprint(List<ActivityManager.RunningServiceInfo> services,
+            int NS, List<ActivityManager.RunningAppProcessInfo> processes, int NP) {
+        long h = 17;
+        for (int i=0; i<NS; i++) {
+            ActivityManager.RunningServiceInfo si = services.get(i);
+            h = 31*h + si.service.hashCode();
+            h = 31*h + si.pid;
+            h = 31*h + si.uid;
+            h = 31*h + si.restarting;
+            h = 31*h + si.activeSince;
+            h = 31*h + si.clientLabel;
+            h = 31*h + (si.clientPackage != null ? si.clientPackage.hashCode() : 0);
+            h = 31*h + (si.started ? 1 : 0) + (si.foreground ? 2 : 0);
+        }
+        for (int i=0; i<NP; i++) {
+            ActivityManager.RunningAppProcessInfo pi = processes.get(i);
+            h = 31*h + pi.pid;
+            h = 31*h + pi.uid;
+            h = 31*h + pi.processName.hashCode();
+            h = 31*h + pi.importance;
+            h = 31*h + pi.importanceReasonPid;
+            h = 31*h + pi.importanceReasonCode;
+            h = 31*h + pi.flags;
+            h = 31*h + pi.lru;
+        }
+        return h;
+    }
+
+    // Rebuilds the process and service items from the latest lists.
+    // Returns true if the structure of the items changed.
+    private boolean updateItems(Context context, PackageManager pm,
+            List<ActivityManager.RunningServiceInfo> services, int NS,
+            List<ActivityManager.RunningAppProcessInfo> processes, int NP) {
+        boolean changed = false;
+
+        for (int i=mTmpAppProcesses.size()-1; i>=0; i--) {
+            AppProcessInfo ainfo = mTmpAppProcesses.valueAt(i);
+            ainfo.info = null;
+            mAppProcessInfoPool.add(ainfo);
+        }
         mTmpAppProcesses.clear();
         for (int i=0; i<NP; i++) {
             ActivityManager.RunningAppProcessInfo pi = processes.get(i);
-            mTmpAppProcesses.put(pi.pid, new AppProcessInfo(pi));
+            final int NA = mAppProcessInfoPool.size();
+            AppProcessInfo ainfo = NA > 0 ? mAppProcessInfoPool.remove(NA-1)
+                    : new AppProcessInfo();
+            ainfo.set(pi);
+            mTmpAppProcesses.put(pi.pid, ainfo);
         }
 
         // Initial iteration through running services to collect per-process
@@ -1124,7 +1275,8 @@ public class RunningState {
 
         if (changed) {
             // First determine an order for the services.
-            ArrayList<ProcessItem> sortedProcesses = new ArrayList<ProcessItem>();
+            final ArrayList<ProcessItem> sortedProcesses = mTmpSortedProcesses;
+            sortedProcesses.clear();
             for (int i=0; i<mServiceProcessesByName.size(); i++) {
                 for (ProcessItem pi : mServiceProcessesByName.valueAt(i).values()) {
                     pi.mIsSystem = false;
@@ -1231,11 +1383,7 @@ public class RunningState {
             for (int i=0; i<NHP; i++) {
                 ProcessItem proc = mInterestingProcesses.get(i);
                 if (proc.mClient == null && proc.mServices.size() <= 0) {
-                    if (proc.mMergedItem == null) {
-                        proc.mMergedItem = new MergedItem(proc.mUserId);
-                        proc.mMergedItem.mProcess = proc;
-                    }
-                    proc.mMergedItem.update(context, false);
+                    obtainMergedItem(proc).update(context, false);
                     // ARKHAM-335 add container items to be shown only if the
                     // current user is the container user or if the current user
                     // is the container owner
@@ -1277,15 +1425,23 @@ public class RunningState {
                 mMergedItems = newMergedItems;
             }
         }
-        
+
+        return changed;
+    }
+
+    // Fetches memory use of all processes and updates the totals and the
+    // background items.
+    private boolean updateMemory(Context context, boolean changed) {
         // Count number of interesting other (non-active) processes, and
         // build a list of all processes we will retrieve memory for.
         mAllProcessItems.clear();
-        mAllProcessItems.addAll(mProcessItems);
+        for (int i=0; i<mProcessItems.size(); i++) {
+            mAllProcessItems.add(mProcessItems.get(i));
+        }
         int numBackgroundProcesses = 0;
         int numForegroundProcesses = 0;
         int numServiceProcesses = 0;
-        NRP = mRunningProcesses.size();
+        final int NRP = mRunningProcesses.size();
         for (int i=0; i<NRP; i++) {
             ProcessItem proc = mRunningProcesses.valueAt(i);
             if (proc.mCurSeq != mSequence) {
@@ -1316,7 +1472,10 @@ public class RunningState {
         boolean diffUsers = false;
         try {
             final int numProc = mAllProcessItems.size();
-            int[] pids = new int[numProc];
+            if (mTmpPids.length != numProc) {
+                mTmpPids = new int[numProc];
+            }
+            final int[] pids = mTmpPids;
             for (int i=0; i<numProc; i++) {
                 pids[i] = mAllProcessItems.get(i).mPid;
             }
@@ -1333,8 +1492,7 @@ public class RunningState {
                     backgroundProcessMemory += proc.mSize;
                     MergedItem mergedItem;
                     if (newBackgroundItems != null) {
-                        mergedItem = proc.mMergedItem = new MergedItem(proc.mUserId);
-                        proc.mMergedItem.mProcess = proc;
+                        mergedItem = obtainMergedItem(proc);
                         diffUsers |= mergedItem.mUserId != mMyUserId;
                         newBackgroundItems.add(mergedItem);
                     } else {
@@ -1346,8 +1504,7 @@ public class RunningState {
                                 diffUsers |= mergedItem.mUserId != mMyUserId;
                                 newBackgroundItems.add(mergedItem);
                             }
-                            mergedItem = proc.mMergedItem = new MergedItem(proc.mUserId);
-                            proc.mMergedItem.mProcess = proc;
+                            mergedItem = obtainMergedItem(proc);
                             diffUsers |= mergedItem.mUserId != mMyUserId;
                             newBackgroundItems.add(mergedItem);
                         } else {
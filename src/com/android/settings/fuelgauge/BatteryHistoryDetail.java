@@ -34,12 +34,26 @@ public class BatteryHistoryDetail extends Fragment {
     @Override
     public void onCreate(Bundle icicle) {
         super.onCreate(icicle);
-        byte[] data = getArguments().getByteArray(EXTRA_STATS);
-        Parcel parcel = Parcel.obtain();
-        parcel.unmarshall(data, 0, data.length);
-        parcel.setDataPosition(0);
-        mStats = com.android.internal.os.BatteryStatsImpl.CREATOR
-                .createFromParcel(parcel);
+        byte[] data = getArguments() != null ? getArguments().getByteArray(EXTRA_STATS) : null;
+        if (data != null) {
+            Parcel parcel = Parcel.obtain();
+            parcel.unmarshall(data, 0, data.length);
+            parcel.setDataPosition(0);
+            mStats = com.android.internal.os.BatteryStatsImpl.CREATOR
+                    .createFromParcel(parcel);
+            parcel.recycle();
+        } else {
+            // show the snapshot the summary was showing; only loads it when
+            // this screen is restored on its own
+            final BatteryStatsCache cache = BatteryStatsCache.getInstance(getActivity());
+            BatteryStatsCache.Snapshot snapshot = cache.getSnapshot();
+            if (snapshot == null) {
+                snapshot = cache.loadNow();
+            }
+            if (snapshot != null) {
+                mStats = snapshot.mStats;
+            }
+        }
     }
     
     @Override
@@ -47,7 +61,12 @@ public class BatteryHistoryDetail extends Fragment {
         View view = inflater.inflate(R.layout.preference_batteryhistory, null);
         BatteryHistoryChart chart = (BatteryHistoryChart)view.findViewById(
                 R.id.battery_history_chart);
-        chart.setStats(mStats);
+        if (mStats != null) {
+            chart.setStats(mStats);
+        } else {
+            // stats service failed; nothing to draw
+            chart.setVisibility(View.GONE);
+        }
         return view;
     }
 }
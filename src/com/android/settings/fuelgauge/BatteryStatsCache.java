@@ -0,0 +1,324 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.BatteryStats;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Parcel;
+import android.os.Process;
+import android.os.RemoteException;
+import android.os.ServiceManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.internal.app.IBatteryStats;
+import com.android.internal.os.BatteryStatsImpl;
+
+import java.util.ArrayList;
+
+/**
+ * Loads {@link BatteryStatsImpl} from the battery stats service on a
+ * background thread and shares the latest snapshot of it across the
+ * fuelgauge screens, so that opening one after another doesn't fetch and
+ * unparcel the whole thing again.
+ *
+ * <p>A snapshot is reloaded once it is older than {@link #setMaxAge(long)},
+ * once the battery level, status or plug type changes while anyone is
+ * listening, or when {@link #invalidate()} is called.  Once nobody is
+ * listening, the latest snapshot is let go when it gets older than that.
+ * Snapshots are never modified after they are published; their stats must
+ * only be read on the main thread.
+ */
+final class BatteryStatsCache {
+    private static final String TAG = "BatteryStatsCache";
+    private static final boolean DEBUG = false;
+
+    static final int MSG_LOAD = 1;
+    static final int MSG_PUBLISH = 2;
+    static final int MSG_EXPIRE = 3;
+
+    static final long DEFAULT_MAX_AGE = 60 * 1000;
+
+    static Object sGlobalLock = new Object();
+    static BatteryStatsCache sInstance;
+
+    /**
+     * Battery stats as of {@link #mTime}, with work already distributed for
+     * {@link BatteryStats#STATS_SINCE_CHARGED}.
+     */
+    static final class Snapshot {
+        // Elapsed realtime when loaded.
+        final long mTime;
+        final BatteryStatsImpl mStats;
+        // Battery level, status and plug type when loaded; see batteryState().
+        final int mBatteryState;
+
+        Snapshot(long time, BatteryStatsImpl stats, int batteryState) {
+            mTime = time;
+            mStats = stats;
+            mBatteryState = batteryState;
+        }
+    }
+
+    static interface OnSnapshotListener {
+        public void onSnapshotLoaded(Snapshot snapshot);
+    }
+
+    final Context mContext;
+    final IBatteryStats mBatteryInfo;
+
+    final HandlerThread mBackgroundThread;
+    final Handler mBackgroundHandler;
+
+    // Only touched on the main thread.
+    final ArrayList<OnSnapshotListener> mListeners = new ArrayList<OnSnapshotListener>();
+    Snapshot mSnapshot;
+    long mMaxAge = DEFAULT_MAX_AGE;
+    boolean mLoading;
+    boolean mInvalidated;
+    // Bumped by invalidate(), so loads started before it aren't taken as fresh.
+    int mGeneration;
+
+    final Handler mHandler = new Handler(Looper.getMainLooper()) {
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_PUBLISH:
+                    mLoading = false;
+                    publish((Snapshot) msg.obj, msg.arg1);
+                    break;
+                case MSG_EXPIRE:
+                    expire();
+                    break;
+            }
+        }
+    };
+
+    final BroadcastReceiver mBatteryReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            // temperature and voltage updates don't change what's shown
+            if (mSnapshot != null && batteryState(intent) != mSnapshot.mBatteryState) {
+                if (DEBUG) Log.d(TAG, "battery changed; reloading");
+                invalidate();
+            }
+        }
+    };
+
+    static BatteryStatsCache getInstance(Context context) {
+        synchronized (sGlobalLock) {
+            if (sInstance == null) {
+                sInstance = new BatteryStatsCache(context.getApplicationContext());
+            }
+            return sInstance;
+        }
+    }
+
+    private BatteryStatsCache(Context context) {
+        mContext = context;
+        mBatteryInfo = IBatteryStats.Stub.asInterface(
+                ServiceManager.getService(BatteryStats.SERVICE_NAME));
+        mBackgroundThread = new HandlerThread("BatteryStatsCache",
+                Process.THREAD_PRIORITY_BACKGROUND);
+        mBackgroundThread.start();
+        mBackgroundHandler = new Handler(mBackgroundThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                switch (msg.what) {
+                    case MSG_LOAD:
+                        mHandler.obtainMessage(MSG_PUBLISH, msg.arg1, 0, load()).sendToTarget();
+                        break;
+                }
+            }
+        };
+    }
+
+    /**
+     * Sets how old a snapshot may get before it is reloaded.  Must be called
+     * on the main thread.
+     */
+    void setMaxAge(long maxAge) {
+        mMaxAge = maxAge;
+    }
+
+    /**
+     * Starts delivering snapshots to the given listener, loading a new one
+     * in the background unless the latest is fresh.  If a snapshot has
+     * already been loaded it is delivered right away, even if it is stale.
+     * Must be called on the main thread.
+     */
+    void addListener(OnSnapshotListener listener) {
+        if (mListeners.contains(listener)) {
+            return;
+        }
+        mListeners.add(listener);
+        if (mListeners.size() == 1) {
+            mHandler.removeMessages(MSG_EXPIRE);
+            mContext.registerReceiver(mBatteryReceiver,
+                    new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        }
+        if (mSnapshot != null) {
+            listener.onSnapshotLoaded(mSnapshot);
+        }
+        if (!isFresh()) {
+            requestLoad();
+        }
+    }
+
+    /**
+     * Stops delivering snapshots to the given listener.  Must be called on
+     * the main thread.
+     */
+    void removeListener(OnSnapshotListener listener) {
+        if (mListeners.remove(listener) && mListeners.isEmpty()) {
+            mContext.unregisterReceiver(mBatteryReceiver);
+            scheduleExpiry();
+        }
+    }
+
+    /**
+     * Returns the latest snapshot whatever its age, or null if none has been
+     * loaded yet.
+     */
+    Snapshot getSnapshot() {
+        return mSnapshot;
+    }
+
+    /**
+     * Marks the latest snapshot stale, reloading it right away if anyone is
+     * listening.  Must be called on the main thread.
+     */
+    void invalidate() {
+        mInvalidated = true;
+        mGeneration++;
+        if (!mListeners.isEmpty()) {
+            requestLoad();
+        }
+    }
+
+    /**
+     * Returns a fresh snapshot, loading it on the calling thread if needed;
+     * if that fails, returns the latest snapshot or null.  Only for callers
+     * that can't wait for a listener; must be called on the main thread.
+     */
+    Snapshot loadNow() {
+        if (isFresh()) {
+            return mSnapshot;
+        }
+        publish(load(), mGeneration);
+        return mSnapshot;
+    }
+
+    private boolean isFresh() {
+        return mSnapshot != null && !mInvalidated
+                && SystemClock.elapsedRealtime() - mSnapshot.mTime < mMaxAge;
+    }
+
+    private void requestLoad() {
+        if (mLoading) {
+            return;
+        }
+        mLoading = true;
+        mBackgroundHandler.obtainMessage(MSG_LOAD, mGeneration, 0).sendToTarget();
+    }
+
+    private void scheduleExpiry() {
+        if (mSnapshot == null) {
+            return;
+        }
+        final long age = SystemClock.elapsedRealtime() - mSnapshot.mTime;
+        mHandler.removeMessages(MSG_EXPIRE);
+        mHandler.sendEmptyMessageDelayed(MSG_EXPIRE, Math.max(mMaxAge - age, 0));
+    }
+
+    private void expire() {
+        if (mListeners.isEmpty() && mSnapshot != null
+                && SystemClock.elapsedRealtime() - mSnapshot.mTime >= mMaxAge) {
+            if (DEBUG) Log.d(TAG, "dropping unused snapshot");
+            mSnapshot = null;
+        }
+    }
+
+    private void publish(Snapshot snapshot, int generation) {
+        if (snapshot == null) {
+            return;
+        }
+        mSnapshot = snapshot;
+        if (mListeners.isEmpty()) {
+            // loaded by loadNow() for a caller that doesn't listen
+            scheduleExpiry();
+        }
+        if (generation == mGeneration) {
+            mInvalidated = false;
+        } else if (!mListeners.isEmpty()) {
+            // invalidated while loading; this one is already stale
+            requestLoad();
+        }
+        for (int i=mListeners.size()-1; i>=0; i--) {
+            mListeners.get(i).onSnapshotLoaded(snapshot);
+        }
+    }
+
+    private Snapshot load() {
+        final long start = SystemClock.elapsedRealtime();
+        final byte[] data;
+        try {
+            data = mBatteryInfo.getStatistics();
+        } catch (RemoteException e) {
+            Log.e(TAG, "RemoteException:", e);
+            return null;
+        }
+
+        final BatteryStatsImpl stats;
+        final Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(data, 0, data.length);
+            parcel.setDataPosition(0);
+            stats = BatteryStatsImpl.CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+        stats.distributeWorkLocked(BatteryStats.STATS_SINCE_CHARGED);
+
+        // sticky, so this only reads the last broadcast
+        final Intent battery = mContext.registerReceiver(null,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (DEBUG) {
+            Log.d(TAG, "loaded " + data.length + " bytes in "
+                    + (SystemClock.elapsedRealtime() - start) + "ms");
+        }
+        return new Snapshot(SystemClock.elapsedRealtime(), stats, batteryState(battery));
+    }
+
+    private static int batteryState(Intent intent) {
+        if (intent == null) {
+            return 0;
+        }
+        final int level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, 0);
+        final int status = intent.getIntExtra(BatteryManager.EXTRA_STATUS, 0);
+        final int plugged = intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0);
+        return (level << 16) | ((status & 0xff) << 8) | (plugged & 0xff);
+    }
+}
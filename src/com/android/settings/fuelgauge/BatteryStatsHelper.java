@@ -31,10 +31,7 @@ import android.os.BatteryStats;
 import android.os.BatteryStats.Uid;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.Parcel;
 import android.os.Process;
-import android.os.RemoteException;
-import android.os.ServiceManager;
 import android.os.SystemClock;
 import android.os.UserHandle;
 import android.os.UserManager;
@@ -43,7 +40,6 @@ import android.telephony.SignalStrength;
 import android.util.Log;
 import android.util.SparseArray;
 
-import com.android.internal.app.IBatteryStats;
 import com.android.internal.os.BatteryStatsImpl;
 import com.android.internal.os.PowerProfile;
 import com.android.internal.util.FastPrintWriter;
@@ -71,8 +67,7 @@ public class BatteryStatsHelper {
 
     private static final String TAG = BatteryStatsHelper.class.getSimpleName();
 
-    private static BatteryStatsImpl sStatsXfer;
-    private IBatteryStats mBatteryInfo;
+    private BatteryStatsCache mStatsCache;
     private UserManager mUm;
     private BatteryStatsImpl mStats;
     private PowerProfile mPowerProfile;
@@ -135,11 +130,6 @@ public class BatteryStatsHelper {
         mHandler = handler;
     }
 
-    /** Clears the current stats and forces recreating for future use. */
-    public void clearStats() {
-        mStats = null;
-    }
-
     public BatteryStatsImpl getStats() {
         if (mStats == null) {
             load();
@@ -147,16 +137,27 @@ public class BatteryStatsHelper {
         return mStats;
     }
 
+    /**
+     * Use the given stats, typically from a {@link BatteryStatsCache.Snapshot},
+     * until they are replaced by the next call.
+     */
+    public void setStats(BatteryStatsImpl stats) {
+        mStats = stats;
+    }
+
     public PowerProfile getPowerProfile() {
         return mPowerProfile;
     }
 
     public void create(Bundle icicle) {
+        mStatsCache = BatteryStatsCache.getInstance(mActivity);
         if (icicle != null) {
-            mStats = sStatsXfer;
+            // recreated after a configuration change; keep showing the same stats
+            final BatteryStatsCache.Snapshot snapshot = mStatsCache.getSnapshot();
+            if (snapshot != null) {
+                mStats = snapshot.mStats;
+            }
         }
-        mBatteryInfo = IBatteryStats.Stub.asInterface(
-                ServiceManager.getService(BatteryStats.SERVICE_NAME));
         mUm = (UserManager) mActivity.getSystemService(Context.USER_SERVICE);
         mPowerProfile = new PowerProfile(mActivity);
     }
@@ -168,9 +169,7 @@ public class BatteryStatsHelper {
     }
 
     public void destroy() {
-        if (mActivity.isChangingConfigurations()) {
-            sStatsXfer = mStats;
-        } else {
+        if (!mActivity.isChangingConfigurations()) {
             BatterySipper.sUidCache.clear();
         }
     }
@@ -821,16 +820,9 @@ public class BatteryStatsHelper {
     }
 
     private void load() {
-        try {
-            byte[] data = mBatteryInfo.getStatistics();
-            Parcel parcel = Parcel.obtain();
-            parcel.unmarshall(data, 0, data.length);
-            parcel.setDataPosition(0);
-            mStats = com.android.internal.os.BatteryStatsImpl.CREATOR
-                    .createFromParcel(parcel);
-            mStats.distributeWorkLocked(BatteryStats.STATS_SINCE_CHARGED);
-        } catch (RemoteException e) {
-            Log.e(TAG, "RemoteException:", e);
+        final BatteryStatsCache.Snapshot snapshot = mStatsCache.loadNow();
+        if (snapshot != null) {
+            mStats = snapshot.mStats;
         }
     }
 }
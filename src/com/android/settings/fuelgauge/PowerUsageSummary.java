@@ -25,7 +25,6 @@ import android.os.BatteryStats;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
-import android.os.Parcel;
 import android.preference.Preference;
 import android.preference.PreferenceActivity;
 import android.preference.PreferenceFragment;
@@ -68,6 +67,7 @@ public class PowerUsageSummary extends PreferenceFragment {
     private static final int MAX_ITEMS_TO_LIST = 10;
 
     private BatteryStatsHelper mStatsHelper;
+    private BatteryStatsCache mStatsCache;
 
     private BroadcastReceiver mBatteryInfoReceiver = new BroadcastReceiver() {
 
@@ -81,16 +81,25 @@ public class PowerUsageSummary extends PreferenceFragment {
                 String batterySummary = context.getResources().getString(
                         R.string.power_usage_level_and_status, batteryLevel, batteryStatus);
                 mBatteryStatusPref.setTitle(batterySummary);
-                mStatsHelper.clearStats();
-                refreshStats();
+                // stats are reloaded by mStatsCache when the level or plug changes
             }
         }
     };
 
+    private final BatteryStatsCache.OnSnapshotListener mSnapshotListener =
+            new BatteryStatsCache.OnSnapshotListener() {
+        @Override
+        public void onSnapshotLoaded(BatteryStatsCache.Snapshot snapshot) {
+            mStatsHelper.setStats(snapshot.mStats);
+            refreshStats();
+        }
+    };
+
     @Override
     public void onAttach(Activity activity) {
         super.onAttach(activity);
         mStatsHelper = new BatteryStatsHelper(activity, mHandler);
+        mStatsCache = BatteryStatsCache.getInstance(activity);
     }
 
     @Override
@@ -109,11 +118,13 @@ public class PowerUsageSummary extends PreferenceFragment {
         super.onResume();
         getActivity().registerReceiver(mBatteryInfoReceiver,
                 new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
-        refreshStats();
+        // binds right away when stats were loaded recently, else once loaded
+        mStatsCache.addListener(mSnapshotListener);
     }
 
     @Override
     public void onPause() {
+        mStatsCache.removeListener(mSnapshotListener);
         mStatsHelper.pause();
         mHandler.removeMessages(BatteryStatsHelper.MSG_UPDATE_NAME_ICON);
         getActivity().unregisterReceiver(mBatteryInfoReceiver);
@@ -129,13 +140,9 @@ public class PowerUsageSummary extends PreferenceFragment {
     @Override
     public boolean onPreferenceTreeClick(PreferenceScreen preferenceScreen, Preference preference) {
         if (preference instanceof BatteryHistoryPreference) {
-            Parcel hist = Parcel.obtain();
-            mStatsHelper.getStats().writeToParcelWithoutUids(hist, 0);
-            byte[] histData = hist.marshall();
-            Bundle args = new Bundle();
-            args.putByteArray(BatteryHistoryDetail.EXTRA_STATS, histData);
+            // history detail shows the same snapshot from mStatsCache
             PreferenceActivity pa = (PreferenceActivity)getActivity();
-            pa.startPreferencePanel(BatteryHistoryDetail.class.getName(), args,
+            pa.startPreferencePanel(BatteryHistoryDetail.class.getName(), new Bundle(),
                     R.string.history_details_title, null, null, 0);
             return super.onPreferenceTreeClick(preferenceScreen, preference);
         }
@@ -180,8 +187,8 @@ public class PowerUsageSummary extends PreferenceFragment {
                 refreshStats();
                 return true;
             case MENU_STATS_REFRESH:
-                mStatsHelper.clearStats();
-                refreshStats();
+                // reloads in the background and comes back to mSnapshotListener
+                mStatsCache.invalidate();
                 return true;
             default:
                 return false;
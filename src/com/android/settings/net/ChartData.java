@@ -24,4 +24,10 @@ public class ChartData {
     public NetworkStatsHistory detail;
     public NetworkStatsHistory detailDefault;
     public NetworkStatsHistory detailForeground;
+
+    /** Range totals over {@link #network} and {@link #detail}, when loaded. */
+    public NetworkHistoryIndex networkIndex;
+    public NetworkHistoryIndex detailIndex;
+    public NetworkHistoryIndex detailDefaultIndex;
+    public NetworkHistoryIndex detailForegroundIndex;
 }
@@ -29,18 +29,57 @@ import android.net.INetworkStatsSession;
 import android.net.NetworkStatsHistory;
 import android.net.NetworkTemplate;
 import android.os.Bundle;
+import android.os.Process;
 import android.os.RemoteException;
 
 import com.android.settings.DataUsageSummary.AppItem;
 
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Loader for historical chart data for both network and UID details.
+ *
+ * <p>Items such as "Android OS" collapse many UIDs, each with its own
+ * history per set.  Those are fetched concurrently on a small shared pool
+ * and then folded pairwise into the first history of each set, so merging
+ * allocates nothing beyond the histories the session hands back.
  */
 public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
     private static final String KEY_TEMPLATE = "template";
     private static final String KEY_APP = "app";
     private static final String KEY_FIELDS = "fields";
 
+    private static final int POOL_SIZE = 4;
+    private static final int KEEP_ALIVE_SECONDS = 10;
+
+    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(
+            POOL_SIZE, POOL_SIZE, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        private int mCount;
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "ChartDataLoader #" + (++mCount));
+        }
+    });
+
+    static {
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+
     private final INetworkStatsSession mSession;
     private final Bundle mArgs;
 
@@ -75,7 +114,7 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
         final int fields = mArgs.getInt(KEY_FIELDS);
 
         try {
-            return loadInBackground(template, app, fields);
+            return load(mSession, template, app, fields);
         } catch (RemoteException e) {
             // since we can't do much without history, and we don't want to
             // leave with half-baked UI, we bail hard.
@@ -83,23 +122,58 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
         }
     }
 
-    private ChartData loadInBackground(NetworkTemplate template, AppItem app, int fields)
-            throws RemoteException {
+    /**
+     * Read chart data for the given template and app through the given
+     * session, answering from {@link DataUsageCache} when it can and storing
+     * what was read there.  Blocks until all histories are read.
+     */
+    public static ChartData load(INetworkStatsSession session, NetworkTemplate template,
+            AppItem app, int fields) throws RemoteException {
+        final ChartData cached = DataUsageCache.getChartData(template, app);
+        if (cached != null) {
+            return cached;
+        }
+
+        final int generation = DataUsageCache.getGeneration();
         final ChartData data = new ChartData();
-        data.network = mSession.getHistoryForNetwork(template, fields);
+        final ArrayList<Future<?>> pending = new ArrayList<Future<?>>();
 
-        if (app != null) {
-            // load stats for current uid and template
-            final int size = app.uids.size();
-            for (int i = 0; i < size; i++) {
-                final int uid = app.uids.keyAt(i);
-                data.detailDefault = collectHistoryForUid(
-                        template, uid, SET_DEFAULT, data.detailDefault);
-                data.detailForeground = collectHistoryForUid(
-                        template, uid, SET_FOREGROUND, data.detailForeground);
+        try {
+            final Future<NetworkStatsHistory> network = submitHistoryForNetwork(
+                    session, template, fields, pending);
+            if (app != null) {
+                // load stats for current uid and template
+                final int size = app.uids.size();
+                final ArrayList<Future<NetworkStatsHistory>> defaults =
+                        new ArrayList<Future<NetworkStatsHistory>>(size);
+                final ArrayList<Future<NetworkStatsHistory>> foregrounds =
+                        new ArrayList<Future<NetworkStatsHistory>>(size);
+                for (int i = 0; i < size; i++) {
+                    final int uid = app.uids.keyAt(i);
+                    defaults.add(submitHistoryForUid(
+                            session, template, uid, SET_DEFAULT, pending));
+                    foregrounds.add(submitHistoryForUid(
+                            session, template, uid, SET_FOREGROUND, pending));
+                }
+
+                final NetworkStatsHistory[] detailDefault = awaitAll(defaults);
+                final NetworkStatsHistory[] detailForeground = awaitAll(foregrounds);
+                reduce(detailDefault, detailForeground, pending);
+                if (size > 0) {
+                    data.detailDefault = detailDefault[0];
+                    data.detailForeground = detailForeground[0];
+                }
+            }
+            data.network = await(network);
+        } finally {
+            // only has work left if we bailed early
+            for (int i = 0; i < pending.size(); i++) {
+                pending.get(i).cancel(true);
             }
+        }
 
-            if (size > 0) {
+        if (app != null) {
+            if (app.uids.size() > 0) {
                 data.detail = new NetworkStatsHistory(data.detailForeground.getBucketDuration());
                 data.detail.recordEntireHistory(data.detailDefault);
                 data.detail.recordEntireHistory(data.detailForeground);
@@ -108,8 +182,14 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
                 data.detailForeground = new NetworkStatsHistory(HOUR_IN_MILLIS);
                 data.detail = new NetworkStatsHistory(HOUR_IN_MILLIS);
             }
+
+            data.detailIndex = new NetworkHistoryIndex(data.detail);
+            data.detailDefaultIndex = new NetworkHistoryIndex(data.detailDefault);
+            data.detailForegroundIndex = new NetworkHistoryIndex(data.detailForeground);
         }
+        data.networkIndex = new NetworkHistoryIndex(data.network);
 
+        DataUsageCache.putChartData(template, app, generation, data);
         return data;
     }
 
@@ -125,21 +205,103 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
         cancelLoad();
     }
 
+    private static Future<NetworkStatsHistory> submitHistoryForNetwork(
+            final INetworkStatsSession session, final NetworkTemplate template,
+            final int fields, ArrayList<Future<?>> pending) {
+        final Future<NetworkStatsHistory> future = sExecutor.submit(
+                new Callable<NetworkStatsHistory>() {
+            @Override
+            public NetworkStatsHistory call() throws RemoteException {
+                return session.getHistoryForNetwork(template, fields);
+            }
+        });
+        pending.add(future);
+        return future;
+    }
+
+    /**
+     * Start collecting {@link NetworkStatsHistory} for the requested UID and set.
+     */
+    private static Future<NetworkStatsHistory> submitHistoryForUid(
+            final INetworkStatsSession session, final NetworkTemplate template,
+            final int uid, final int set, ArrayList<Future<?>> pending) {
+        final Future<NetworkStatsHistory> future = sExecutor.submit(
+                new Callable<NetworkStatsHistory>() {
+            @Override
+            public NetworkStatsHistory call() throws RemoteException {
+                return session.getHistoryForUid(
+                        template, uid, set, TAG_NONE, FIELD_RX_BYTES | FIELD_TX_BYTES);
+            }
+        });
+        pending.add(future);
+        return future;
+    }
+
     /**
-     * Collect {@link NetworkStatsHistory} for the requested UID, combining with
-     * an existing {@link NetworkStatsHistory} if provided.
+     * Fold each array of histories into its first element, merging
+     * neighbours pairwise so that every round runs in parallel and no
+     * history is merged more than log2(n) times.  Both arrays must be the
+     * same length.
      */
-    private NetworkStatsHistory collectHistoryForUid(
-            NetworkTemplate template, int uid, int set, NetworkStatsHistory existing)
+    private static void reduce(final NetworkStatsHistory[] first,
+            final NetworkStatsHistory[] second, ArrayList<Future<?>> pending)
             throws RemoteException {
-        final NetworkStatsHistory history = mSession.getHistoryForUid(
-                template, uid, set, TAG_NONE, FIELD_RX_BYTES | FIELD_TX_BYTES);
-
-        if (existing != null) {
-            existing.recordEntireHistory(history);
-            return existing;
-        } else {
-            return history;
+        final int size = first.length;
+        final ArrayList<Future<Void>> round = new ArrayList<Future<Void>>();
+        for (int stride = 1; stride < size; stride *= 2) {
+            round.clear();
+            for (int i = 0; i + stride < size; i += 2 * stride) {
+                round.add(submitMerge(first[i], first[i + stride], pending));
+                round.add(submitMerge(second[i], second[i + stride], pending));
+            }
+            awaitRound(round);
+        }
+    }
+
+    private static Future<Void> submitMerge(final NetworkStatsHistory target,
+            final NetworkStatsHistory source, ArrayList<Future<?>> pending) {
+        final Future<Void> future = sExecutor.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                target.recordEntireHistory(source);
+                return null;
+            }
+        });
+        pending.add(future);
+        return future;
+    }
+
+    private static <T> T await(Future<T> future) throws RemoteException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            // loader was cancelled; its result is going to be dropped anyway
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted reading network stats", e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RemoteException) {
+                throw (RemoteException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    private static NetworkStatsHistory[] awaitAll(
+            ArrayList<Future<NetworkStatsHistory>> futures) throws RemoteException {
+        final int size = futures.size();
+        final NetworkStatsHistory[] result = new NetworkStatsHistory[size];
+        for (int i = 0; i < size; i++) {
+            result[i] = await(futures.get(i));
+        }
+        return result;
+    }
+
+    private static void awaitRound(ArrayList<Future<Void>> futures) throws RemoteException {
+        for (int i = 0; i < futures.size(); i++) {
+            await(futures.get(i));
         }
     }
 }
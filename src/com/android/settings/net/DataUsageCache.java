@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import android.net.NetworkStats;
+import android.net.NetworkStatsHistory;
+import android.net.NetworkTemplate;
+import android.util.LruCache;
+
+import com.android.internal.util.Objects;
+import com.android.settings.DataUsageSummary.AppItem;
+
+/**
+ * Process-wide cache of what {@link ChartDataLoader} and
+ * {@link SummaryForAllUidLoader} read from the stats service, so that going
+ * back to a tab, cycle or app seen a moment ago needs no binder calls.
+ *
+ * <p>Entries are evicted least-recently-used once their estimated size
+ * passes a byte budget.  Each entry is stamped with the generation it was
+ * read in; {@link #invalidate()} moves to a new generation whenever the
+ * service may have polled new stats, and loads started before that are not
+ * stored.
+ */
+public class DataUsageCache {
+    private static final int MAX_SIZE_BYTES = 1024 * 1024;
+
+    // Rough footprint of one history bucket and one stats entry.
+    private static final int BYTES_PER_BUCKET = 7 * 8;
+    private static final int BYTES_PER_ENTRY = 8 * 8;
+
+    private static final Object sLock = new Object();
+    private static int sGeneration;
+
+    private static final LruCache<Key, Entry> sCache = new LruCache<Key, Entry>(MAX_SIZE_BYTES) {
+        @Override
+        protected int sizeOf(Key key, Entry value) {
+            return value.mSize;
+        }
+    };
+
+    private static class Key {
+        final NetworkTemplate mTemplate;
+        final int mAppKey;
+        final long mStart;
+        final long mEnd;
+
+        Key(NetworkTemplate template, int appKey, long start, long end) {
+            mTemplate = template;
+            mAppKey = appKey;
+            mStart = start;
+            mEnd = end;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(mTemplate, mAppKey, mStart, mEnd);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof Key) {
+                final Key other = (Key) obj;
+                return Objects.equal(mTemplate, other.mTemplate) && mAppKey == other.mAppKey
+                        && mStart == other.mStart && mEnd == other.mEnd;
+            }
+            return false;
+        }
+    }
+
+    private static class Entry {
+        final int mGeneration;
+        final int mSize;
+        final Object mValue;
+
+        Entry(int generation, int size, Object value) {
+            mGeneration = generation;
+            mSize = size;
+            mValue = value;
+        }
+    }
+
+    // Keys for entries that don't depend on an app or on a range.
+    private static final int NO_APP = Integer.MIN_VALUE;
+    private static final long NO_RANGE = Long.MIN_VALUE;
+
+    /**
+     * Current generation; pass it back when storing what was read.
+     */
+    public static int getGeneration() {
+        synchronized (sLock) {
+            return sGeneration;
+        }
+    }
+
+    /**
+     * Drops everything cached, as the stats service may have new stats.
+     */
+    public static void invalidate() {
+        synchronized (sLock) {
+            sGeneration++;
+            sCache.evictAll();
+        }
+    }
+
+    /**
+     * Returns the chart data last read for the given template and app, or
+     * null if there is none from the current generation.
+     */
+    public static ChartData getChartData(NetworkTemplate template, AppItem app) {
+        return (ChartData) get(chartKey(template, app));
+    }
+
+    public static void putChartData(
+            NetworkTemplate template, AppItem app, int generation, ChartData data) {
+        final int size = sizeOf(data.network) + sizeOf(data.detail)
+                + sizeOf(data.detailDefault) + sizeOf(data.detailForeground)
+                + sizeOf(data.networkIndex) + sizeOf(data.detailIndex)
+                + sizeOf(data.detailDefaultIndex) + sizeOf(data.detailForegroundIndex);
+        put(chartKey(template, app), generation, size, data);
+    }
+
+    /**
+     * Returns the per-UID summary last read for the given template and
+     * range, or null if there is none from the current generation.
+     */
+    public static NetworkStats getSummary(NetworkTemplate template, long start, long end) {
+        return (NetworkStats) get(new Key(template, NO_APP, start, end));
+    }
+
+    public static void putSummary(
+            NetworkTemplate template, long start, long end, int generation, NetworkStats stats) {
+        final int size = stats != null ? stats.size() * BYTES_PER_ENTRY : 0;
+        put(new Key(template, NO_APP, start, end), generation, size, stats);
+    }
+
+    private static Key chartKey(NetworkTemplate template, AppItem app) {
+        return new Key(template, app != null ? app.key : NO_APP, NO_RANGE, NO_RANGE);
+    }
+
+    private static Object get(Key key) {
+        synchronized (sLock) {
+            final Entry entry = sCache.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.mGeneration != sGeneration) {
+                sCache.remove(key);
+                return null;
+            }
+            return entry.mValue;
+        }
+    }
+
+    private static void put(Key key, int generation, int size, Object value) {
+        if (value == null) {
+            return;
+        }
+        synchronized (sLock) {
+            // drop reads that raced with an invalidation
+            if (generation == sGeneration) {
+                sCache.put(key, new Entry(generation, Math.max(size, 1), value));
+            }
+        }
+    }
+
+    private static int sizeOf(NetworkStatsHistory history) {
+        return history != null ? history.size() * BYTES_PER_BUCKET : 0;
+    }
+
+    private static int sizeOf(NetworkHistoryIndex index) {
+        return index != null ? index.getByteCount() : 0;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import android.net.NetworkStatsHistory;
+
+/**
+ * Prefix sums over the buckets of a {@link NetworkStatsHistory}, answering
+ * total bytes over any range in constant time with the same results as
+ * {@link NetworkStatsHistory#getValues(long, long, long, NetworkStatsHistory.Entry)}.
+ *
+ * <p>Buckets are laid out on a dense grid of the history's bucket duration,
+ * so a range maps to grid positions by division; only the two partially
+ * covered buckets at its edges need per-bucket math.  Histories with long
+ * gaps would need a grid many times their size, so those are scanned
+ * instead.
+ */
+public class NetworkHistoryIndex {
+    // Most grid slots we lay out per bucket of the history; sparser
+    // histories are answered by scanning.
+    private static final int MAX_GRID_SLOTS_PER_BUCKET = 4;
+
+    private final NetworkStatsHistory mHistory;
+    private final long mBucketDuration;
+    private final long mFirstStart;
+
+    // Null when the history is empty or too sparse for a grid.
+    private final long[] mRxBytes;
+    private final long[] mTxBytes;
+    // mPrefix[i] is the total of grid buckets [0, i).
+    private final long[] mPrefix;
+
+    public NetworkHistoryIndex(NetworkStatsHistory history) {
+        mHistory = history;
+        mBucketDuration = history.getBucketDuration();
+
+        final int size = history.size();
+        NetworkStatsHistory.Entry entry = null;
+        long firstStart = 0;
+        long gridSize = 0;
+        if (size > 0) {
+            entry = history.getValues(0, entry);
+            firstStart = entry.bucketStart;
+            entry = history.getValues(size - 1, entry);
+            gridSize = (entry.bucketStart - firstStart) / mBucketDuration + 1;
+        }
+        mFirstStart = firstStart;
+
+        if (size == 0 || gridSize > (long) size * MAX_GRID_SLOTS_PER_BUCKET) {
+            mRxBytes = null;
+            mTxBytes = null;
+            mPrefix = null;
+            return;
+        }
+
+        final int count = (int) gridSize;
+        mRxBytes = new long[count];
+        mTxBytes = new long[count];
+        for (int i = 0; i < size; i++) {
+            entry = history.getValues(i, entry);
+            final int index = (int) ((entry.bucketStart - firstStart) / mBucketDuration);
+            mRxBytes[index] += entry.rxBytes;
+            mTxBytes[index] += entry.txBytes;
+        }
+
+        mPrefix = new long[count + 1];
+        for (int i = 0; i < count; i++) {
+            mPrefix[i + 1] = mPrefix[i] + mRxBytes[i] + mTxBytes[i];
+        }
+    }
+
+    public NetworkStatsHistory getHistory() {
+        return mHistory;
+    }
+
+    /**
+     * Return the number of bytes held by the index itself, not counting the
+     * history it indexes.
+     */
+    public int getByteCount() {
+        if (mPrefix == null) return 0;
+        return (mRxBytes.length + mTxBytes.length + mPrefix.length) * 8;
+    }
+
+    /**
+     * Return total rx+tx bytes between {@code start} and {@code end}, counting
+     * partially covered buckets proportionally and the bucket active at
+     * {@code now} in full.
+     */
+    public long getTotalBytes(long start, long end, long now) {
+        if (mPrefix == null) {
+            if (mHistory.size() == 0) return 0;
+            final NetworkStatsHistory.Entry entry = mHistory.getValues(start, end, now, null);
+            return entry.rxBytes + entry.txBytes;
+        }
+        if (end <= start) return 0;
+
+        final int count = mRxBytes.length;
+        final int first = start <= mFirstStart ? 0
+                : (int) Math.min((start - mFirstStart) / mBucketDuration, count);
+        if (end <= mFirstStart) return 0;
+        final int last = (int) Math.min((end - mFirstStart - 1) / mBucketDuration, count - 1);
+        if (first > last) return 0;
+
+        if (first == last) {
+            return getBucketBytes(first, start, end, now);
+        }
+        return getBucketBytes(first, start, end, now)
+                + (mPrefix[last] - mPrefix[first + 1])
+                + getBucketBytes(last, start, end, now);
+    }
+
+    private long getBucketBytes(int index, long start, long end, long now) {
+        final long curStart = mFirstStart + index * mBucketDuration;
+        final long curEnd = curStart + mBucketDuration;
+
+        // include full value for active buckets, otherwise only fractional
+        final boolean activeBucket = curStart < now && curEnd > now;
+        final long overlap;
+        if (activeBucket) {
+            overlap = mBucketDuration;
+        } else {
+            final long overlapEnd = curEnd < end ? curEnd : end;
+            final long overlapStart = curStart > start ? curStart : start;
+            overlap = overlapEnd - overlapStart;
+        }
+        if (overlap <= 0) return 0;
+
+        return mRxBytes[index] * overlap / mBucketDuration
+                + mTxBytes[index] * overlap / mBucketDuration;
+    }
+}
@@ -57,9 +57,26 @@ public class SummaryForAllUidLoader extends AsyncTaskLoader<NetworkStats> {
         final NetworkTemplate template = mArgs.getParcelable(KEY_TEMPLATE);
         final long start = mArgs.getLong(KEY_START);
         final long end = mArgs.getLong(KEY_END);
+        return load(mSession, template, start, end);
+    }
+
+    /**
+     * Read the per-UID summary for the given template and range through the
+     * given session, answering from {@link DataUsageCache} when it can and
+     * storing what was read there.  Returns null if the session failed.
+     */
+    public static NetworkStats load(
+            INetworkStatsSession session, NetworkTemplate template, long start, long end) {
+        final NetworkStats cached = DataUsageCache.getSummary(template, start, end);
+        if (cached != null) {
+            return cached;
+        }
 
+        final int generation = DataUsageCache.getGeneration();
         try {
-            return mSession.getSummaryForAllUid(template, start, end, false);
+            final NetworkStats stats = session.getSummaryForAllUid(template, start, end, false);
+            DataUsageCache.putSummary(template, start, end, generation, stats);
+            return stats;
         } catch (RemoteException e) {
             return null;
         }
@@ -20,6 +20,7 @@ import android.graphics.drawable.Drawable;
 
 public class UidDetail {
     public CharSequence label;
+    public CharSequence contentDescription;
     public CharSequence[] detailLabels;
     public Drawable icon;
 }
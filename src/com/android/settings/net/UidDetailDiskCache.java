@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.text.format.DateUtils;
+import android.util.AtomicFile;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * On-disk copy of the labels {@link UidDetailProvider} resolved for app
+ * UIDs, so that a new process can show them without loading each app's
+ * resources again.  Icons are not stored; they come from the shared
+ * {@link com.android.settings.IconCache}.
+ *
+ * <p>Records are keyed by UID and stamped with the packages sharing it and
+ * the modification times of their apks; all of them are discarded when
+ * the locale they were resolved in no longer matches, whether on reading
+ * the file or after a locale change in this process.  New records are written
+ * out on a background thread shortly after the last of a burst of them,
+ * dropping the records of UIDs that no longer have any packages.
+ */
+class UidDetailDiskCache {
+    private static final String TAG = "UidDetailDiskCache";
+    private static final boolean LOGD = false;
+
+    private static final String FILE_NAME = "uid_details.cache";
+
+    private static final int MAGIC = 0x55494444; // 'UIDD'
+    private static final int VERSION = 2;
+
+    // How long to wait for more records before writing them out.
+    private static final long PERSIST_DELAY = 2 * DateUtils.SECOND_IN_MILLIS;
+
+    private static UidDetailDiskCache sInstance;
+
+    static final class Record {
+        final long stamp;
+        final String label;
+        final String[] detailLabels;
+        // Package whose icon represents the UID, or null for the default.
+        final String iconPackage;
+
+        Record(long stamp, String label, String[] detailLabels, String iconPackage) {
+            this.stamp = stamp;
+            this.label = label;
+            this.detailLabels = detailLabels;
+            this.iconPackage = iconPackage;
+        }
+    }
+
+    private final Context mContext;
+    private final AtomicFile mFile;
+    private final Handler mHandler;
+
+    // All guarded by this.
+    private final SparseArray<Record> mRecords = new SparseArray<Record>();
+    private boolean mLoaded;
+    private boolean mDirty;
+    // Locale the records were resolved in; see configKey().
+    private String mConfigKey;
+
+    private final Runnable mPersist = new Runnable() {
+        @Override
+        public void run() {
+            persist();
+        }
+    };
+
+    static synchronized UidDetailDiskCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new UidDetailDiskCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private UidDetailDiskCache(Context context) {
+        mContext = context;
+        mFile = new AtomicFile(new File(context.getCacheDir(), FILE_NAME));
+        final HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Stamp describing the packages of a UID: which ones they are and when
+     * their apks last changed.
+     */
+    static long stampFor(ApplicationInfo[] infos) {
+        long stamp = 17;
+        for (ApplicationInfo info : infos) {
+            stamp = 31 * stamp + info.packageName.hashCode();
+            stamp = 31 * stamp + (info.sourceDir != null
+                    ? new File(info.sourceDir).lastModified() : 0);
+        }
+        return stamp;
+    }
+
+    private String configKey() {
+        return String.valueOf(mContext.getResources().getConfiguration().locale);
+    }
+
+    /**
+     * Returns the record for the given UID if it was written for the given
+     * stamp, reading the file first if needed.
+     */
+    synchronized Record get(int uid, long stamp) {
+        ensureLoaded();
+        final Record record = mRecords.get(uid);
+        return record != null && record.stamp == stamp ? record : null;
+    }
+
+    /**
+     * Stores the record for the given UID, writing the file out in the
+     * background once no more records have come in for a moment.
+     */
+    void put(int uid, Record record) {
+        synchronized (this) {
+            ensureLoaded();
+            mRecords.put(uid, record);
+            mDirty = true;
+        }
+        mHandler.removeCallbacks(mPersist);
+        mHandler.postDelayed(mPersist, PERSIST_DELAY);
+    }
+
+    /**
+     * Writes the records out if any changed since they were read, leaving
+     * out UIDs that no longer have any packages.  Only runs on mHandler, so
+     * writes never overlap.
+     */
+    private void persist() {
+        final SparseArray<Record> records;
+        final String configKey;
+        synchronized (this) {
+            if (!mDirty) return;
+            mDirty = false;
+            records = mRecords.clone();
+            configKey = mConfigKey;
+        }
+
+        final PackageManager pm = mContext.getPackageManager();
+        for (int i = records.size() - 1; i >= 0; i--) {
+            final int uid = records.keyAt(i);
+            if (pm.getPackagesForUid(uid) == null) {
+                if (LOGD) Log.d(TAG, "dropping record of removed uid " + uid);
+                synchronized (this) {
+                    if (mRecords.get(uid) == records.valueAt(i)) {
+                        mRecords.delete(uid);
+                    }
+                }
+                records.removeAt(i);
+            }
+        }
+
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(configKey);
+            final int size = records.size();
+            out.writeInt(size);
+            for (int i = 0; i < size; i++) {
+                final Record record = records.valueAt(i);
+                out.writeInt(records.keyAt(i));
+                out.writeLong(record.stamp);
+                writeString(out, record.label);
+                final int count = record.detailLabels != null ? record.detailLabels.length : -1;
+                out.writeInt(count);
+                for (int j = 0; j < count; j++) {
+                    writeString(out, record.detailLabels[j]);
+                }
+                writeString(out, record.iconPackage);
+            }
+            out.flush();
+            mFile.finishWrite(fos);
+            if (LOGD) Log.d(TAG, "wrote " + size + " records");
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write uid details", e);
+            if (fos != null) {
+                mFile.failWrite(fos);
+            }
+            synchronized (this) {
+                mDirty = true;
+            }
+        }
+    }
+
+    private void ensureLoaded() {
+        final String configKey = configKey();
+        if (mLoaded) {
+            if (!configKey.equals(mConfigKey)) {
+                if (LOGD) Log.d(TAG, "locale changed; dropping uid details");
+                mRecords.clear();
+                mConfigKey = configKey;
+            }
+            return;
+        }
+        mLoaded = true;
+        mConfigKey = configKey;
+
+        if (!mFile.getBaseFile().exists()) return;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(mFile.openRead()));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                Log.i(TAG, "Discarding uid details with unknown format");
+                return;
+            }
+            if (!configKey.equals(in.readUTF())) {
+                if (LOGD) Log.d(TAG, "discarding uid details for old locale");
+                return;
+            }
+            final int size = in.readInt();
+            for (int i = 0; i < size; i++) {
+                final int uid = in.readInt();
+                final long stamp = in.readLong();
+                final String label = readString(in);
+                final int count = in.readInt();
+                final String[] detailLabels = count >= 0 ? new String[count] : null;
+                for (int j = 0; j < count; j++) {
+                    detailLabels[j] = readString(in);
+                }
+                final String iconPackage = readString(in);
+                mRecords.put(uid, new Record(stamp, label, detailLabels, iconPackage));
+            }
+            if (LOGD) Log.d(TAG, "read " + size + " records");
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read uid details", e);
+            mRecords.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeString(DataOutputStream out, String str) throws IOException {
+        out.writeBoolean(str != null);
+        if (str != null) {
+            out.writeUTF(str);
+        }
+    }
+}
@@ -23,24 +23,47 @@ import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.pm.UserInfo;
 import android.content.res.Resources;
+import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.net.ConnectivityManager;
 import android.net.TrafficStats;
 import android.os.UserManager;
 import android.text.TextUtils;
+import android.util.LruCache;
 import android.util.SparseArray;
 
 import com.android.settings.R;
+import com.android.settings.IconCache;
 import com.android.settings.Utils;
 import com.android.settings.users.UserUtils;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
 /**
  * Return details about a specific UID, handling special cases like
  * {@link TrafficStats#UID_TETHERING} and {@link UserInfo}.
+ *
+ * <p>Details are kept in memory up to a byte budget, and labels of app UIDs
+ * are also kept on disk by {@link UidDetailDiskCache} so that they survive
+ * process restarts, whichever way they were resolved.
  */
 public class UidDetailProvider {
+    private static final int MAX_SIZE_BYTES = 2 * 1024 * 1024;
+
+    private static final Comparator<ApplicationInfo> PACKAGE_NAME_ORDER =
+            new Comparator<ApplicationInfo>() {
+        @Override
+        public int compare(ApplicationInfo lhs, ApplicationInfo rhs) {
+            return lhs.packageName.compareTo(rhs.packageName);
+        }
+    };
+
     private final Context mContext;
-    private final SparseArray<UidDetail> mUidDetailCache;
+    private final LruCache<Integer, UidDetail> mUidDetailCache;
+    private final UidDetailDiskCache mDiskCache;
 
     public static int buildKeyForUser(int userHandle) {
         return -(2000 + userHandle);
@@ -48,24 +71,24 @@ public class UidDetailProvider {
 
     public UidDetailProvider(Context context) {
         mContext = context.getApplicationContext();
-        mUidDetailCache = new SparseArray<UidDetail>();
+        mUidDetailCache = new LruCache<Integer, UidDetail>(MAX_SIZE_BYTES) {
+            @Override
+            protected int sizeOf(Integer key, UidDetail value) {
+                return estimateSize(value);
+            }
+        };
+        mDiskCache = UidDetailDiskCache.getInstance(mContext);
     }
 
     public void clearCache() {
-        synchronized (mUidDetailCache) {
-            mUidDetailCache.clear();
-        }
+        mUidDetailCache.evictAll();
     }
 
     /**
      * Resolve best descriptive label for the given UID.
      */
     public UidDetail getUidDetail(int uid, boolean blocking) {
-        UidDetail detail;
-
-        synchronized (mUidDetailCache) {
-            detail = mUidDetailCache.get(uid);
-        }
+        UidDetail detail = mUidDetailCache.get(uid);
 
         if (detail != null) {
             return detail;
@@ -73,20 +96,89 @@ public class UidDetailProvider {
             return null;
         }
 
-        detail = buildUidDetail(uid);
+        detail = buildUidDetail(uid, null);
+        mUidDetailCache.put(uid, detail);
+
+        return detail;
+    }
+
+    /**
+     * Resolve details for all of the given UIDs that aren't cached yet,
+     * listing installed applications once for all of them instead of asking
+     * about each UID on its own.  Blocks until done, so must be called off
+     * the main thread.
+     */
+    public void prefetch(int[] uids) {
+        SparseArray<ApplicationInfo[]> appsByUid = null;
+        for (int uid : uids) {
+            if (mUidDetailCache.get(uid) != null) continue;
+
+            if (appsByUid == null) {
+                appsByUid = listAppsByUid();
+            }
+            mUidDetailCache.put(uid, buildUidDetail(uid, appsByUid));
+        }
+    }
+
+    private SparseArray<ApplicationInfo[]> listAppsByUid() {
+        final PackageManager pm = mContext.getPackageManager();
+        final List<ApplicationInfo> apps = pm.getInstalledApplications(
+                PackageManager.GET_UNINSTALLED_PACKAGES | PackageManager.GET_DISABLED_COMPONENTS);
 
-        synchronized (mUidDetailCache) {
-            mUidDetailCache.put(uid, detail);
+        final SparseArray<ArrayList<ApplicationInfo>> grouped =
+                new SparseArray<ArrayList<ApplicationInfo>>();
+        for (int i = 0; i < apps.size(); i++) {
+            final ApplicationInfo info = apps.get(i);
+            ArrayList<ApplicationInfo> group = grouped.get(info.uid);
+            if (group == null) {
+                group = new ArrayList<ApplicationInfo>(1);
+                grouped.put(info.uid, group);
+            }
+            group.add(info);
         }
 
-        return detail;
+        final SparseArray<ApplicationInfo[]> appsByUid =
+                new SparseArray<ApplicationInfo[]>(grouped.size());
+        for (int i = 0; i < grouped.size(); i++) {
+            final ArrayList<ApplicationInfo> group = grouped.valueAt(i);
+            appsByUid.put(grouped.keyAt(i), group.toArray(new ApplicationInfo[group.size()]));
+        }
+        return appsByUid;
+    }
+
+    private static int estimateSize(UidDetail detail) {
+        int size = 64;
+        if (detail.label != null) {
+            size += 2 * detail.label.length();
+        }
+        if (detail.detailLabels != null) {
+            for (CharSequence label : detail.detailLabels) {
+                size += 2 * label.length();
+            }
+        }
+        if (detail.icon instanceof BitmapDrawable) {
+            size += ((BitmapDrawable) detail.icon).getBitmap().getByteCount();
+        } else if (detail.icon != null) {
+            size += 4 * Math.max(detail.icon.getIntrinsicWidth(), 0)
+                    * Math.max(detail.icon.getIntrinsicHeight(), 0);
+        }
+        return size;
     }
 
     /**
      * Build {@link UidDetail} object, blocking until all {@link Drawable}
-     * lookup is finished.
+     * lookup is finished.  When given, {@code appsByUid} is used instead of
+     * asking the package manager about the packages of the UID.
      */
-    private UidDetail buildUidDetail(int uid) {
+    private UidDetail buildUidDetail(int uid, SparseArray<ApplicationInfo[]> appsByUid) {
+        final UidDetail detail = buildUidDetailInner(uid, appsByUid);
+        if (detail.contentDescription == null) {
+            detail.contentDescription = detail.label;
+        }
+        return detail;
+    }
+
+    private UidDetail buildUidDetailInner(int uid, SparseArray<ApplicationInfo[]> appsByUid) {
         final Resources res = mContext.getResources();
         final PackageManager pm = mContext.getPackageManager();
 
@@ -127,35 +219,92 @@ public class UidDetailProvider {
         }
 
         // otherwise fall back to using packagemanager labels
-        final String[] packageNames = pm.getPackagesForUid(uid);
-        final int length = packageNames != null ? packageNames.length : 0;
+        final ApplicationInfo[] infos = getAppsForUid(pm, uid, appsByUid);
+        final int length = infos.length;
+        final long stamp = UidDetailDiskCache.stampFor(infos);
+        final UidDetailDiskCache.Record record = length > 0 ? mDiskCache.get(uid, stamp) : null;
+        if (record != null) {
+            detail.label = record.label;
+            detail.detailLabels = record.detailLabels;
+            for (int i = 0; i < length; i++) {
+                if (infos[i].packageName.equals(record.iconPackage)) {
+                    detail.icon = IconCache.getInstance(mContext).getIcon(infos[i]);
+                }
+            }
+            return detail;
+        }
+
+        String iconPackage = null;
+        boolean complete = true;
         try {
             if (length == 1) {
-                final ApplicationInfo info = pm.getApplicationInfo(packageNames[0], 0);
+                final ApplicationInfo info = infos[0];
                 detail.label = info.loadLabel(pm).toString();
-                detail.icon = info.loadIcon(pm);
+                detail.icon = IconCache.getInstance(mContext).getIcon(info);
+                iconPackage = info.packageName;
             } else if (length > 1) {
                 detail.detailLabels = new CharSequence[length];
                 for (int i = 0; i < length; i++) {
-                    final String packageName = packageNames[i];
+                    final ApplicationInfo appInfo = infos[i];
+                    final String packageName = appInfo.packageName;
                     final PackageInfo packageInfo = pm.getPackageInfo(packageName, 0);
-                    final ApplicationInfo appInfo = pm.getApplicationInfo(packageName, 0);
 
                     detail.detailLabels[i] = appInfo.loadLabel(pm).toString();
                     if (packageInfo.sharedUserLabel != 0) {
                         detail.label = pm.getText(packageName, packageInfo.sharedUserLabel,
                                 packageInfo.applicationInfo).toString();
-                        detail.icon = appInfo.loadIcon(pm);
+                        detail.icon = IconCache.getInstance(mContext).getIcon(appInfo);
+                        iconPackage = packageName;
                     }
                 }
             }
         } catch (NameNotFoundException e) {
+            // package went away while we looked; don't remember partial labels
+            complete = false;
         }
 
         if (TextUtils.isEmpty(detail.label)) {
             detail.label = Integer.toString(uid);
         }
 
+        if (complete && length > 0) {
+            String[] detailLabels = null;
+            if (detail.detailLabels != null) {
+                detailLabels = new String[length];
+                for (int i = 0; i < length; i++) {
+                    detailLabels[i] = detail.detailLabels[i].toString();
+                }
+            }
+            final String label = detail.label.toString();
+            mDiskCache.put(uid, new UidDetailDiskCache.Record(
+                    stamp, label, detailLabels, iconPackage));
+        }
+
         return detail;
     }
+
+    /**
+     * Returns the applications running as the given UID, ordered by package
+     * name so that the order doesn't depend on how they were looked up.
+     */
+    private static ApplicationInfo[] getAppsForUid(
+            PackageManager pm, int uid, SparseArray<ApplicationInfo[]> appsByUid) {
+        ApplicationInfo[] infos = appsByUid != null ? appsByUid.get(uid) : null;
+        if (infos == null) {
+            final String[] packageNames = pm.getPackagesForUid(uid);
+            final int length = packageNames != null ? packageNames.length : 0;
+            final ArrayList<ApplicationInfo> found = new ArrayList<ApplicationInfo>(length);
+            for (int i = 0; i < length; i++) {
+                try {
+                    found.add(pm.getApplicationInfo(packageNames[i], 0));
+                } catch (NameNotFoundException e) {
+                }
+            }
+            infos = found.toArray(new ApplicationInfo[found.size()]);
+        } else {
+            infos = infos.clone();
+        }
+        Arrays.sort(infos, PACKAGE_NAME_ORDER);
+        return infos;
+    }
 }
@@ -36,6 +36,8 @@ import android.view.View;
 import com.android.internal.util.Preconditions;
 import com.android.settings.R;
 
+import java.util.Arrays;
+
 /**
  * {@link NetworkStatsHistory} series to render inside a {@link ChartView},
  * using {@link ChartAxis} to map into screen coordinates.
@@ -72,6 +74,34 @@ public class ChartNetworkSeriesView extends View {
     private boolean mPathValid = false;
     private boolean mEstimateVisible = false;
 
+    /** Bumped whenever a different {@link NetworkStatsHistory} is bound. */
+    private int mStatsGeneration;
+
+    /**
+     * Series decimated to at most one point per pixel column: screen x and
+     * cumulative bytes at that point. Only depends on the bound stats and
+     * the horizontal axis, so it survives vertical axis changes.
+     */
+    private float[] mPointX = new float[0];
+    private long[] mPointTotal = new long[0];
+    private int mPointCount;
+    private long mPointsLastTime;
+    private long mPointsTotal;
+
+    private boolean mPointsValid = false;
+    private int mPointsGeneration;
+    private long mPointsStart;
+    private long mPointsEnd;
+    private long mPointsEndTime;
+    private int mPointsWidth;
+    private long mPointsLeftValue;
+    private long mPointsRightValue;
+
+    /** Vertical mapping {@link #mPathStroke} was last built for. */
+    private int mPathHeight;
+    private float mPathZeroY;
+    private float mPathMaxY;
+
     private long mMax;
     private long mMaxEstimate;
 
@@ -136,6 +166,7 @@ public class ChartNetworkSeriesView extends View {
 
     public void bindNetworkStats(NetworkStatsHistory stats) {
         mStats = stats;
+        mStatsGeneration++;
         invalidatePath();
         invalidate();
     }
@@ -162,34 +193,70 @@ public class ChartNetworkSeriesView extends View {
     }
 
     /**
-     * Erase any existing {@link Path} and generate series outline based on
-     * currently bound {@link NetworkStatsHistory} data.
+     * Generate series outline based on currently bound
+     * {@link NetworkStatsHistory} data, reusing the decimated series and the
+     * existing {@link Path} when the axes they were built for haven't
+     * changed.
      */
     private void generatePath() {
-        if (LOGD) Log.d(TAG, "generatePath()");
-
-        mMax = 0;
-        mPathStroke.reset();
-        mPathFill.reset();
-        mPathEstimate.reset();
         mPathValid = true;
 
         // bail when not enough stats to render
         if (mStats == null || mStats.size() < 2) {
+            mMax = 0;
+            mPointsValid = false;
+            mPathStroke.reset();
+            mPathFill.reset();
+            mPathEstimate.reset();
             return;
         }
 
         final int width = getWidth();
         final int height = getHeight();
 
-        boolean started = false;
-        float lastX = 0;
-        float lastY = height;
-        long lastTime = mHoriz.convertToValue(lastX);
+        final long leftValue = mHoriz.convertToValue(0);
+        final long rightValue = mHoriz.convertToValue(width);
+        boolean rebuild = false;
+        if (!mPointsValid || mPointsGeneration != mStatsGeneration || mPointsStart != mStart
+                || mPointsEnd != mEnd || mPointsEndTime != mEndTime || mPointsWidth != width
+                || mPointsLeftValue != leftValue || mPointsRightValue != rightValue) {
+            generatePoints(width);
+            mPointsValid = true;
+            mPointsGeneration = mStatsGeneration;
+            mPointsStart = mStart;
+            mPointsEnd = mEnd;
+            mPointsEndTime = mEndTime;
+            mPointsWidth = width;
+            mPointsLeftValue = leftValue;
+            mPointsRightValue = rightValue;
+            rebuild = true;
+        }
+        mMax = mPointsTotal;
+
+        final float zeroY = mVert.convertToPoint(0);
+        final float maxY = mVert.convertToPoint(mPointsTotal);
+        if (rebuild || mPathHeight != height || mPathZeroY != zeroY || mPathMaxY != maxY) {
+            buildPath(width, height);
+            mPathHeight = height;
+            mPathZeroY = zeroY;
+            mPathMaxY = maxY;
+        }
+    }
 
-        // move into starting position
-        mPathStroke.moveTo(lastX, lastY);
-        mPathFill.moveTo(lastX, lastY);
+    /**
+     * Walk the buckets on screen once, keeping only the last point that
+     * falls into each pixel column.
+     */
+    private void generatePoints(int width) {
+        if (LOGD) Log.d(TAG, "generatePoints()");
+
+        mPointCount = 0;
+        if (mPointX.length < width + 4) {
+            mPointX = new float[width + 4];
+            mPointTotal = new long[width + 4];
+        }
+
+        long lastTime = mHoriz.convertToValue(0);
 
         // TODO: count fractional data from first bucket crossing start;
         // currently it only accepts first full bucket.
@@ -212,31 +279,67 @@ public class ChartNetworkSeriesView extends View {
             // skip until we find first stats on screen
             if (endX < 0) continue;
 
-            // increment by current bucket total
-            totalData += entry.rxBytes + entry.txBytes;
-
-            final float startY = lastY;
-            final float endY = mVert.convertToPoint(totalData);
-
             if (lastTime != startTime) {
-                // gap in buckets; line to start of current bucket
-                mPathStroke.lineTo(startX, startY);
-                mPathFill.lineTo(startX, startY);
+                // gap in buckets; flat line to start of current bucket
+                addPoint(startX, totalData);
             }
 
+            // increment by current bucket total
+            totalData += entry.rxBytes + entry.txBytes;
+
             // always draw to end of current bucket
-            mPathStroke.lineTo(endX, endY);
-            mPathFill.lineTo(endX, endY);
+            addPoint(endX, totalData);
 
-            lastX = endX;
-            lastY = endY;
             lastTime = endTime;
         }
 
         // when data falls short, extend to requested end time
         if (lastTime < mEndTime) {
-            lastX = mHoriz.convertToPoint(mEndTime);
+            addPoint(mHoriz.convertToPoint(mEndTime), totalData);
+        }
+
+        mPointsLastTime = lastTime;
+        mPointsTotal = totalData;
+    }
+
+    private void addPoint(float x, long total) {
+        // points landing in the same column as the last one replace it
+        final int count = mPointCount;
+        if (count > 0 && (int) mPointX[count - 1] == (int) x) {
+            mPointX[count - 1] = x;
+            mPointTotal[count - 1] = total;
+            return;
+        }
+        if (count == mPointX.length) {
+            mPointX = Arrays.copyOf(mPointX, count * 2);
+            mPointTotal = Arrays.copyOf(mPointTotal, count * 2);
+        }
+        mPointX[count] = x;
+        mPointTotal[count] = total;
+        mPointCount = count + 1;
+    }
+
+    /**
+     * Erase any existing {@link Path} and rebuild it from the decimated
+     * series, mapping totals through the current vertical axis.
+     */
+    private void buildPath(int width, int height) {
+        if (LOGD) Log.d(TAG, "buildPath() from " + mPointCount + " points");
 
+        mPathStroke.reset();
+        mPathFill.reset();
+        mPathEstimate.reset();
+
+        float lastX = 0;
+        float lastY = height;
+
+        // move into starting position
+        mPathStroke.moveTo(lastX, lastY);
+        mPathFill.moveTo(lastX, lastY);
+
+        for (int i = 0; i < mPointCount; i++) {
+            lastX = mPointX[i];
+            lastY = mVert.convertToPoint(mPointTotal[i]);
             mPathStroke.lineTo(lastX, lastY);
             mPathFill.lineTo(lastX, lastY);
         }
@@ -245,24 +348,25 @@ public class ChartNetworkSeriesView extends View {
             final RectF bounds = new RectF();
             mPathFill.computeBounds(bounds, true);
             Log.d(TAG, "onLayout() rendered with bounds=" + bounds.toString() + " and totalData="
-                    + totalData);
+                    + mPointsTotal);
         }
 
         // drop to bottom of graph from current location
         mPathFill.lineTo(lastX, height);
         mPathFill.lineTo(0, height);
 
-        mMax = totalData;
-
         if (ESTIMATE_ENABLED) {
             // build estimated data
             mPathEstimate.moveTo(lastX, lastY);
 
             final long now = System.currentTimeMillis();
             final long bucketDuration = mStats.getBucketDuration();
+            final long lastTime = mPointsLastTime;
+            long totalData = mPointsTotal;
 
             // long window is average over two weeks
-            entry = mStats.getValues(lastTime - WEEK_IN_MILLIS * 2, lastTime, now, entry);
+            NetworkStatsHistory.Entry entry = mStats.getValues(
+                    lastTime - WEEK_IN_MILLIS * 2, lastTime, now, null);
             final long longWindow = (entry.rxBytes + entry.txBytes) * bucketDuration
                     / entry.bucketDuration;
 
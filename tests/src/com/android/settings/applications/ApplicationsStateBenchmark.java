@@ -0,0 +1,630 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.app.Activity;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.IPackageStatsObserver;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.content.pm.PackageStats;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.test.mock.MockPackageManager;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+import android.view.View;
+import android.widget.Filter;
+
+import com.android.settings.IconCache;
+import com.android.settings.Settings;
+import com.android.settings.applications.ApplicationsState.AppEntry;
+import com.android.settings.applications.ApplicationsState.PhaseTiming;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput benchmarks for {@link ApplicationsState}, and for the adapter
+ * and prefix filter of the applications list on top of it, run against a
+ * fake package manager holding synthetic packages.  Icons come from the
+ * same fake package manager, through an {@link IconCache} of their own.
+ *
+ * <p>Each result is logged as one line of JSON, prefixed with "RESULT ", so
+ * runs can be collected with
+ * <pre>adb logcat -s ApplicationsStateBenchmark | grep RESULT</pre>
+ * and compared between builds.  Allocation counts are global (they include
+ * the loader thread) and are per operation.
+ */
+@LargeTest
+public class ApplicationsStateBenchmark extends InstrumentationTestCase {
+    static final String TAG = "ApplicationsStateBenchmark";
+
+    // Each operation is repeated until it has run at least this long and
+    // at least MIN_ITERATIONS times, but never more than MAX_ITERATIONS.
+    static final long MIN_RUN_NS = 500L*1000*1000;
+    static final int MIN_ITERATIONS = 5;
+    static final int MAX_ITERATIONS = 10000;
+
+    static final long LOAD_TIMEOUT = 5*60*1000;
+    static final long REBUILD_TIMEOUT = 60*1000;
+
+    // Rows bound per operation of adapter_bind; about one screen.
+    static final int ROWS_PER_SCREEN = 12;
+
+    static final String[] WORDS = {
+        "Maps", "Mail", "Music", "Photos", "Camera", "Calendar", "Clock", "Notes",
+        "Weather", "News", "Chat", "Video", "Files", "Games", "Radio", "Scanner",
+        "Wallet", "Fitness", "Reader", "Café", "Résumé", "Über", "Ökonom", "Sync",
+        "Pro", "Lite", "Plus", "Express", "Manager", "Studio", "Home", "Travel",
+    };
+
+    // Keystrokes of a user searching; each is one prefix filter operation.
+    static final String[] TYPED = {
+        "m", "ma", "map", "maps", "c", "ca", "caf", "cafe", "x", "s", "st", "stu",
+        "com.", "com.bench.", "res",
+    };
+
+    interface Op {
+        void run(int iteration) throws Exception;
+    }
+
+    /**
+     * Package manager serving a fixed list of synthetic packages.  Size
+     * requests are answered from another thread, like the real ones.  Every
+     * package has the default icon, decoded anew each time it is asked for.
+     */
+    static class FakePackageManager extends MockPackageManager {
+        // Larger than a list row, like real launcher icons.
+        static final int ICON_SIZE = 192;
+
+        final ArrayList<ApplicationInfo> mApps;
+        final HashMap<String, ApplicationInfo> mAppsByName = new HashMap<String, ApplicationInfo>();
+        final Resources mRes;
+        final HandlerThread mStatsThread;
+        final Handler mStatsHandler;
+
+        FakePackageManager(ArrayList<ApplicationInfo> apps, Resources res) {
+            mApps = apps;
+            mRes = res;
+            for (int i=0; i<apps.size(); i++) {
+                mAppsByName.put(apps.get(i).packageName, apps.get(i));
+            }
+            mStatsThread = new HandlerThread("FakePackageManager.Stats");
+            mStatsThread.start();
+            mStatsHandler = new Handler(mStatsThread.getLooper());
+        }
+
+        @Override
+        public List<ApplicationInfo> getInstalledApplications(int flags) {
+            return new ArrayList<ApplicationInfo>(mApps);
+        }
+
+        @Override
+        public ApplicationInfo getApplicationInfo(String packageName, int flags)
+                throws NameNotFoundException {
+            ApplicationInfo info = mAppsByName.get(packageName);
+            if (info == null) {
+                throw new NameNotFoundException(packageName);
+            }
+            return info;
+        }
+
+        @Override
+        public PackageInfo getPackageInfo(String packageName, int flags)
+                throws NameNotFoundException {
+            PackageInfo info = new PackageInfo();
+            info.packageName = packageName;
+            info.applicationInfo = getApplicationInfo(packageName, flags);
+            return info;
+        }
+
+        @Override
+        public Drawable getDefaultActivityIcon() {
+            return new BitmapDrawable(mRes, Bitmap.createBitmap(ICON_SIZE, ICON_SIZE,
+                    Bitmap.Config.ARGB_8888));
+        }
+
+        @Override
+        public void getPackageSizeInfo(final String packageName, int userHandle,
+                final IPackageStatsObserver observer) {
+            mStatsHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    final int seed = packageName.hashCode() & 0xffff;
+                    PackageStats stats = new PackageStats(packageName);
+                    stats.codeSize = 1024L * (100 + seed);
+                    stats.dataSize = 512L * (seed % 4096);
+                    stats.cacheSize = 256L * (seed % 1024);
+                    try {
+                        observer.onGetStatsCompleted(stats, true);
+                    } catch (RemoteException e) {
+                    }
+                }
+            });
+        }
+
+        void quit() {
+            mStatsThread.quit();
+        }
+    }
+
+    static class BenchContext extends ContextWrapper {
+        final PackageManager mPm;
+        final File mCacheDir;
+
+        BenchContext(Context base, PackageManager pm, File cacheDir) {
+            super(base);
+            mPm = pm;
+            mCacheDir = cacheDir;
+        }
+
+        @Override
+        public PackageManager getPackageManager() {
+            return mPm;
+        }
+
+        @Override
+        public File getCacheDir() {
+            return mCacheDir;
+        }
+    }
+
+    static class BenchCallbacks implements ApplicationsState.Callbacks {
+        private ArrayList<AppEntry> mList;
+        private boolean mAllSizesComputed;
+
+        synchronized void reset() {
+            mList = null;
+        }
+
+        synchronized ArrayList<AppEntry> waitForList(long timeout) throws InterruptedException {
+            final long end = SystemClock.uptimeMillis() + timeout;
+            long now;
+            while (mList == null && (now = SystemClock.uptimeMillis()) < end) {
+                wait(end - now);
+            }
+            return mList;
+        }
+
+        synchronized boolean waitForAllSizes(long timeout) throws InterruptedException {
+            final long end = SystemClock.uptimeMillis() + timeout;
+            long now;
+            while (!mAllSizesComputed && (now = SystemClock.uptimeMillis()) < end) {
+                wait(end - now);
+            }
+            return mAllSizesComputed;
+        }
+
+        @Override
+        public synchronized void onRebuildComplete(ArrayList<AppEntry> apps) {
+            mList = apps;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void onRebuildDelta(ArrayList<AppEntry> apps,
+                ArrayList<ApplicationsState.Change> changes) {
+            mList = apps;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void onAllSizesComputed() {
+            mAllSizesComputed = true;
+            notifyAll();
+        }
+
+        @Override
+        public void onRunningStateChanged(boolean running) {
+        }
+
+        @Override
+        public void onPackageListChanged() {
+        }
+
+        @Override
+        public void onPackageIconChanged() {
+        }
+
+        @Override
+        public void onPackageSizeChanged(String packageName) {
+        }
+    }
+
+    private File mDir;
+    private FakePackageManager mPm;
+    private ApplicationsState mState;
+    private ApplicationsState.Session mSession;
+    private BenchCallbacks mCallbacks;
+    private Activity mActivity;
+    private ApplicationsState mSavedState;
+    private boolean mStateInstalled;
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mActivity != null) {
+            mActivity.finish();
+            getInstrumentation().waitForIdleSync();
+            mActivity = null;
+        }
+        if (mStateInstalled) {
+            synchronized (ApplicationsState.sLock) {
+                ApplicationsState.sInstance = mSavedState;
+            }
+            mSavedState = null;
+            mStateInstalled = false;
+        }
+        if (mSession != null) {
+            mSession.pause();
+            mSession = null;
+        }
+        if (mState != null) {
+            mState.mThread.quit();
+            mState = null;
+        }
+        if (mPm != null) {
+            mPm.quit();
+            mPm = null;
+        }
+        if (mDir != null) {
+            File[] files = mDir.listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    f.delete();
+                }
+            }
+            mDir.delete();
+            mDir = null;
+        }
+        super.tearDown();
+    }
+
+    public void test100Packages() throws Exception {
+        runAll(100);
+    }
+
+    public void test1000Packages() throws Exception {
+        runAll(1000);
+    }
+
+    public void test10000Packages() throws Exception {
+        runAll(10000);
+    }
+
+    private void runAll(final int n) throws Exception {
+        setUpState(n);
+
+        // Cold load: entries, labels, icons and sizes of every package.
+        resetAllocCounts();
+        long start = System.nanoTime();
+        mSession.resume();
+        final ArrayList<AppEntry> entries
+                = rebuild(null, ApplicationsState.ALPHA_COMPARATOR);
+        assertNotNull("initial rebuild timed out", entries);
+        assertEquals(n, entries.size());
+        assertTrue("size loading timed out", mCallbacks.waitForAllSizes(LOAD_TIMEOUT));
+        report("load", n, 1, System.nanoTime() - start);
+        PhaseTiming[] timings = mState.getPhaseTimings();
+        for (int i=0; i<timings.length; i++) {
+            reportPhase(n, timings[i]);
+        }
+
+        // Alternating comparators forces a full rebuild every time.
+        measure("rebuild", n, new Op() {
+            @Override
+            public void run(int iteration) throws Exception {
+                assertNotNull(rebuild(null, (iteration&1) == 0
+                        ? ApplicationsState.SIZE_COMPARATOR
+                        : ApplicationsState.ALPHA_COMPARATOR));
+            }
+        });
+        measure("rebuild_filtered", n, new Op() {
+            @Override
+            public void run(int iteration) throws Exception {
+                assertNotNull(rebuild((iteration&1) == 0
+                        ? ApplicationsState.THIRD_PARTY_FILTER
+                        : ApplicationsState.ALL_ENABLED_FILTER,
+                        ApplicationsState.ALPHA_COMPARATOR));
+            }
+        });
+        // Nothing changed, so these patch the previous list.
+        rebuild(null, ApplicationsState.ALPHA_COMPARATOR);
+        measure("rebuild_delta", n, new Op() {
+            @Override
+            public void run(int iteration) throws Exception {
+                assertNotNull(rebuild(null, ApplicationsState.ALPHA_COMPARATOR));
+            }
+        });
+
+        final ArrayList<AppEntry> shuffled = new ArrayList<AppEntry>(entries);
+        Collections.shuffle(shuffled, new Random(n));
+        measure("sort_alpha", n, new Op() {
+            @Override
+            public void run(int iteration) {
+                ArrayList<AppEntry> list = new ArrayList<AppEntry>(shuffled);
+                Collections.sort(list, ApplicationsState.ALPHA_COMPARATOR);
+            }
+        });
+        measure("sort_size", n, new Op() {
+            @Override
+            public void run(int iteration) {
+                ArrayList<AppEntry> list = new ArrayList<AppEntry>(shuffled);
+                Collections.sort(list, ApplicationsState.SIZE_COMPARATOR);
+            }
+        });
+
+        // Same steps as ApplicationsAdapter.applyPrefixFilter(), without the
+        // list around it; adapter_filter below goes through the adapter.
+        measure("prefix_index", n, new Op() {
+            @Override
+            public void run(int iteration) {
+                AppSearchIndex index = new AppSearchIndex();
+                index.setEntries(entries);
+            }
+        });
+        final AppSearchIndex index = new AppSearchIndex();
+        measure("prefix_filter", n, new Op() {
+            @Override
+            public void run(int iteration) {
+                String prefix = ApplicationsState.normalize(TYPED[iteration % TYPED.length]);
+                index.setEntries(entries);
+                index.query(prefix);
+            }
+        });
+
+        measureAdapter(n);
+    }
+
+    /**
+     * Opens the list of apps on top of the benchmark's state and measures
+     * its adapter: re-sorting as the menu does, binding a screen of rows
+     * at a time while scrolling through, and typing into the filter.
+     */
+    private void measureAdapter(final int n) throws Exception {
+        synchronized (ApplicationsState.sLock) {
+            mSavedState = ApplicationsState.sInstance;
+            ApplicationsState.sInstance = mState;
+            mStateInstalled = true;
+        }
+        mActivity = launchActivity("com.android.settings",
+                Settings.ManageApplicationsActivity.class, null);
+        getInstrumentation().waitForIdleSync();
+        final ManageApplications fragment = (ManageApplications) mActivity
+                .getFragmentManager().findFragmentById(com.android.internal.R.id.prefs);
+        assertNotNull("list of apps not shown", fragment);
+        assertNotNull("no list tab", fragment.mCurTab);
+        final ManageApplications.ApplicationsAdapter adapter = fragment.mCurTab.mApplications;
+        assertNotNull("no adapter", adapter);
+        assertTrue("adapter load timed out", waitForRows(adapter, LOAD_TIMEOUT));
+
+        measure("adapter_resort", n, new Op() {
+            int mSort = ManageApplications.SORT_ORDER_ALPHA;
+
+            @Override
+            public void run(int iteration) throws Exception {
+                mSort = mSort == ManageApplications.SORT_ORDER_ALPHA
+                        ? ManageApplications.SORT_ORDER_SIZE
+                        : ManageApplications.SORT_ORDER_ALPHA;
+                final int sort = mSort;
+                getInstrumentation().runOnMainSync(new Runnable() {
+                    @Override
+                    public void run() {
+                        adapter.rebuild(sort);
+                    }
+                });
+                assertTrue("adapter rebuild timed out", waitForRows(adapter, REBUILD_TIMEOUT));
+            }
+        });
+
+        // Rows are recycled between screens, as the list does.
+        final View[] rows = new View[ROWS_PER_SCREEN];
+        measure("adapter_bind", n, new Op() {
+            @Override
+            public void run(final int iteration) {
+                getInstrumentation().runOnMainSync(new Runnable() {
+                    @Override
+                    public void run() {
+                        final int count = adapter.getCount();
+                        final int first = (iteration * ROWS_PER_SCREEN) % count;
+                        for (int i=0; i<ROWS_PER_SCREEN; i++) {
+                            rows[i] = adapter.getView((first + i) % count, rows[i], null);
+                        }
+                    }
+                });
+            }
+        });
+
+        measure("adapter_filter", n, new Op() {
+            @Override
+            public void run(int iteration) throws Exception {
+                final String prefix = TYPED[iteration % TYPED.length];
+                final CountDownLatch done = new CountDownLatch(1);
+                getInstrumentation().runOnMainSync(new Runnable() {
+                    @Override
+                    public void run() {
+                        adapter.getFilter().filter(prefix, new Filter.FilterListener() {
+                            @Override
+                            public void onFilterComplete(int count) {
+                                done.countDown();
+                            }
+                        });
+                    }
+                });
+                assertTrue("adapter filter timed out",
+                        done.await(REBUILD_TIMEOUT, TimeUnit.MILLISECONDS));
+            }
+        });
+    }
+
+    private boolean waitForRows(final ManageApplications.ApplicationsAdapter adapter,
+            long timeout) throws InterruptedException {
+        final long end = SystemClock.uptimeMillis() + timeout;
+        final int[] count = new int[1];
+        do {
+            getInstrumentation().runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    count[0] = adapter.getCount();
+                }
+            });
+            if (count[0] > 0) {
+                return true;
+            }
+            Thread.sleep(1);
+        } while (SystemClock.uptimeMillis() < end);
+        return false;
+    }
+
+    private void setUpState(int n) throws IOException {
+        final Context context = getInstrumentation().getTargetContext();
+        mDir = new File(context.getCacheDir(), "bench");
+        mDir.mkdirs();
+        // Every package points at the same stub file, so they all count as
+        // mounted without needing thousands of files.
+        File apk = new File(mDir, "stub.apk");
+        apk.createNewFile();
+
+        mPm = new FakePackageManager(makeApps(n, apk.getPath()), context.getResources());
+        final Context benchContext = new BenchContext(context, mPm, mDir);
+        final IconCache iconCache = new IconCache(benchContext);
+        // The state's main handler has to live on the main thread.
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mState = new ApplicationsState(benchContext, iconCache);
+            }
+        });
+        mCallbacks = new BenchCallbacks();
+        mSession = mState.newSession(mCallbacks);
+    }
+
+    static ArrayList<ApplicationInfo> makeApps(int n, String sourceDir) {
+        final Random random = new Random(n);
+        ArrayList<ApplicationInfo> apps = new ArrayList<ApplicationInfo>(n);
+        for (int i=0; i<n; i++) {
+            ApplicationInfo info = new ApplicationInfo();
+            info.packageName = "com.bench." + WORDS[random.nextInt(WORDS.length)]
+                    .toLowerCase() + ".app" + i;
+            StringBuilder label = new StringBuilder();
+            final int words = 1 + random.nextInt(3);
+            for (int j=0; j<words; j++) {
+                if (j > 0) {
+                    label.append(' ');
+                }
+                label.append(WORDS[random.nextInt(WORDS.length)]);
+            }
+            if (random.nextInt(4) == 0) {
+                label.append(' ').append(random.nextInt(100));
+            }
+            info.nonLocalizedLabel = label.toString();
+            info.sourceDir = info.publicSourceDir = sourceDir;
+            info.uid = 10000 + i;
+            info.enabled = i % 25 != 0;
+            info.flags = ApplicationInfo.FLAG_INSTALLED;
+            if (i % 10 == 0) {
+                info.flags |= ApplicationInfo.FLAG_SYSTEM;
+            }
+            if (i % 7 == 0) {
+                info.flags |= ApplicationInfo.FLAG_EXTERNAL_STORAGE;
+            }
+            apps.add(info);
+        }
+        return apps;
+    }
+
+    private ArrayList<AppEntry> rebuild(ApplicationsState.AppFilter filter,
+            Comparator<AppEntry> comparator) throws InterruptedException {
+        mCallbacks.reset();
+        ArrayList<AppEntry> list = mSession.rebuild(filter, comparator);
+        if (list == null) {
+            // Took longer than rebuild() waits; the result is delivered
+            // through the callbacks instead.
+            list = mCallbacks.waitForList(REBUILD_TIMEOUT);
+        }
+        return list;
+    }
+
+    private void measure(String name, int n, Op op) throws Exception {
+        // One untimed run to warm up caches and the JIT.
+        op.run(0);
+        resetAllocCounts();
+        int iterations = 0;
+        final long start = System.nanoTime();
+        long elapsed;
+        do {
+            op.run(iterations++);
+            elapsed = System.nanoTime() - start;
+        } while ((elapsed < MIN_RUN_NS || iterations < MIN_ITERATIONS)
+                && iterations < MAX_ITERATIONS);
+        report(name, n, iterations, elapsed);
+    }
+
+    private static void resetAllocCounts() {
+        Debug.stopAllocCounting();
+        Debug.resetAllCounts();
+        Debug.startAllocCounting();
+    }
+
+    private static void report(String name, int n, int iterations, long elapsedNs)
+            throws JSONException {
+        Debug.stopAllocCounting();
+        JSONObject result = new JSONObject();
+        result.put("benchmark", name);
+        result.put("packages", n);
+        result.put("iterations", iterations);
+        result.put("elapsed_ns", elapsedNs);
+        result.put("ops_per_sec", iterations * 1e9 / elapsedNs);
+        result.put("allocs_per_op", Debug.getGlobalAllocCount() / iterations);
+        result.put("alloc_bytes_per_op", Debug.getGlobalAllocSize() / iterations);
+        Log.i(TAG, "RESULT " + result);
+    }
+
+    private static void reportPhase(int n, PhaseTiming timing) throws JSONException {
+        JSONObject result = new JSONObject();
+        result.put("benchmark", "loader_" + timing.getName());
+        result.put("packages", n);
+        result.put("items", timing.getItemCount());
+        result.put("batches", timing.getBatchCount());
+        result.put("total_ns", timing.getTotalNanos());
+        result.put("max_batch_ns", timing.getMaxBatchNanos());
+        result.put("avg_item_ns", timing.getAverageItemNanos());
+        Log.i(TAG, "RESULT " + result);
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.app.ActivityManager;
+import android.app.ActivityManagerNative;
+import android.content.Context;
+import android.os.Debug;
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import org.json.JSONObject;
+
+/**
+ * Measures how much one {@link RunningState} update pass allocates on top
+ * of what the activity manager calls it makes allocate by themselves, both
+ * when nothing changed and when the items are rebuilt.
+ *
+ * <p>Each pass is logged as a line of JSON prefixed with "RESULT ".
+ */
+@LargeTest
+public class RunningStateAllocationTest extends InstrumentationTestCase {
+    static final String TAG = "RunningStateAllocationTest";
+
+    static final int TICKS = 10;
+
+    // Allocations a steady-state pass may make beyond the binder calls.
+    static final int MAX_EXTRA_ALLOCS = 64;
+
+    // Further allocations per process a pass that rebuilds the items may
+    // make, e.g. iterators over each process's services.
+    static final int MAX_ALLOCS_PER_PROCESS = 8;
+
+    /**
+     * Passes where nothing changed, which only refresh memory use.
+     */
+    public void testSteadyStateAllocations() throws Exception {
+        final long[] result = measure("running_state_update", false);
+        assertTrue("update pass allocated " + result[1] + " objects, binder calls alone "
+                + result[0], result[1] - result[0] <= MAX_EXTRA_ALLOCS);
+    }
+
+    /**
+     * Passes that go through updateItems(), as when a process or service
+     * changed, over the same processes so that items can be reused.
+     */
+    public void testChangedPassAllocations() throws Exception {
+        final long[] result = measure("running_state_update_items", true);
+        final long limit = MAX_EXTRA_ALLOCS + MAX_ALLOCS_PER_PROCESS * result[2];
+        assertTrue("update pass over " + result[2] + " processes allocated " + result[1]
+                + " objects, binder calls alone " + result[0],
+                result[1] - result[0] <= limit);
+    }
+
+    /**
+     * Runs update passes, each after the binder calls it makes on their
+     * own, and returns the fewest allocations of each and the number of
+     * processes.  If forceItems is set, every pass rebuilds the items.
+     */
+    private long[] measure(String benchmark, boolean forceItems) throws Exception {
+        final Context context = getInstrumentation().getTargetContext();
+        final ActivityManager am = (ActivityManager) context.getSystemService(
+                Context.ACTIVITY_SERVICE);
+        final RunningState state = RunningState.getInstance(context);
+        synchronized (state.mLock) {
+            // update() is only safe to call while the loader thread is idle.
+            assertFalse("running services screen is showing", state.mResumed);
+        }
+
+        // The first passes build all of the items.
+        state.update(context, am);
+        state.update(context, am);
+
+        long minBaseline = Long.MAX_VALUE;
+        long minPass = Long.MAX_VALUE;
+        for (int i=0; i<TICKS; i++) {
+            startCounting();
+            am.getRunningServices(RunningState.MAX_SERVICES);
+            am.getRunningAppProcesses();
+            ActivityManagerNative.getDefault().getProcessPss(state.mTmpPids);
+            final long baseline = Debug.getThreadAllocCount();
+
+            if (forceItems) {
+                // as if the fingerprint had changed
+                state.mHaveFingerprint = false;
+            }
+            startCounting();
+            state.update(context, am);
+            final long pass = Debug.getThreadAllocCount();
+            final long passBytes = Debug.getThreadAllocSize();
+            Debug.stopAllocCounting();
+            if (forceItems) {
+                assertFalse("pass skipped updateItems()", state.mLastUpdateIdentical);
+            }
+
+            JSONObject result = new JSONObject();
+            result.put("benchmark", benchmark);
+            result.put("tick", i);
+            result.put("processes", state.mAllProcessItems.size());
+            result.put("identical", state.mLastUpdateIdentical);
+            result.put("allocs", pass);
+            result.put("alloc_bytes", passBytes);
+            result.put("binder_allocs", baseline);
+            Log.i(TAG, "RESULT " + result);
+
+            minBaseline = Math.min(minBaseline, baseline);
+            minPass = Math.min(minPass, pass);
+        }
+        return new long[] { minBaseline, minPass, state.mAllProcessItems.size() };
+    }
+
+    private static void startCounting() {
+        Debug.stopAllocCounting();
+        Debug.resetThreadAllocCount();
+        Debug.resetThreadAllocSize();
+        Debug.startAllocCounting();
+    }
+}